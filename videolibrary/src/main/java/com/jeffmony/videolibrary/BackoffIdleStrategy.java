@@ -0,0 +1,107 @@
+package com.jeffmony.videolibrary;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Idle strategy used by a job run loop when a whole round of track transcoders made no progress.
+ * It busy spins first, then yields, then parks for an exponentially growing period bounded by
+ * a maximum. Any thread can call {@link #wake()} to cut a park short, e.g. when a codec reports
+ * that a buffer became available.
+ */
+class BackoffIdleStrategy {
+
+    static final int DEFAULT_MAX_SPINS = 10;
+    static final int DEFAULT_MAX_YIELDS = 5;
+    static final long DEFAULT_MIN_PARK_NS = TimeUnit.MICROSECONDS.toNanos(50);
+    static final long DEFAULT_MAX_PARK_NS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private static final int STATE_NOT_IDLE = 0;
+    private static final int STATE_SPINNING = 1;
+    private static final int STATE_YIELDING = 2;
+    private static final int STATE_PARKING = 3;
+
+    private final int mMaxSpins;
+    private final int mMaxYields;
+    private final long mMinParkNs;
+    private final long mMaxParkNs;
+
+    private int mState = STATE_NOT_IDLE;
+    private int mSpins;
+    private int mYields;
+    private long mParkNs;
+
+    private volatile Thread mOwner;
+
+    BackoffIdleStrategy() {
+        this(DEFAULT_MAX_SPINS, DEFAULT_MAX_YIELDS, DEFAULT_MIN_PARK_NS, DEFAULT_MAX_PARK_NS);
+    }
+
+    BackoffIdleStrategy(int maxSpins, int maxYields, long minParkNs, long maxParkNs) {
+        if (minParkNs <= 0 || maxParkNs < minParkNs) {
+            throw new IllegalArgumentException("Invalid park period [" + minParkNs + ", " + maxParkNs + "]");
+        }
+        mMaxSpins = maxSpins;
+        mMaxYields = maxYields;
+        mMinParkNs = minParkNs;
+        mMaxParkNs = maxParkNs;
+    }
+
+    /**
+     * Called by the run loop after a round in which no stage made progress.
+     */
+    void idle() {
+        switch (mState) {
+            case STATE_NOT_IDLE:
+                mState = STATE_SPINNING;
+                mSpins = 0;
+                // fall through
+            case STATE_SPINNING:
+                if (++mSpins <= mMaxSpins) {
+                    break;
+                }
+                mState = STATE_YIELDING;
+                mYields = 0;
+                // fall through
+            case STATE_YIELDING:
+                if (++mYields <= mMaxYields) {
+                    Thread.yield();
+                    break;
+                }
+                mState = STATE_PARKING;
+                mParkNs = mMinParkNs;
+                // fall through
+            case STATE_PARKING:
+                mOwner = Thread.currentThread();
+                LockSupport.parkNanos(this, mParkNs);
+                mOwner = null;
+                mParkNs = Math.min(mParkNs << 1, mMaxParkNs);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Called by the run loop after a round in which at least one stage made progress.
+     */
+    void reset() {
+        mState = STATE_NOT_IDLE;
+    }
+
+    /**
+     * Wake up the run loop if it is currently parked. Safe to call from any thread.
+     */
+    void wake() {
+        Thread owner = mOwner;
+        if (owner != null) {
+            LockSupport.unpark(owner);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.utils.CodecUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Keeps track of free codec instances per mime type and direction (decoder or encoder). A job is admitted
+ * only when every codec it needs can be reserved at once, so a job never starts with half of its codecs
+ * and then fails to configure the rest.
+ */
+public class CodecCapacity {
+
+    public static final int DEFAULT_MAX_INSTANCES = 2;
+
+    private static final String ENCODER_SUFFIX = "#encoder";
+    private static final String DECODER_SUFFIX = "#decoder";
+
+    private final Map<String, Integer> mCapacity = new HashMap<>();
+    private final Map<String, Integer> mInUse = new HashMap<>();
+    private final int mDefaultInstances;
+
+    public CodecCapacity() {
+        this(DEFAULT_MAX_INSTANCES);
+    }
+
+    /**
+     * Create codec capacity tracker
+     * @param defaultInstances number of instances assumed when platform does not report a limit
+     */
+    public CodecCapacity(int defaultInstances) {
+        mDefaultInstances = defaultInstances;
+    }
+
+    /**
+     * Override the number of concurrent instances of a codec type, instead of querying the platform.
+     * @param mimeType codec mime type
+     * @param isEncoder true for encoders, false for decoders
+     * @param instances max number of concurrent instances
+     */
+    public synchronized void setCapacity(@NonNull String mimeType, boolean isEncoder, int instances) {
+        mCapacity.put(key(mimeType, isEncoder), instances);
+    }
+
+    /**
+     * Get the number of concurrent instances of a codec type.
+     */
+    public synchronized int getCapacity(@NonNull String mimeType, boolean isEncoder) {
+        return getCapacity(key(mimeType, isEncoder));
+    }
+
+    /**
+     * Get the number of instances of a codec type currently reserved by running jobs.
+     */
+    public synchronized int getInUse(@NonNull String mimeType, boolean isEncoder) {
+        return getInUse(key(mimeType, isEncoder));
+    }
+
+    /**
+     * Check if demand can ever be satisfied, assuming nothing else is running
+     */
+    synchronized boolean canEverAcquire(@NonNull Map<String, Integer> demand) {
+        for (Map.Entry<String, Integer> entry : demand.entrySet()) {
+            if (entry.getValue() > getCapacity(entry.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reserve all codecs in demand, or nothing.
+     * @return true if codecs were reserved, false if at least one codec type has no free instances
+     */
+    synchronized boolean tryAcquire(@NonNull Map<String, Integer> demand) {
+        for (Map.Entry<String, Integer> entry : demand.entrySet()) {
+            if (getInUse(entry.getKey()) + entry.getValue() > getCapacity(entry.getKey())) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, Integer> entry : demand.entrySet()) {
+            mInUse.put(entry.getKey(), getInUse(entry.getKey()) + entry.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Check if demand could be reserved once codecs reserved by other demands are returned
+     */
+    synchronized boolean canAcquireAfterRelease(@NonNull Map<String, Integer> demand,
+                                                @NonNull List<Map<String, Integer>> releasingDemands) {
+        for (Map.Entry<String, Integer> entry : demand.entrySet()) {
+            int inUse = getInUse(entry.getKey());
+            for (Map<String, Integer> releasingDemand : releasingDemands) {
+                Integer releasing = releasingDemand.get(entry.getKey());
+                if (releasing != null) {
+                    inUse -= releasing;
+                }
+            }
+            if (Math.max(0, inUse) + entry.getValue() > getCapacity(entry.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return previously reserved codecs.
+     */
+    synchronized void release(@NonNull Map<String, Integer> demand) {
+        for (Map.Entry<String, Integer> entry : demand.entrySet()) {
+            mInUse.put(entry.getKey(), Math.max(0, getInUse(entry.getKey()) - entry.getValue()));
+        }
+    }
+
+    /**
+     * Calculate codec instances needed to run a list of track transforms. Passthrough tracks need none, tracks
+     * sharing a decode pass need one decoder between them.
+     * @return map of codec key to number of instances
+     */
+    @NonNull
+    static Map<String, Integer> getDemand(@NonNull List<TrackTransform> trackTransforms) {
+        Map<String, Integer> demand = new HashMap<>();
+        int[] leaders = TransformationJob.getDecoderLeaders(trackTransforms);
+        for (int index = 0; index < trackTransforms.size(); index++) {
+            TrackTransform trackTransform = trackTransforms.get(index);
+            if (trackTransform.getDecoder() != null && leaders[index] == index) {
+                MediaFormat sourceFormat = trackTransform.getMediaSource().getTrackFormat(trackTransform.getSourceTrack());
+                addDemand(demand, sourceFormat, false);
+            }
+            if (trackTransform.getEncoder() != null) {
+                addDemand(demand, trackTransform.getTargetFormat(), true);
+            }
+        }
+        return demand;
+    }
+
+    private static void addDemand(@NonNull Map<String, Integer> demand, @Nullable MediaFormat format, boolean isEncoder) {
+        String mimeType = format != null ? format.getString(MediaFormat.KEY_MIME) : null;
+        if (mimeType == null) {
+            return;
+        }
+        String key = key(mimeType, isEncoder);
+        Integer count = demand.get(key);
+        demand.put(key, count == null ? 1 : count + 1);
+    }
+
+    private int getCapacity(@NonNull String key) {
+        Integer capacity = mCapacity.get(key);
+        if (capacity == null) {
+            int separator = key.lastIndexOf('#');
+            capacity = CodecUtils.getMaxSupportedInstances(key.substring(0, separator),
+                    key.endsWith(ENCODER_SUFFIX), mDefaultInstances);
+            mCapacity.put(key, capacity);
+        }
+        return capacity;
+    }
+
+    private int getInUse(@NonNull String key) {
+        Integer inUse = mInUse.get(key);
+        return inUse == null ? 0 : inUse;
+    }
+
+    @NonNull
+    static String key(@NonNull String mimeType, boolean isEncoder) {
+        return mimeType + (isEncoder ? ENCODER_SUFFIX : DECODER_SUFFIX);
+    }
+}
@@ -0,0 +1,227 @@
+package com.jeffmony.videolibrary;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Hill climbing controller of the number of jobs running at the same time. The engine feeds it cumulative
+ * counts of video frames and bytes written, and it moves the job limit one step at a time, keeping a move
+ * while aggregate throughput grows by more than a threshold:
+ * <ul>
+ *     <li>a move which raised throughput is followed by another one in the same direction</li>
+ *     <li>a move which cut throughput is undone</li>
+ *     <li>an extra job which did not change throughput is given back, it only costs memory and codecs</li>
+ * </ul>
+ * Once settled, the controller holds the limit for a number of windows and then probes one step up again,
+ * since the best limit changes with the mix of running jobs.
+ * <p>
+ * Throughput is only judged while the engine is saturated, i.e. it runs as many jobs as the limit allows
+ * and more jobs are waiting; otherwise it reflects the workload rather than the limit. Window right after
+ * a limit change is dropped, so that jobs admitted or paused by the change do not skew the measurement.
+ * <p>
+ * Controller has no clock and no threads of its own, time is passed in by the caller, so its decisions
+ * are fully determined by the sequence of samples it gets. Not thread safe.
+ */
+public class ConcurrencyController {
+
+    public static final long DEFAULT_WINDOW_MS = 2000;
+    public static final float DEFAULT_THRESHOLD = 0.05f;
+    public static final int DEFAULT_HOLD_WINDOWS = 15;
+
+    private final int mMinJobs;
+    private final int mMaxJobs;
+    private final long mWindowMs;
+    private final float mThreshold;
+    private final int mHoldWindows;
+
+    private int mLimit;
+    private int mLastStep;
+    private int mHeldWindows;
+    private boolean mSettling;
+
+    // start of current window
+    private long mWindowStartMs = -1;
+    private long mWindowStartFrames;
+    private long mWindowStartBytes;
+
+    // throughput measured before last move, negative if unknown
+    private double mBaselineFps = -1;
+    private double mBaselineBps = -1;
+
+    /**
+     * Create a controller with default tuning
+     * @param minJobs lowest job limit, at least 1
+     * @param maxJobs highest job limit, also the initial one
+     */
+    public ConcurrencyController(int minJobs, int maxJobs) {
+        this(minJobs, maxJobs, maxJobs, DEFAULT_WINDOW_MS, DEFAULT_THRESHOLD, DEFAULT_HOLD_WINDOWS);
+    }
+
+    /**
+     * Create a controller
+     * @param minJobs lowest job limit, at least 1
+     * @param maxJobs highest job limit
+     * @param initialJobs job limit to start with
+     * @param windowMs length of a measurement window
+     * @param threshold relative throughput change which counts as a real change, e.g. 0.05 for 5%
+     * @param holdWindows number of saturated windows to keep a settled limit before probing again
+     */
+    public ConcurrencyController(int minJobs, int maxJobs, int initialJobs, long windowMs, float threshold, int holdWindows) {
+        if (minJobs <= 0 || maxJobs < minJobs) {
+            throw new IllegalArgumentException("Invalid job limits [" + minJobs + ", " + maxJobs + "]");
+        }
+        if (initialJobs < minJobs || initialJobs > maxJobs) {
+            throw new IllegalArgumentException("Initial job limit " + initialJobs + " is out of limits");
+        }
+        if (windowMs <= 0 || threshold < 0 || holdWindows < 0) {
+            throw new IllegalArgumentException("Invalid tuning");
+        }
+        mMinJobs = minJobs;
+        mMaxJobs = maxJobs;
+        mWindowMs = windowMs;
+        mThreshold = threshold;
+        mHoldWindows = holdWindows;
+        mLimit = initialJobs;
+    }
+
+    /**
+     * Get current job limit
+     */
+    public int getLimit() {
+        return mLimit;
+    }
+
+    public int getMinJobs() {
+        return mMinJobs;
+    }
+
+    public int getMaxJobs() {
+        return mMaxJobs;
+    }
+
+    /**
+     * Get length of a measurement window, callers should feed samples at least that often
+     */
+    public long getWindowMs() {
+        return mWindowMs;
+    }
+
+    /**
+     * Feed a sample. Nothing happens until a measurement window is complete.
+     * @param nowMs current time on a monotonic clock
+     * @param frameCount video frames written since engine start
+     * @param byteCount bytes written since engine start
+     * @param saturated true if engine runs as many jobs as the limit allows and has more waiting
+     * @return job limit to use from now on
+     */
+    public int onSample(long nowMs, long frameCount, long byteCount, boolean saturated) {
+        if (mWindowStartMs < 0) {
+            startWindow(nowMs, frameCount, byteCount);
+            return mLimit;
+        }
+        long elapsedMs = nowMs - mWindowStartMs;
+        if (elapsedMs < mWindowMs) {
+            return mLimit;
+        }
+        double fps = (frameCount - mWindowStartFrames) * 1000.0 / elapsedMs;
+        double bps = (byteCount - mWindowStartBytes) * 1000.0 / elapsedMs;
+        startWindow(nowMs, frameCount, byteCount);
+
+        if (!saturated) {
+            // throughput is bound by workload, it says nothing about the limit
+            mBaselineFps = -1;
+            mBaselineBps = -1;
+            mLastStep = 0;
+            mSettling = false;
+            return mLimit;
+        }
+        if (mSettling) {
+            mSettling = false;
+            return mLimit;
+        }
+        if (mBaselineFps < 0) {
+            mBaselineFps = fps;
+            mBaselineBps = bps;
+            probe();
+            return mLimit;
+        }
+
+        double change = getRelativeChange(fps, bps);
+        int lastStep = mLastStep;
+        if (lastStep == 0) {
+            // holding a settled limit
+            if (++mHeldWindows >= mHoldWindows) {
+                mBaselineFps = fps;
+                mBaselineBps = bps;
+                probe();
+            }
+        } else if (change > mThreshold) {
+            // last move helped, keep going
+            mBaselineFps = fps;
+            mBaselineBps = bps;
+            if (!move(lastStep)) {
+                hold();
+            }
+        } else if (change < -mThreshold || lastStep > 0) {
+            // last move hurt, or an extra job did not help, undo it and settle
+            move(-lastStep);
+            hold();
+        } else {
+            // giving a job back did not cost anything, try one more
+            mBaselineFps = fps;
+            mBaselineBps = bps;
+            if (!move(lastStep)) {
+                hold();
+            }
+        }
+        return mLimit;
+    }
+
+    private void startWindow(long nowMs, long frameCount, long byteCount) {
+        mWindowStartMs = nowMs;
+        mWindowStartFrames = frameCount;
+        mWindowStartBytes = byteCount;
+    }
+
+    private void probe() {
+        mHeldWindows = 0;
+        if (!move(1) && !move(-1)) {
+            hold();
+        }
+    }
+
+    private void hold() {
+        mLastStep = 0;
+        mHeldWindows = 0;
+    }
+
+    private boolean move(int step) {
+        int limit = mLimit + step;
+        if (limit < mMinJobs || limit > mMaxJobs) {
+            return false;
+        }
+        mLimit = limit;
+        mLastStep = step;
+        mSettling = true;
+        return true;
+    }
+
+    /**
+     * Relative throughput change against baseline, averaged over frame and byte rates. Frame rate is ignored
+     * when no video frames were written, e.g. when only audio is transcoded.
+     */
+    private double getRelativeChange(double fps, double bps) {
+        double frameChange = mBaselineFps > 0 ? fps / mBaselineFps - 1 : 0;
+        double byteChange = mBaselineBps > 0 ? bps / mBaselineBps - 1 : 0;
+        if (mBaselineFps <= 0) {
+            return byteChange;
+        }
+        if (mBaselineBps <= 0) {
+            return frameChange;
+        }
+        return (frameChange + byteChange) / 2;
+    }
+}
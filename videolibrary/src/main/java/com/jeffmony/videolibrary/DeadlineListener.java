@@ -0,0 +1,24 @@
+package com.jeffmony.videolibrary;
+
+import androidx.annotation.NonNull;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Receives early warnings about jobs which are predicted to miss their deadlines
+ */
+public interface DeadlineListener {
+
+    /**
+     * Called once per job, on a Transformer monitoring thread, when predicted finish time of a job passes
+     * its deadline. The job keeps running, and the scheduler favours it from now on.
+     * @param jobId job id
+     * @param predictedFinishTimeMs predicted finish time, in milliseconds since epoch
+     * @param deadlineMs deadline, in milliseconds since epoch
+     */
+    void onDeadlineAtRisk(@NonNull String jobId, long predictedFinishTimeMs, long deadlineMs);
+}
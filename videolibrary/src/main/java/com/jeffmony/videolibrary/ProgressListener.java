@@ -0,0 +1,23 @@
+package com.jeffmony.videolibrary;
+
+import androidx.annotation.NonNull;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Receives progress of running jobs
+ */
+public interface ProgressListener {
+
+    /**
+     * Called on the executor the listener was set with, no more often than the configured interval and only
+     * when progress moved by at least the configured delta. Reaching 1 is always reported.
+     * @param jobId job id
+     * @param progress job progress, from 0 to 1, tracks weighted by their duration
+     */
+    void onProgress(@NonNull String jobId, float progress);
+}
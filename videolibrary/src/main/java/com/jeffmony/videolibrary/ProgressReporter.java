@@ -0,0 +1,54 @@
+package com.jeffmony.videolibrary;
+
+import androidx.annotation.NonNull;
+
+import com.jeffmony.videolibrary.utils.LogUtils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Immutable progress listener configuration shared by all jobs of a Transformer. Jobs decide on their own
+ * threads when to report, so reporting needs no locks; a task is only allocated for a report which is sent.
+ */
+final class ProgressReporter {
+
+    private static final String TAG = "ProgressReporter";
+
+    @NonNull private final ProgressListener mListener;
+    @NonNull private final Executor mExecutor;
+    final long mMinIntervalNs;
+    final float mMinDelta;
+
+    ProgressReporter(@NonNull ProgressListener listener, @NonNull Executor executor, long minIntervalMs, float minDelta) {
+        if (minIntervalMs < 0 || minDelta < 0) {
+            throw new IllegalArgumentException("Progress interval and delta should not be negative");
+        }
+        mListener = listener;
+        mExecutor = executor;
+        mMinIntervalNs = TimeUnit.MILLISECONDS.toNanos(minIntervalMs);
+        mMinDelta = minDelta;
+    }
+
+    /**
+     * Check if progress moved far enough since last report to be reported
+     */
+    boolean shouldReport(float progress, float lastProgress) {
+        return (progress > lastProgress && progress - lastProgress >= mMinDelta) || (progress >= 1 && lastProgress < 1);
+    }
+
+    void report(@NonNull String jobId, float progress) {
+        try {
+            mExecutor.execute(() -> mListener.onProgress(jobId, progress));
+        } catch (RejectedExecutionException e) {
+            LogUtils.w(TAG, "Progress of job " + jobId + " not reported: " + e);
+        }
+    }
+}
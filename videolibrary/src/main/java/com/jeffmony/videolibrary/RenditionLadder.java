@@ -0,0 +1,145 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.codec.Decoder;
+import com.jeffmony.videolibrary.codec.Encoder;
+import com.jeffmony.videolibrary.io.MediaSource;
+import com.jeffmony.videolibrary.io.MediaTarget;
+import com.jeffmony.videolibrary.render.GlVideoRenderer;
+import com.jeffmony.videolibrary.transcoder.TrackTranscoderOptions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Several renditions of the video track of one source, e.g. a 1080p/720p/480p ladder for adaptive streaming,
+ * each written to its own target. Its track transforms are meant to run as one job, see
+ * {@link Transformer#transform(String, List)}: the first rendition decodes the source track and the others
+ * render the same decoded frames into their own encoders, so extraction and decoding cost stays the same as
+ * renditions are added. In every target, video is track 0 and copied audio tracks follow it in the order they
+ * were added. Renditions are always encoded, never passed through, so that their key frames stay aligned.
+ */
+public class RenditionLadder {
+
+    private final List<TrackTransform> mTrackTransforms;
+
+    private RenditionLadder(@NonNull List<TrackTransform> trackTransforms) {
+        mTrackTransforms = Collections.unmodifiableList(trackTransforms);
+    }
+
+    /**
+     * Get track transforms of all renditions, to be submitted as one job
+     */
+    @NonNull
+    public List<TrackTransform> getTrackTransforms() {
+        return mTrackTransforms;
+    }
+
+    public static class Builder {
+        private final MediaSource mediaSource;
+        private final int videoTrack;
+        private final Decoder decoder;
+
+        private final List<Integer> audioTracks = new ArrayList<>();
+        private final List<MediaTarget> mediaTargets = new ArrayList<>();
+        private final List<MediaFormat> targetFormats = new ArrayList<>();
+        private final List<Encoder> encoders = new ArrayList<>();
+        private final List<GlVideoRenderer> renderers = new ArrayList<>();
+        private final List<TrackTranscoderOptions> options = new ArrayList<>();
+
+        /**
+         * Create a builder
+         * @param mediaSource source media, shared by all renditions
+         * @param videoTrack source video track
+         * @param decoder the only decoder of the video track
+         */
+        public Builder(@NonNull MediaSource mediaSource, int videoTrack, @NonNull Decoder decoder) {
+            this.mediaSource = mediaSource;
+            this.videoTrack = videoTrack;
+            this.decoder = decoder;
+        }
+
+        /**
+         * Copy a source audio track as is into every target
+         * @param sourceTrack source audio track
+         */
+        public Builder addAudioTrack(int sourceTrack) {
+            audioTracks.add(sourceTrack);
+            return this;
+        }
+
+        /**
+         * Add a rendition
+         * @param mediaTarget target of this rendition, with room for video and every copied audio track
+         * @param targetFormat target video format, e.g. its size, bitrate and frame rate
+         * @param encoder video encoder of this rendition
+         * @param renderer renderer of this rendition, null to draw frames without filters
+         */
+        public Builder addRendition(@NonNull MediaTarget mediaTarget,
+                                    @NonNull MediaFormat targetFormat,
+                                    @NonNull Encoder encoder,
+                                    @Nullable GlVideoRenderer renderer) {
+            return addRendition(mediaTarget, targetFormat, encoder, renderer, new TrackTranscoderOptions());
+        }
+
+        /**
+         * Add a rendition with transcoder options, e.g. a lower frame rate. Renditions share the decoder of
+         * the first one, so they can not be pipelined.
+         * @param options transcoder options of this rendition, not pipelined; a copy with passthrough turned off
+         *                is used, options passed in are left as they are
+         */
+        public Builder addRendition(@NonNull MediaTarget mediaTarget,
+                                    @NonNull MediaFormat targetFormat,
+                                    @NonNull Encoder encoder,
+                                    @Nullable GlVideoRenderer renderer,
+                                    @NonNull TrackTranscoderOptions options) {
+            if (options.isPipelined()) {
+                throw new IllegalArgumentException("Rendition can not be pipelined, it shares the decoder of the first one");
+            }
+            mediaTargets.add(mediaTarget);
+            targetFormats.add(targetFormat);
+            encoders.add(encoder);
+            renderers.add(renderer != null ? renderer : new GlVideoRenderer(null));
+            this.options.add(new TrackTranscoderOptions(options).setPassthroughIfCompatible(false));
+            return this;
+        }
+
+        public RenditionLadder build() {
+            if (mediaTargets.isEmpty()) {
+                throw new IllegalStateException("Rendition ladder should have at least one rendition");
+            }
+            List<TrackTransform> trackTransforms = new ArrayList<>();
+            for (int index = 0; index < mediaTargets.size(); index++) {
+                trackTransforms.add(new TrackTransform.Builder(mediaSource, videoTrack, mediaTargets.get(index))
+                        .setTargetTrack(0)
+                        // followers draw frames decoded by the first rendition
+                        .setDecoder(index == 0 ? decoder : null)
+                        .setRenderer(renderers.get(index))
+                        .setEncoder(encoders.get(index))
+                        .setTargetFormat(targetFormats.get(index))
+                        .setOptions(options.get(index))
+                        .build());
+            }
+            for (int index = 0; index < mediaTargets.size(); index++) {
+                for (int audioTrack = 0; audioTrack < audioTracks.size(); audioTrack++) {
+                    trackTransforms.add(new TrackTransform.Builder(mediaSource, audioTracks.get(audioTrack),
+                            mediaTargets.get(index))
+                            .setTargetTrack(audioTrack + 1)
+                            .build());
+                }
+            }
+            return new RenditionLadder(trackTransforms);
+        }
+    }
+}
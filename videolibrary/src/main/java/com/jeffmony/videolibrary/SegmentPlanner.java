@@ -0,0 +1,128 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaExtractor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.io.MediaRange;
+import com.jeffmony.videolibrary.io.MediaSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Splits a selection of a video track into segments which start at sync samples, so that every segment
+ * can be decoded on its own.
+ */
+final class SegmentPlanner {
+
+    private SegmentPlanner() {
+    }
+
+    /**
+     * Collect presentation times of all sync samples of a track. Only sample metadata is read.
+     * @param mediaSource media source with nothing selected yet, left at an undefined position
+     * @param track video track index
+     * @return sorted sync sample times, in microseconds
+     */
+    @NonNull
+    static long[] findSyncSampleTimes(@NonNull MediaSource mediaSource, int track) {
+        mediaSource.selectTrack(track);
+        long[] syncSampleTimes = new long[64];
+        int count = 0;
+        while (mediaSource.getSampleTrackIndex() == track) {
+            if ((mediaSource.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                if (count == syncSampleTimes.length) {
+                    syncSampleTimes = Arrays.copyOf(syncSampleTimes, count * 2);
+                }
+                syncSampleTimes[count++] = mediaSource.getSampleTime();
+            }
+            mediaSource.advance();
+        }
+        syncSampleTimes = Arrays.copyOf(syncSampleTimes, count);
+        Arrays.sort(syncSampleTimes);
+        return syncSampleTimes;
+    }
+
+    /**
+     * Split a selection into up to maxSegments segments of roughly equal duration. Every segment but the first
+     * one starts at a sync sample, first one starts at selection start.
+     * @param syncSampleTimes sorted sync sample times
+     * @param selection selection, its end may be beyond track end
+     * @param durationUs track duration, used to size segments when selection is open ended
+     * @param minSegmentDurationUs shortest segment worth running on its own
+     * @param maxSegments max number of segments, greater than 0
+     * @return consecutive segments covering the whole selection
+     */
+    @NonNull
+    static List<MediaRange> plan(@NonNull long[] syncSampleTimes,
+                                 @NonNull MediaRange selection,
+                                 long durationUs,
+                                 long minSegmentDurationUs,
+                                 int maxSegments) {
+        long start = selection.getStart();
+        long end = Math.min(selection.getEnd(), durationUs);
+        long selectedDurationUs = end - start;
+        int segmentCount = (int) Math.max(1, Math.min(maxSegments, selectedDurationUs / minSegmentDurationUs));
+
+        List<MediaRange> segments = new ArrayList<>(segmentCount);
+        long segmentStart = start;
+        for (int segment = 1; segment < segmentCount; segment++) {
+            long idealStart = start + selectedDurationUs * segment / segmentCount;
+            long syncSampleTime = findSyncSampleAtOrAfter(syncSampleTimes, idealStart);
+            if (syncSampleTime <= segmentStart || syncSampleTime >= end) {
+                // GOPs are longer than segments, merge into previous segment
+                continue;
+            }
+            segments.add(new MediaRange(segmentStart, syncSampleTime));
+            segmentStart = syncSampleTime;
+        }
+        // last segment keeps original end, so that nothing is lost if container duration is not precise
+        segments.add(new MediaRange(segmentStart, selection.getEnd()));
+        return segments;
+    }
+
+    /**
+     * Find the part of a selection which consists of whole GOPs, so that it can be copied without re-encoding.
+     * It starts at the first sync sample at or after selection start and ends at the last sync sample at or before
+     * selection end, or at selection end if selection reaches the end of the track.
+     * @param syncSampleTimes sorted sync sample times
+     * @param selection selection, its end may be beyond track end
+     * @param durationUs track duration
+     * @return range of whole GOPs, null if selection does not contain any
+     */
+    @Nullable
+    static MediaRange findCopyableRange(@NonNull long[] syncSampleTimes,
+                                        @NonNull MediaRange selection,
+                                        long durationUs) {
+        long start = findSyncSampleAtOrAfter(syncSampleTimes, selection.getStart());
+        long end = selection.getEnd() >= durationUs
+                ? selection.getEnd()
+                : findSyncSampleAtOrBefore(syncSampleTimes, selection.getEnd());
+        return start < end ? new MediaRange(start, end) : null;
+    }
+
+    private static long findSyncSampleAtOrAfter(@NonNull long[] syncSampleTimes, long time) {
+        int index = Arrays.binarySearch(syncSampleTimes, time);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index < syncSampleTimes.length ? syncSampleTimes[index] : Long.MAX_VALUE;
+    }
+
+    private static long findSyncSampleAtOrBefore(@NonNull long[] syncSampleTimes, long time) {
+        int index = Arrays.binarySearch(syncSampleTimes, time);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return index >= 0 ? syncSampleTimes[index] : Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,285 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.io.MediaExtractorMediaSource;
+import com.jeffmony.videolibrary.io.MediaSource;
+import com.jeffmony.videolibrary.io.MediaTarget;
+import com.jeffmony.videolibrary.utils.LogUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Remuxes single track pieces into one target. Pieces of a target track are concatenated in order, each one
+ * shifted by its offset, and target tracks are interleaved by presentation time. No decoding happens, so
+ * pieces of a track must share codec config. The only exception is a track with a piece copied from the source:
+ * track keeps codec config of the copied piece, other pieces of the same mime type send theirs in band on their
+ * key frames, and the piece after them sends the track codec config again.
+ */
+final class SegmentStitcher {
+
+    private static final String TAG = "SegmentStitcher";
+
+    private static final int DEFAULT_SAMPLE_BUFFER_SIZE = 1024 * 1024;
+
+    private static final String[] CODEC_CONFIG_KEYS = {"csd-0", "csd-1", "csd-2"};
+
+    static final class Piece {
+        @NonNull final String mPath;
+        final long mOffsetUs;
+        final boolean mCopied;
+
+        Piece(@NonNull String path, long offsetUs) {
+            this(path, offsetUs, false);
+        }
+
+        /**
+         * @param copied true if samples of the piece were copied from the source, its codec config becomes
+         *               codec config of the track
+         */
+        Piece(@NonNull String path, long offsetUs, boolean copied) {
+            mPath = path;
+            mOffsetUs = offsetUs;
+            mCopied = copied;
+        }
+    }
+
+    private final List<List<Piece>> mTrackPieces;
+
+    /**
+     * @param trackPieces pieces of every target track, in target track order
+     */
+    SegmentStitcher(@NonNull List<List<Piece>> trackPieces) {
+        mTrackPieces = trackPieces;
+    }
+
+    void stitch(@NonNull MediaTarget mediaTarget) throws Exception {
+        List<TrackCursor> cursors = new ArrayList<>(mTrackPieces.size());
+        try {
+            for (int track = 0; track < mTrackPieces.size(); track++) {
+                cursors.add(new TrackCursor(track, mTrackPieces.get(track)));
+            }
+            for (TrackCursor cursor : cursors) {
+                mediaTarget.addTrack(cursor.mFormat, cursor.mTargetTrack);
+            }
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Stitching cancelled");
+                }
+                TrackCursor cursor = nextCursor(cursors);
+                if (cursor == null) {
+                    break;
+                }
+                cursor.writeSample(mediaTarget, info);
+                cursor.advance();
+            }
+        } finally {
+            for (TrackCursor cursor : cursors) {
+                cursor.release();
+            }
+        }
+    }
+
+    @Nullable
+    private static TrackCursor nextCursor(@NonNull List<TrackCursor> cursors) throws Exception {
+        TrackCursor nextCursor = null;
+        for (TrackCursor cursor : cursors) {
+            if (cursor.hasSample()
+                    && (nextCursor == null || cursor.getSampleTime() < nextCursor.getSampleTime())) {
+                nextCursor = cursor;
+            }
+        }
+        return nextCursor;
+    }
+
+    private static boolean isSameCodecConfig(@NonNull MediaFormat format, @NonNull MediaFormat otherFormat) {
+        for (String key : CODEC_CONFIG_KEYS) {
+            ByteBuffer csd = format.containsKey(key) ? format.getByteBuffer(key) : null;
+            ByteBuffer otherCsd = otherFormat.containsKey(key) ? otherFormat.getByteBuffer(key) : null;
+            if (csd == null ? otherCsd != null : !csd.equals(otherCsd)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get codec config of a format, e.g. SPS and PPS, as one Annex B buffer
+     */
+    @NonNull
+    private static byte[] getCodecConfig(@NonNull MediaFormat format) {
+        ByteArrayOutputStream codecConfig = new ByteArrayOutputStream();
+        for (String key : CODEC_CONFIG_KEYS) {
+            if (format.containsKey(key)) {
+                ByteBuffer config = format.getByteBuffer(key).duplicate();
+                byte[] bytes = new byte[config.remaining()];
+                config.get(bytes);
+                codecConfig.write(bytes, 0, bytes.length);
+            }
+        }
+        return codecConfig.toByteArray();
+    }
+
+    private static int getSampleBufferSize(@NonNull MediaFormat format) {
+        return format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                : DEFAULT_SAMPLE_BUFFER_SIZE;
+    }
+
+    private static class TrackCursor {
+        private final int mTargetTrack;
+        private final List<Piece> mPieces;
+        private final boolean mHasCopiedPiece;
+        private MediaFormat mFormat;
+        private ByteBuffer mBuffer;
+
+        private int mPieceIndex = -1;
+        @Nullable private MediaSource mSource;
+
+        // codec config sent in band on key frames of current piece, and if it is sent only on the first one
+        @Nullable private byte[] mInBandCodecConfig;
+        private boolean mInBandOnce;
+        private boolean mSentInBand;
+        @Nullable private ByteBuffer mInBandSample;
+
+        private TrackCursor(int targetTrack, @NonNull List<Piece> pieces) throws Exception {
+            mTargetTrack = targetTrack;
+            mPieces = pieces;
+            Piece copiedPiece = null;
+            for (Piece piece : pieces) {
+                if (piece.mCopied) {
+                    copiedPiece = piece;
+                    break;
+                }
+            }
+            mHasCopiedPiece = copiedPiece != null;
+            if (copiedPiece != null) {
+                MediaSource source = new MediaExtractorMediaSource(copiedPiece.mPath);
+                mFormat = source.getTrackFormat(0);
+                source.release();
+            }
+            openNextPiece();
+            if (mSource == null) {
+                throw new Exception("Target track " + targetTrack + " has no samples");
+            }
+        }
+
+        private void writeSample(@NonNull MediaTarget mediaTarget, @NonNull MediaCodec.BufferInfo info) {
+            int size = mSource.readSampleData(mBuffer, 0);
+            boolean isKeyFrame = (mSource.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+            int flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            if (mInBandCodecConfig == null || !isKeyFrame) {
+                info.set(0, size, getSampleTime(), flags);
+                mediaTarget.writeSampleData(mTargetTrack, mBuffer, info);
+                return;
+            }
+            int inBandSize = mInBandCodecConfig.length + size;
+            if (mInBandSample == null || mInBandSample.capacity() < inBandSize) {
+                mInBandSample = ByteBuffer.allocateDirect(inBandSize);
+            }
+            ByteBuffer data = mBuffer.duplicate();
+            data.position(0);
+            data.limit(size);
+            mInBandSample.clear();
+            mInBandSample.put(mInBandCodecConfig);
+            mInBandSample.put(data);
+            mInBandSample.flip();
+            info.set(0, inBandSize, getSampleTime(), flags);
+            mediaTarget.writeSampleData(mTargetTrack, mInBandSample, info);
+            if (mInBandOnce) {
+                mInBandCodecConfig = null;
+            }
+        }
+
+        private boolean hasSample() {
+            return mSource != null;
+        }
+
+        private long getSampleTime() {
+            return mSource.getSampleTime() + mPieces.get(mPieceIndex).mOffsetUs;
+        }
+
+        private void advance() throws Exception {
+            mSource.advance();
+            if (mSource.getSampleTrackIndex() < 0) {
+                openNextPiece();
+            }
+        }
+
+        /**
+         * Move to the next piece which has samples, or to the end
+         */
+        private void openNextPiece() throws Exception {
+            release();
+            while (++mPieceIndex < mPieces.size()) {
+                MediaSource source = new MediaExtractorMediaSource(mPieces.get(mPieceIndex).mPath);
+                source.selectTrack(0);
+                if (source.getSampleTrackIndex() < 0) {
+                    LogUtils.w(TAG, "Skipping empty piece " + mPieces.get(mPieceIndex).mPath);
+                    source.release();
+                    continue;
+                }
+                MediaFormat format = source.getTrackFormat(0);
+                if (mFormat == null) {
+                    mFormat = format;
+                }
+                try {
+                    setInBandCodecConfig(format);
+                } catch (Exception e) {
+                    source.release();
+                    throw e;
+                }
+                int bufferSize = getSampleBufferSize(format);
+                if (mBuffer == null || mBuffer.capacity() < bufferSize) {
+                    mBuffer = ByteBuffer.allocateDirect(Math.max(bufferSize, getSampleBufferSize(mFormat)));
+                }
+                mSource = source;
+                return;
+            }
+        }
+
+        /**
+         * Decide which codec config a piece has to send in band
+         */
+        private void setInBandCodecConfig(@NonNull MediaFormat format) throws Exception {
+            if (isSameCodecConfig(mFormat, format)) {
+                // decoder still has codec config of the previous piece, restore the one of the track
+                mInBandCodecConfig = mSentInBand ? getCodecConfig(mFormat) : null;
+                mInBandOnce = true;
+                mSentInBand = false;
+                return;
+            }
+            String mimeType = mFormat.getString(MediaFormat.KEY_MIME);
+            if (!mHasCopiedPiece || mimeType == null || !mimeType.equals(format.getString(MediaFormat.KEY_MIME))) {
+                throw new Exception("Piece " + mPieces.get(mPieceIndex).mPath
+                        + " has different codec config, it can not be stitched without re-encoding");
+            }
+            mInBandCodecConfig = getCodecConfig(format);
+            mInBandOnce = false;
+            mSentInBand = true;
+        }
+
+        private void release() {
+            if (mSource != null) {
+                mSource.release();
+                mSource = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.jeffmony.videolibrary;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.io.MediaSource;
+import com.jeffmony.videolibrary.io.MediaTarget;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Creates track transforms of a {@link SegmentedTransform}. Every segment runs with its own codecs and
+ * renderer, so a new transform with new instances has to be created on each call.
+ */
+public interface SegmentTrackTransformFactory {
+
+    /**
+     * Create a transform of a source track
+     * @param mediaSource source limited to a segment or to the whole selection, owned by caller of this method
+     * @param sourceTrack source track index
+     * @param mediaTarget temporary single track target, owned by caller of this method
+     * @param targetTrack target track index in mediaTarget
+     * @return track transform, null to drop a non video track from the output
+     */
+    @Nullable
+    TrackTransform create(@NonNull MediaSource mediaSource,
+                          int sourceTrack,
+                          @NonNull MediaTarget mediaTarget,
+                          int targetTrack) throws Exception;
+}
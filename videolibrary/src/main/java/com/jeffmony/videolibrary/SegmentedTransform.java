@@ -0,0 +1,210 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaMuxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.io.MediaRange;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Description of a transformation which splits the video track of a source file into keyframe aligned
+ * segments, transcodes the segments in parallel and stitches them into one output, see
+ * {@link Transformer#transform(String, SegmentedTransform)}. In smart trim mode, only the partial GOPs at both ends
+ * of the selection are transcoded and the whole GOPs between them are copied.
+ */
+public class SegmentedTransform {
+
+    public static final long DEFAULT_MIN_SEGMENT_DURATION_US = TimeUnit.SECONDS.toMicros(10);
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_US = TimeUnit.SECONDS.toMicros(30);
+
+    private final String mSourcePath;
+    private final String mTargetPath;
+    private final SegmentTrackTransformFactory mTrackTransformFactory;
+    private final MediaRange mSelection;
+    private final long mMinSegmentDurationUs;
+    private final int mMaxSegments;
+    private final int mOutputFormat;
+    private final boolean mResumable;
+    private final long mCheckpointIntervalUs;
+    private final boolean mSmartTrim;
+
+    private SegmentedTransform(@NonNull String sourcePath,
+                               @NonNull String targetPath,
+                               @NonNull SegmentTrackTransformFactory trackTransformFactory,
+                               @NonNull MediaRange selection,
+                               long minSegmentDurationUs,
+                               int maxSegments,
+                               int outputFormat,
+                               boolean resumable,
+                               long checkpointIntervalUs,
+                               boolean smartTrim) {
+        mSourcePath = sourcePath;
+        mTargetPath = targetPath;
+        mTrackTransformFactory = trackTransformFactory;
+        mSelection = selection;
+        mMinSegmentDurationUs = minSegmentDurationUs;
+        mMaxSegments = maxSegments;
+        mOutputFormat = outputFormat;
+        mResumable = resumable;
+        mCheckpointIntervalUs = checkpointIntervalUs;
+        mSmartTrim = smartTrim;
+    }
+
+    @NonNull
+    public String getSourcePath() {
+        return mSourcePath;
+    }
+
+    @NonNull
+    public String getTargetPath() {
+        return mTargetPath;
+    }
+
+    @NonNull
+    public SegmentTrackTransformFactory getTrackTransformFactory() {
+        return mTrackTransformFactory;
+    }
+
+    @NonNull
+    public MediaRange getSelection() {
+        return mSelection;
+    }
+
+    public long getMinSegmentDurationUs() {
+        return mMinSegmentDurationUs;
+    }
+
+    /**
+     * Get max number of segments, 0 means as many as worker slots and decoder instances for source video allow
+     */
+    public int getMaxSegments() {
+        return mMaxSegments;
+    }
+
+    public int getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    public boolean isResumable() {
+        return mResumable;
+    }
+
+    public long getCheckpointIntervalUs() {
+        return mCheckpointIntervalUs;
+    }
+
+    public boolean isSmartTrim() {
+        return mSmartTrim;
+    }
+
+    public static class Builder {
+        private final String sourcePath;
+        private final String targetPath;
+        private final SegmentTrackTransformFactory trackTransformFactory;
+
+        private MediaRange selection;
+        private long minSegmentDurationUs = DEFAULT_MIN_SEGMENT_DURATION_US;
+        private int maxSegments;
+        private int outputFormat = MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4;
+        private boolean resumable;
+        private long checkpointIntervalUs = DEFAULT_CHECKPOINT_INTERVAL_US;
+        private boolean smartTrim;
+
+        public Builder(@NonNull String sourcePath,
+                       @NonNull String targetPath,
+                       @NonNull SegmentTrackTransformFactory trackTransformFactory) {
+            this.sourcePath = sourcePath;
+            this.targetPath = targetPath;
+            this.trackTransformFactory = trackTransformFactory;
+        }
+
+        public Builder setSelection(@Nullable MediaRange selection) {
+            this.selection = selection;
+            return this;
+        }
+
+        /**
+         * Set shortest segment worth running on its own codecs. Segments are never shorter than a GOP.
+         */
+        public Builder setMinSegmentDurationUs(long minSegmentDurationUs) {
+            if (minSegmentDurationUs <= 0) {
+                throw new IllegalArgumentException("Min segment duration should be greater than 0");
+            }
+            this.minSegmentDurationUs = minSegmentDurationUs;
+            return this;
+        }
+
+        /**
+         * Set max number of segments, 0 to use as many segments as worker slots and decoder instances for
+         * source video allow. Segments which do not get their codecs right away wait in the job queue.
+         */
+        public Builder setMaxSegments(int maxSegments) {
+            if (maxSegments < 0) {
+                throw new IllegalArgumentException("Max segments should not be negative");
+            }
+            this.maxSegments = maxSegments;
+            return this;
+        }
+
+        /**
+         * Set output container format, one of {@link MediaMuxer.OutputFormat} constants
+         */
+        public Builder setOutputFormat(int outputFormat) {
+            this.outputFormat = outputFormat;
+            return this;
+        }
+
+        /**
+         * Make transformation resumable. Every segment which is fully written becomes a checkpoint, recorded in
+         * a journal next to the target. If the process dies, transforming the same source into the same target
+         * again with the same settings skips checkpointed segments. Pieces and journal are kept when the
+         * transformation fails or is cancelled, and removed once the target is written.
+         * @param resumable true to keep checkpoints, false otherwise
+         */
+        public Builder setResumable(boolean resumable) {
+            this.resumable = resumable;
+            return this;
+        }
+
+        /**
+         * Set how much source duration a resumable transformation may have to redo after a restart. Segments
+         * of a resumable transformation are no longer than that, unless GOPs are longer.
+         */
+        public Builder setCheckpointIntervalUs(long checkpointIntervalUs) {
+            if (checkpointIntervalUs <= 0) {
+                throw new IllegalArgumentException("Checkpoint interval should be greater than 0");
+            }
+            this.checkpointIntervalUs = checkpointIntervalUs;
+            return this;
+        }
+
+        /**
+         * Trim by transcoding only what has to be. Video from selection start to the next sync sample and from
+         * the last sync sample to selection end is transcoded with transforms the factory creates, and whole
+         * GOPs in between are copied as is. Transcoded pieces must have the mime type of the source video, if
+         * their codec config differs from the source one, it is sent in band on their key frames. Other tracks
+         * are transcoded over the whole selection as usual. Segment duration and count settings do not apply.
+         * @param smartTrim true to copy whole GOPs of the selection, false to transcode everything
+         */
+        public Builder setSmartTrim(boolean smartTrim) {
+            this.smartTrim = smartTrim;
+            return this;
+        }
+
+        public SegmentedTransform build() {
+            return new SegmentedTransform(sourcePath, targetPath, trackTransformFactory,
+                    selection != null ? selection : new MediaRange(0, Long.MAX_VALUE),
+                    minSegmentDurationUs, maxSegments, outputFormat,
+                    resumable, checkpointIntervalUs, smartTrim);
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.io.MediaExtractorMediaSource;
+import com.jeffmony.videolibrary.io.MediaMuxerMediaTarget;
+import com.jeffmony.videolibrary.io.MediaRange;
+import com.jeffmony.videolibrary.io.MediaSource;
+import com.jeffmony.videolibrary.io.MediaTarget;
+import com.jeffmony.videolibrary.render.GlVideoRenderer;
+import com.jeffmony.videolibrary.utils.LogUtils;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Runs a {@link SegmentedTransform}. Video track is split into keyframe aligned segments by {@link SegmentPlanner},
+ * every segment becomes a job of its own, and so does every other track, which is transcoded over the whole
+ * selection in one piece. Jobs write single track temporary files next to the target and are queued to the
+ * {@link Transformer}, so codec admission decides how many segments actually run at once. When all jobs complete,
+ * {@link SegmentStitcher} remuxes the temporary files into the target, shifting each segment by its start.
+ * <p>
+ * Segment boundaries are sync samples, which assumes closed GOPs: frames displayed before a sync sample are
+ * decoded before it.
+ * <p>
+ * In smart trim mode the video track is split at the first and the last sync sample of the selection instead.
+ * Partial GOPs at both ends are transcoded, whole GOPs between them are copied by a passthrough job, and the
+ * stitcher keeps codec config of the copied piece, sending codec config of transcoded pieces in band.
+ * <p>
+ * A resumable transformation records every finished piece in a {@link TransformationJournal}, and a later
+ * run of the same transformation reuses recorded pieces instead of queueing their jobs again.
+ */
+final class SegmentedTransformationJob {
+
+    private static final String TAG = "SegmentedTransformationJob";
+
+    // numeric target format keys which change what a piece looks like
+    private static final String[] TARGET_FORMAT_KEYS = {
+            MediaFormat.KEY_WIDTH,
+            MediaFormat.KEY_HEIGHT,
+            MediaFormat.KEY_BIT_RATE,
+            MediaFormat.KEY_FRAME_RATE,
+            MediaFormat.KEY_I_FRAME_INTERVAL,
+            MediaFormat.KEY_SAMPLE_RATE,
+            MediaFormat.KEY_CHANNEL_COUNT
+    };
+
+    private final String mJobId;
+    private final SegmentedTransform mTransform;
+    private final Transformer mTransformer;
+
+    // written by the coordinator thread, guarded by this for status and progress checks from other threads
+    private final List<String> mChildJobIds = new ArrayList<>();
+    private final List<Future<Void>> mChildFutures = new ArrayList<>();
+    private final List<File> mChildFiles = new ArrayList<>();
+    private int mResumedPieceCount;
+    private boolean mSubmitted;
+
+    private final BlockingQueue<Integer> mDoneChildren = new LinkedBlockingQueue<>();
+    private final List<File> mTempFiles = new ArrayList<>();
+
+    @Nullable private TransformationJournal mJournal;
+
+    private volatile boolean mRunning;
+    private volatile float mFinalProgress = -1;
+
+    SegmentedTransformationJob(@NonNull String jobId,
+                               @NonNull SegmentedTransform transform,
+                               @NonNull Transformer transformer) {
+        mJobId = jobId;
+        mTransform = transform;
+        mTransformer = transformer;
+    }
+
+    /**
+     * Run on the calling thread, blocking until the target is written
+     * @throws Exception if any segment or track fails, or the calling thread is interrupted
+     */
+    void run() throws Exception {
+        mRunning = true;
+        boolean completed = false;
+        try {
+            List<List<SegmentStitcher.Piece>> trackPieces = submitJobs();
+            synchronized (this) {
+                mSubmitted = true;
+            }
+            awaitJobs();
+            stitch(trackPieces);
+            completed = true;
+        } finally {
+            release(completed);
+        }
+    }
+
+    @NonNull
+    private List<List<SegmentStitcher.Piece>> submitJobs() throws Exception {
+        String sourcePath = mTransform.getSourcePath();
+        MediaRange selection = mTransform.getSelection();
+
+        int videoTrack = -1;
+        int trackCount;
+        long videoDurationUs = Long.MAX_VALUE;
+        String videoMimeType = null;
+        MediaFormat videoFormat = null;
+        long[] syncSampleTimes;
+        MediaSource probe = new MediaExtractorMediaSource(sourcePath);
+        try {
+            trackCount = probe.getTrackCount();
+            for (int track = 0; track < trackCount; track++) {
+                MediaFormat format = probe.getTrackFormat(track);
+                String mimeType = format.getString(MediaFormat.KEY_MIME);
+                if (mimeType != null && mimeType.startsWith("video")) {
+                    videoTrack = track;
+                    videoMimeType = mimeType;
+                    videoFormat = format;
+                    if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                        videoDurationUs = format.getLong(MediaFormat.KEY_DURATION);
+                    }
+                    break;
+                }
+            }
+            if (videoTrack < 0) {
+                throw new Exception("Source " + sourcePath + " has no video track to segment");
+            }
+            syncSampleTimes = SegmentPlanner.findSyncSampleTimes(probe, videoTrack);
+        } finally {
+            probe.release();
+        }
+
+        List<MediaRange> segments;
+        int copiedSegment = -1;
+        if (mTransform.isSmartTrim()) {
+            segments = new ArrayList<>(3);
+            MediaRange copyableRange = SegmentPlanner.findCopyableRange(syncSampleTimes, selection, videoDurationUs);
+            if (copyableRange == null) {
+                LogUtils.i(TAG, "Job " + mJobId + " selection has no whole GOP to copy, transcoding all of it");
+                segments.add(selection);
+            } else {
+                if (selection.getStart() < copyableRange.getStart()) {
+                    segments.add(new MediaRange(selection.getStart(), copyableRange.getStart()));
+                }
+                copiedSegment = segments.size();
+                segments.add(copyableRange);
+                if (copyableRange.getEnd() < selection.getEnd()) {
+                    segments.add(new MediaRange(copyableRange.getEnd(), selection.getEnd()));
+                }
+                LogUtils.i(TAG, "Job " + mJobId + " copies " + copyableRange.getStart() + " to " + copyableRange.getEnd()
+                        + " us, transcodes " + (segments.size() - 1) + " boundary segments");
+            }
+        } else {
+            int maxSegments = mTransform.getMaxSegments() > 0
+                    ? mTransform.getMaxSegments()
+                    : mTransformer.getDefaultSegmentCount(videoMimeType);
+            long minSegmentDurationUs = mTransform.getMinSegmentDurationUs();
+            if (mTransform.isResumable()) {
+                // every segment is a checkpoint, keep them within checkpoint interval
+                long intervalUs = mTransform.getCheckpointIntervalUs();
+                long selectedDurationUs = Math.min(selection.getEnd(), videoDurationUs) - selection.getStart();
+                maxSegments = (int) Math.max(maxSegments, Math.min(Integer.MAX_VALUE, (selectedDurationUs + intervalUs - 1) / intervalUs));
+                minSegmentDurationUs = Math.min(minSegmentDurationUs, intervalUs);
+            }
+            segments = SegmentPlanner.plan(syncSampleTimes,
+                    selection,
+                    videoDurationUs,
+                    minSegmentDurationUs,
+                    maxSegments);
+            LogUtils.i(TAG, "Job " + mJobId + " split into " + segments.size() + " segments");
+        }
+
+        if (mTransform.isResumable()) {
+            mJournal = new TransformationJournal(new File(mTransform.getTargetPath() + ".journal"),
+                    getJournalHeader(segments, trackCount));
+        }
+
+        List<List<SegmentStitcher.Piece>> trackPieces = new ArrayList<>();
+        for (int track = 0; track < trackCount; track++) {
+            if (track == videoTrack) {
+                List<SegmentStitcher.Piece> pieces = new ArrayList<>(segments.size());
+                for (int segment = 0; segment < segments.size(); segment++) {
+                    MediaRange range = segments.get(segment);
+                    boolean copied = segment == copiedSegment;
+                    String path = submitJob(mJobId + "-segment-" + segment, range, track, videoFormat, copied);
+                    pieces.add(new SegmentStitcher.Piece(path, range.getStart() - selection.getStart(), copied));
+                }
+                trackPieces.add(pieces);
+            } else {
+                String path = submitJob(mJobId + "-track-" + track, selection, track, null, false);
+                if (path != null) {
+                    trackPieces.add(Collections.singletonList(new SegmentStitcher.Piece(path, 0)));
+                }
+            }
+        }
+        return trackPieces;
+    }
+
+    /**
+     * Queue a single track job
+     * @param videoFormat source video format if track is a video segment, null otherwise
+     * @param copy true to copy samples of a video segment as is instead of transforming them
+     * @return path of temporary file the job writes to, null if track was dropped
+     */
+    @Nullable
+    private String submitJob(@NonNull String childJobId,
+                             @NonNull MediaRange range,
+                             int track,
+                             @Nullable MediaFormat videoFormat,
+                             boolean copy) throws Exception {
+        String pieceName = childJobId.substring(mJobId.length() + 1);
+        File tempFile = new File(mTransform.getTargetPath() + "." + pieceName + ".tmp");
+        mTempFiles.add(tempFile);
+        if (mJournal != null && mJournal.isCommitted(pieceName, tempFile)) {
+            LogUtils.i(TAG, "Resuming job " + mJobId + ", " + pieceName + " is already done");
+            synchronized (this) {
+                mResumedPieceCount++;
+            }
+            return tempFile.getPath();
+        }
+        boolean isSegment = videoFormat != null;
+        MediaSource mediaSource = null;
+        MediaTarget mediaTarget = null;
+        try {
+            // transcoder starts decoding at the sync sample segment begins with
+            mediaSource = new MediaExtractorMediaSource(mTransform.getSourcePath(), range);
+            mediaTarget = new MediaMuxerMediaTarget(tempFile.getPath(), 1,
+                    mediaSource.getOrientationHint(), mTransform.getOutputFormat());
+
+            TrackTransform trackTransform = copy
+                    ? new TrackTransform.Builder(mediaSource, track, mediaTarget).setTargetTrack(0).build()
+                    : mTransform.getTrackTransformFactory().create(mediaSource, track, mediaTarget, 0);
+            if (trackTransform == null) {
+                if (isSegment) {
+                    throw new Exception("Video track can not be dropped from a segmented transform");
+                }
+                mediaSource.release();
+                mediaTarget.release();
+                return null;
+            }
+            if (!copy && videoFormat != null && mTransform.isSmartTrim()) {
+                checkSmartTrimTransform(trackTransform, videoFormat);
+            }
+            int childIndex = mChildFutures.size();
+            Future<Void> future = mTransformer.transform(childJobId,
+                    Collections.singletonList(trackTransform),
+                    Transformer.PRIORITY_NORMAL,
+                    Transformer.NO_DEADLINE,
+                    () -> mDoneChildren.add(childIndex));
+            synchronized (this) {
+                mChildJobIds.add(childJobId);
+                mChildFutures.add(future);
+                mChildFiles.add(tempFile);
+            }
+            return tempFile.getPath();
+        } catch (Exception e) {
+            if (mediaSource != null) {
+                mediaSource.release();
+            }
+            if (mediaTarget != null) {
+                mediaTarget.release();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Make sure a boundary segment of a smart trim is transcoded into a stream the copied GOPs can continue
+     */
+    private static void checkSmartTrimTransform(@NonNull TrackTransform trackTransform,
+                                                @NonNull MediaFormat videoFormat) throws Exception {
+        MediaFormat targetFormat = trackTransform.getTargetFormat();
+        String mimeType = videoFormat.getString(MediaFormat.KEY_MIME);
+        if (targetFormat == null || mimeType == null || !mimeType.equals(targetFormat.getString(MediaFormat.KEY_MIME))) {
+            throw new Exception("Smart trim needs boundary segments transcoded into source mime type " + mimeType);
+        }
+        // a boundary starts or ends mid GOP, copying it would leave frames without their reference
+        trackTransform.getOptions().setPassthroughIfCompatible(false);
+    }
+
+    /**
+     * Wait for jobs in the order they finish, checkpointing every piece as soon as it is written
+     */
+    private void awaitJobs() throws Exception {
+        for (int doneCount = 0; doneCount < mChildFutures.size(); doneCount++) {
+            int index = mDoneChildren.take();
+            try {
+                mChildFutures.get(index).get();
+            } catch (ExecutionException e) {
+                throw new Exception("Job " + mChildJobIds.get(index) + " failed", e.getCause());
+            } catch (CancellationException e) {
+                throw new Exception("Job " + mChildJobIds.get(index) + " was cancelled", e);
+            }
+            if (mJournal != null) {
+                String pieceName = mChildJobIds.get(index).substring(mJobId.length() + 1);
+                mJournal.commit(pieceName, mChildFiles.get(index));
+            }
+        }
+    }
+
+    /**
+     * Describe this transformation, a previous run can be resumed only if it was exactly the same
+     */
+    @NonNull
+    private String getJournalHeader(@NonNull List<MediaRange> segments, int trackCount) throws Exception {
+        MediaSource source = new MediaExtractorMediaSource(mTransform.getSourcePath());
+        long sourceSize = source.getSize();
+        source.release();
+
+        StringBuilder header = new StringBuilder()
+                .append(sourceSize).append(' ')
+                .append(mTransform.getOutputFormat()).append(' ')
+                .append(mTransform.getSelection().getStart()).append(' ')
+                .append(mTransform.getSelection().getEnd()).append(' ')
+                .append(mTransform.isSmartTrim());
+        for (MediaRange segment : segments) {
+            header.append(' ').append(segment.getStart());
+        }
+        for (int track = 0; track < trackCount; track++) {
+            header.append(' ').append(describeTrackTransform(track));
+        }
+        return header.append(' ').append(mTransform.getSourcePath().replace('\n', ' ')).toString();
+    }
+
+    /**
+     * Describe settings of a track transform the factory creates: target format, encoder and renderer filters.
+     * Factory is called with a placeholder target, transform is only inspected, its codecs are never started.
+     */
+    @NonNull
+    private String describeTrackTransform(int track) throws Exception {
+        MediaSource mediaSource = new MediaExtractorMediaSource(mTransform.getSourcePath(), mTransform.getSelection());
+        try {
+            TrackTransform trackTransform = mTransform.getTrackTransformFactory()
+                    .create(mediaSource, track, new PlaceholderMediaTarget(), 0);
+            if (trackTransform == null) {
+                return track + ":dropped";
+            }
+            StringBuilder description = new StringBuilder().append(track).append(':');
+            MediaFormat targetFormat = trackTransform.getTargetFormat();
+            if (targetFormat == null) {
+                description.append("copy");
+            } else {
+                description.append(targetFormat.getString(MediaFormat.KEY_MIME));
+                for (String key : TARGET_FORMAT_KEYS) {
+                    if (targetFormat.containsKey(key)) {
+                        description.append(',').append(key).append('=').append(getNumber(targetFormat, key));
+                    }
+                }
+            }
+            if (trackTransform.getEncoder() != null) {
+                description.append(",encoder=").append(trackTransform.getEncoder().getClass().getName());
+            }
+            if (trackTransform.getRenderer() instanceof GlVideoRenderer) {
+                description.append(",filters=").append(((GlVideoRenderer) trackTransform.getRenderer()).getFilterCount());
+            }
+            return description.toString().replace(' ', '_');
+        } finally {
+            mediaSource.release();
+        }
+    }
+
+    private void stitch(@NonNull List<List<SegmentStitcher.Piece>> trackPieces) throws Exception {
+        MediaSource source = new MediaExtractorMediaSource(mTransform.getSourcePath());
+        int orientationHint = source.getOrientationHint();
+        source.release();
+
+        MediaTarget mediaTarget = new MediaMuxerMediaTarget(mTransform.getTargetPath(),
+                trackPieces.size(), orientationHint, mTransform.getOutputFormat());
+        try {
+            new SegmentStitcher(trackPieces).stitch(mediaTarget);
+        } finally {
+            mediaTarget.release();
+        }
+    }
+
+    @NonNull
+    private static Number getNumber(@NonNull MediaFormat format, @NonNull String key) {
+        // numeric values are integers in most formats, floats or longs in some
+        try {
+            return format.getInteger(key);
+        } catch (ClassCastException e) {
+            try {
+                return format.getFloat(key);
+            } catch (ClassCastException e2) {
+                return format.getLong(key);
+            }
+        }
+    }
+
+    /**
+     * Target handed to track transform factory when a transform is only described, never written to
+     */
+    private static final class PlaceholderMediaTarget implements MediaTarget {
+
+        @Override
+        public int addTrack(@NonNull MediaFormat mediaFormat, @IntRange(from = 0) int targetTrack) {
+            return targetTrack;
+        }
+
+        @Override
+        public void writeSampleData(int targetTrack, @NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info) {
+            throw new IllegalStateException("Placeholder target can not be written to");
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @NonNull
+        @Override
+        public String getOutputFilePath() {
+            return "";
+        }
+    }
+
+    /**
+     * Get status of a segmented transformation which is not over yet, from statuses of its jobs: running while
+     * one of them runs, or while there is no job to wait for, e.g. while planning or stitching; paused or
+     * queued while every job left waits for a worker or codecs
+     * @return one of TransformationJob.STATUS_* constants
+     */
+    int getStatus() {
+        if (!mRunning) {
+            return TransformationJob.STATUS_QUEUED;
+        }
+        boolean waiting = false;
+        boolean paused = false;
+        for (String childJobId : getChildJobIds()) {
+            int status = mTransformer.getStatus(childJobId);
+            if (status == TransformationJob.STATUS_RUNNING) {
+                return TransformationJob.STATUS_RUNNING;
+            } else if (status == TransformationJob.STATUS_PAUSED) {
+                paused = true;
+            } else if (status == TransformationJob.STATUS_QUEUED) {
+                waiting = true;
+            }
+        }
+        if (paused) {
+            return TransformationJob.STATUS_PAUSED;
+        }
+        return waiting ? TransformationJob.STATUS_QUEUED : TransformationJob.STATUS_RUNNING;
+    }
+
+    /**
+     * Get progress as a share of pieces done, every segment and track job counting the same. Pieces resumed
+     * from the journal count as done. Progress is 0 until every job is queued.
+     * @return progress from 0 to 1
+     */
+    float getProgress() {
+        float finalProgress = mFinalProgress;
+        if (finalProgress >= 0) {
+            return finalProgress;
+        }
+        List<String> childJobIds;
+        int resumedPieceCount;
+        synchronized (this) {
+            if (!mSubmitted) {
+                return 0;
+            }
+            childJobIds = new ArrayList<>(mChildJobIds);
+            resumedPieceCount = mResumedPieceCount;
+        }
+        int pieceCount = childJobIds.size() + resumedPieceCount;
+        if (pieceCount == 0) {
+            return 0;
+        }
+        float progress = resumedPieceCount;
+        for (String childJobId : childJobIds) {
+            progress += Math.max(0, mTransformer.getProgress(childJobId));
+        }
+        return progress / pieceCount;
+    }
+
+    /**
+     * Cancel every job queued so far. Jobs queued later are cancelled by the coordinator, which is interrupted
+     * by then.
+     */
+    void cancelJobs() {
+        List<Future<Void>> childFutures;
+        synchronized (this) {
+            childFutures = new ArrayList<>(mChildFutures);
+        }
+        for (Future<Void> childFuture : childFutures) {
+            childFuture.cancel(true);
+        }
+    }
+
+    @NonNull
+    private synchronized List<String> getChildJobIds() {
+        return new ArrayList<>(mChildJobIds);
+    }
+
+    private void release(boolean success) {
+        // job statuses are gone after this, keep where the transformation got to
+        mFinalProgress = success ? 1 : getProgress();
+        for (int index = 0; index < mChildFutures.size(); index++) {
+            mChildFutures.get(index).cancel(true);
+            // child job statuses are not interesting once the segmented job is over
+            if (!mTransformer.removeJob(mChildJobIds.get(index))) {
+                LogUtils.w(TAG, "Job " + mChildJobIds.get(index) + " is still stopping");
+            }
+        }
+        if (mJournal != null && !success) {
+            // keep checkpoints for the next run, pieces which are not in the journal are redone anyway
+            LogUtils.i(TAG, "Keeping checkpoints of job " + mJobId);
+        } else {
+            for (File tempFile : mTempFiles) {
+                if (tempFile.exists() && !tempFile.delete()) {
+                    LogUtils.w(TAG, "Failed to delete " + tempFile);
+                }
+            }
+            if (mJournal != null) {
+                mJournal.delete();
+            }
+        }
+        if (!success) {
+            File targetFile = new File(mTransform.getTargetPath());
+            if (targetFile.exists() && !targetFile.delete()) {
+                LogUtils.w(TAG, "Failed to delete " + targetFile);
+            }
+        }
+        LogUtils.i(TAG, "Segmented transformation " + mJobId + " " + (success ? "completed" : "failed"));
+    }
+}
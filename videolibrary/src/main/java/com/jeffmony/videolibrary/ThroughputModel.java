@@ -0,0 +1,186 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.io.MediaCutList;
+import com.jeffmony.videolibrary.io.MediaRange;
+import com.jeffmony.videolibrary.io.MediaSource;
+import com.jeffmony.videolibrary.render.GlVideoRenderer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Online model of job speed, in video frames per second, learned from finished jobs. Jobs are grouped by
+ * source and target video codec, target resolution tier and number of filters; speed of a group is an
+ * exponentially weighted average of what its jobs achieved while running, so it follows changes such as
+ * thermal throttling or a different number of jobs sharing the hardware.
+ * <p>
+ * Jobs without a video track have no profile and are never predicted, they are cheap compared to video.
+ */
+final class ThroughputModel {
+
+    static final float DEFAULT_FRAME_RATE = 30;
+    // prior for a group nothing is known about yet, roughly what a mid range hardware encoder does
+    static final double DEFAULT_PIXEL_RATE = 1920.0 * 1080 * 60;
+    static final double PASSTHROUGH_FRAME_RATE = 2000;
+
+    private static final float SMOOTHING = 0.3f;
+    private static final long MIN_OBSERVATION_NS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MIN_RUNNING_OBSERVATION_NS = TimeUnit.SECONDS.toNanos(2);
+    private static final int[] RESOLUTION_TIERS = {240, 360, 480, 720, 1080, 1440, 2160, 4320};
+
+    /**
+     * Expected work of a job
+     */
+    static final class Profile {
+        @NonNull final String mKey;
+        final long mFrameCount;
+        final long mPixelCount;
+        final boolean mPassthrough;
+
+        private Profile(@NonNull String key, long frameCount, long pixelCount, boolean passthrough) {
+            mKey = key;
+            mFrameCount = frameCount;
+            mPixelCount = pixelCount;
+            mPassthrough = passthrough;
+        }
+    }
+
+    private final Map<String, Double> mFrameRates = new HashMap<>();
+
+    /**
+     * Describe the work of a job by its first video track
+     * @return profile, null if job has no video track or its duration is unknown
+     */
+    @Nullable
+    static Profile getProfile(@NonNull List<TrackTransform> trackTransforms) {
+        for (TrackTransform trackTransform : trackTransforms) {
+            MediaFormat sourceFormat = trackTransform.getMediaSource().getTrackFormat(trackTransform.getSourceTrack());
+            String sourceMimeType = sourceFormat.getString(MediaFormat.KEY_MIME);
+            if (sourceMimeType == null || !sourceMimeType.startsWith("video")) {
+                continue;
+            }
+            long durationUs = getSelectedDuration(trackTransform.getMediaSource(), sourceFormat);
+            if (durationUs <= 0) {
+                return null;
+            }
+            float frameRate = sourceFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                    ? getNumber(sourceFormat, MediaFormat.KEY_FRAME_RATE)
+                    : DEFAULT_FRAME_RATE;
+            long frameCount = Math.max(1, (long) (durationUs * frameRate / TimeUnit.SECONDS.toMicros(1)));
+
+            if (trackTransform.getAnalyzer() != null) {
+                // decode only, cost follows source resolution
+                int width = sourceFormat.containsKey(MediaFormat.KEY_WIDTH) ? sourceFormat.getInteger(MediaFormat.KEY_WIDTH) : 0;
+                int height = sourceFormat.containsKey(MediaFormat.KEY_HEIGHT) ? sourceFormat.getInteger(MediaFormat.KEY_HEIGHT) : 0;
+                return new Profile(sourceMimeType + ">analysis/" + getResolutionTier(Math.min(width, height)) + "p",
+                        frameCount, (long) width * height, false);
+            }
+            MediaFormat targetFormat = trackTransform.getTargetFormat();
+            if (trackTransform.getEncoder() == null || targetFormat == null) {
+                return new Profile("passthrough", frameCount, 0, true);
+            }
+            int width = targetFormat.containsKey(MediaFormat.KEY_WIDTH) ? targetFormat.getInteger(MediaFormat.KEY_WIDTH) : 0;
+            int height = targetFormat.containsKey(MediaFormat.KEY_HEIGHT) ? targetFormat.getInteger(MediaFormat.KEY_HEIGHT) : 0;
+            int filterCount = trackTransform.getRenderer() instanceof GlVideoRenderer
+                    ? ((GlVideoRenderer) trackTransform.getRenderer()).getFilterCount()
+                    : 0;
+            String key = sourceMimeType + ">" + targetFormat.getString(MediaFormat.KEY_MIME)
+                    + "/" + getResolutionTier(Math.min(width, height)) + "p"
+                    + "/" + filterCount + "f";
+            return new Profile(key, frameCount, (long) width * height, false);
+        }
+        return null;
+    }
+
+    /**
+     * Learn from a job which finished
+     * @param frameCount video frames the job wrote
+     * @param runningTimeNs time the job spent running, without time spent queued or paused
+     */
+    synchronized void record(@NonNull Profile profile, long frameCount, long runningTimeNs) {
+        if (frameCount <= 0 || runningTimeNs < MIN_OBSERVATION_NS) {
+            return;
+        }
+        double frameRate = frameCount * (double) TimeUnit.SECONDS.toNanos(1) / runningTimeNs;
+        Double learnedFrameRate = mFrameRates.get(profile.mKey);
+        mFrameRates.put(profile.mKey, learnedFrameRate == null
+                ? frameRate
+                : learnedFrameRate + SMOOTHING * (frameRate - learnedFrameRate));
+    }
+
+    /**
+     * Get expected speed of a job, in frames per second
+     */
+    synchronized double getFrameRate(@NonNull Profile profile) {
+        Double learnedFrameRate = mFrameRates.get(profile.mKey);
+        if (learnedFrameRate != null) {
+            return learnedFrameRate;
+        }
+        if (profile.mPassthrough) {
+            return PASSTHROUGH_FRAME_RATE;
+        }
+        return DEFAULT_PIXEL_RATE / Math.max(1, profile.mPixelCount);
+    }
+
+    /**
+     * Predict how much longer a job needs to run. Once a job has been running for a while its own speed
+     * is trusted more than the speed of its group.
+     * @param frameCount video frames the job wrote so far
+     * @param runningTimeNs time the job spent running so far
+     * @return remaining running time, in nanoseconds
+     */
+    long predictRemainingTimeNs(@NonNull Profile profile, long frameCount, long runningTimeNs) {
+        long remainingFrameCount = Math.max(0, profile.mFrameCount - frameCount);
+        double frameRate = getFrameRate(profile);
+        if (runningTimeNs >= MIN_RUNNING_OBSERVATION_NS && frameCount > 0) {
+            double ownFrameRate = frameCount * (double) TimeUnit.SECONDS.toNanos(1) / runningTimeNs;
+            double weight = Math.min(1, (double) frameCount / profile.mFrameCount * 2);
+            frameRate = weight * ownFrameRate + (1 - weight) * frameRate;
+        }
+        return (long) (remainingFrameCount / frameRate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static long getSelectedDuration(@NonNull MediaSource mediaSource, @NonNull MediaFormat sourceFormat) {
+        MediaCutList cutList = mediaSource.getCutList();
+        if (cutList != null && sourceFormat.containsKey(MediaFormat.KEY_DURATION)) {
+            return cutList.getDuration(sourceFormat.getLong(MediaFormat.KEY_DURATION));
+        }
+        MediaRange selection = mediaSource.getSelection();
+        long end = selection.getEnd();
+        if (sourceFormat.containsKey(MediaFormat.KEY_DURATION)) {
+            end = Math.min(end, sourceFormat.getLong(MediaFormat.KEY_DURATION));
+        }
+        return end == Long.MAX_VALUE ? -1 : end - selection.getStart();
+    }
+
+    private static float getNumber(@NonNull MediaFormat format, @NonNull String key) {
+        // frame rate is an integer in most containers, a float in some
+        try {
+            return format.getInteger(key);
+        } catch (ClassCastException e) {
+            return format.getFloat(key);
+        }
+    }
+
+    private static int getResolutionTier(int shortSide) {
+        for (int tier : RESOLUTION_TIERS) {
+            if (shortSide <= tier) {
+                return tier;
+            }
+        }
+        return RESOLUTION_TIERS[RESOLUTION_TIERS.length - 1];
+    }
+}
@@ -10,6 +10,8 @@ import com.jeffmony.videolibrary.codec.Encoder;
 import com.jeffmony.videolibrary.io.MediaSource;
 import com.jeffmony.videolibrary.io.MediaTarget;
 import com.jeffmony.videolibrary.render.Renderer;
+import com.jeffmony.videolibrary.transcoder.FrameAnalyzer;
+import com.jeffmony.videolibrary.transcoder.TrackTranscoderOptions;
 
 /**
  * @author : jeffli
@@ -26,14 +28,18 @@ public class TrackTransform {
     private final MediaFormat mTargetFormat;
     private final int mSourceTrack;
     private final int mTargetTrack;
+    private final TrackTranscoderOptions mOptions;
+    private final FrameAnalyzer mAnalyzer;
 
     private TrackTransform(@NonNull MediaSource mediaSource,
                            @Nullable Decoder decoder,
                            @Nullable Renderer renderer,
                            @Nullable Encoder encoder,
-                           @NonNull MediaTarget mediaTarget,
+                           @Nullable MediaTarget mediaTarget,
                            @Nullable MediaFormat targetFormat,
-                           int sourceTrack, int targetTrack) {
+                           int sourceTrack, int targetTrack,
+                           @NonNull TrackTranscoderOptions options,
+                           @Nullable FrameAnalyzer analyzer) {
         mMediaSource = mediaSource;
         mDecoder = decoder;
         mRenderer = renderer;
@@ -42,6 +48,8 @@ public class TrackTransform {
         mTargetFormat = targetFormat;
         mSourceTrack = sourceTrack;
         mTargetTrack = targetTrack;
+        mOptions = options;
+        mAnalyzer = analyzer;
     }
 
     public MediaSource getMediaSource() {
@@ -60,6 +68,10 @@ public class TrackTransform {
         return mEncoder;
     }
 
+    /**
+     * Get target of this track, null if track is analyzed instead of written
+     */
+    @Nullable
     public MediaTarget getMediaTarget() {
         return mMediaTarget;
     }
@@ -76,21 +88,50 @@ public class TrackTransform {
         return mTargetTrack;
     }
 
+    @NonNull
+    public TrackTranscoderOptions getOptions() {
+        return mOptions;
+    }
+
+    /**
+     * Get analyzer decoded frames of this track go to, null if track is transcoded
+     */
+    @Nullable
+    public FrameAnalyzer getAnalyzer() {
+        return mAnalyzer;
+    }
+
     public static class Builder {
         private final MediaSource mediaSource;
         private final int sourceTrack;
         private final MediaTarget mediaTarget;
+        private final FrameAnalyzer analyzer;
 
         private Decoder decoder;
         private Renderer renderer;
         private Encoder encoder;
         private MediaFormat targetFormat;
         private int targetTrack;
+        private TrackTranscoderOptions options;
 
         public Builder(@NonNull MediaSource mediaSource, int sourceTrack, @NonNull MediaTarget mediaTarget) {
             this.mediaSource = mediaSource;
             this.sourceTrack = sourceTrack;
             this.mediaTarget = mediaTarget;
+            this.analyzer = null;
+            this.targetTrack = sourceTrack;
+        }
+
+        /**
+         * Create a builder of an analysis pass: the track is only decoded, decoded frames go to an analyzer and
+         * nothing is rendered, encoded or written. Only a decoder needs to be set.
+         * @param analyzer analyzer receiving decoded frames
+         */
+        public Builder(@NonNull MediaSource mediaSource, int sourceTrack, @NonNull FrameAnalyzer analyzer) {
+            this.mediaSource = mediaSource;
+            this.sourceTrack = sourceTrack;
+            this.mediaTarget = null;
+            this.analyzer = analyzer;
             this.targetTrack = sourceTrack;
         }
 
@@ -119,10 +160,17 @@ public class TrackTransform {
             return this;
         }
 
+        public Builder setOptions(TrackTranscoderOptions options) {
+            this.options = options;
+            return this;
+        }
+
         public TrackTransform build() {
             return new TrackTransform(mediaSource, decoder,
                     renderer, encoder, mediaTarget, targetFormat,
-                    sourceTrack, targetTrack);
+                    sourceTrack, targetTrack,
+                    options != null ? options : new TrackTranscoderOptions(),
+                    analyzer);
         }
     }
 }
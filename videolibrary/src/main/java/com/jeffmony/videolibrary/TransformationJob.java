@@ -1,9 +1,29 @@
 package com.jeffmony.videolibrary;
 
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.codec.AsyncCodec;
+import com.jeffmony.videolibrary.io.MediaSampleDispatcher;
+import com.jeffmony.videolibrary.io.MediaSource;
+import com.jeffmony.videolibrary.io.MediaTarget;
+import com.jeffmony.videolibrary.io.MemoryBudget;
+import com.jeffmony.videolibrary.io.SharedMediaSource;
+import com.jeffmony.videolibrary.render.GlVideoRenderer;
+import com.jeffmony.videolibrary.transcoder.ThroughputMeter;
 import com.jeffmony.videolibrary.transcoder.TrackTranscoder;
 import com.jeffmony.videolibrary.transcoder.TrackTranscoderFactory;
+import com.jeffmony.videolibrary.utils.LogUtils;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author : jeffli
@@ -15,14 +35,649 @@ public class TransformationJob {
 
     private static final String TAG = "TransformationJob";
 
+    public static final int STATUS_QUEUED = 0;
+    public static final int STATUS_RUNNING = 1;
+    public static final int STATUS_COMPLETED = 2;
+    public static final int STATUS_FAILED = 3;
+    public static final int STATUS_CANCELLED = 4;
+    public static final int STATUS_PAUSED = 5;
+
+    private static final long DEFAULT_PROGRESS_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
     List<TrackTranscoder> mTrackTranscoder;
+    // progress last reported to the listener, touched only by the thread driving the job
     float mLastProgress;
 
     TrackTranscoderFactory mTrackTranscoderFactory;
 
+    private final String mJobId;
     private final List<TrackTransform> mTrackTransforms;
+    private final BackoffIdleStrategy mIdleStrategy;
+    // target tracks turned into passthrough tracks because their source already matches target
+    @NonNull private final List<Integer> mPassthroughTracks = new ArrayList<>();
+
+    private volatile int mStatus = STATUS_QUEUED;
+
+    private final Map<MediaSource, MediaSampleDispatcher> mSampleDispatchers = new IdentityHashMap<>();
+
+    @Nullable private ThroughputMeter mThroughputMeter;
+    @Nullable private MemoryBudget mMemoryBudget;
+    @Nullable private Runnable mOnCodecsReleased;
+    @NonNull private List<MediaSource> mDetachedMediaSources = Collections.emptyList();
+
+    // job progress, written by the thread driving the job, read by anyone
+    private volatile float mProgress;
+    @Nullable private volatile ProgressReporter mProgressReporter;
+    // jobs whose tracks this job runs, in track order, if jobs were coalesced into it
+    @NonNull private List<TransformationJob> mCoalescedJobs = Collections.emptyList();
+    private float[] mTrackWeights;
+    private long mNextProgressUpdateNs;
+
+    private boolean[] mTrackFinished;
+    private int mFinishedTrackCount;
+    private boolean[] mTrackSuspended;
+    private int mSuspendedTrackCount;
+
+    // set by scheduler, picked up by the job thread at its next round
+    private volatile boolean mSuspendRequested;
+    private volatile boolean mSuspendable = true;
+    private boolean mSuspending;
+
+    TransformationJob(@NonNull String jobId, @NonNull List<TrackTransform> trackTransforms) {
+        this(jobId, trackTransforms, new BackoffIdleStrategy());
+    }
+
+    TransformationJob(@NonNull String jobId,
+                      @NonNull List<TrackTransform> trackTransforms,
+                      @NonNull BackoffIdleStrategy idleStrategy) {
+        mJobId = jobId;
+        mIdleStrategy = idleStrategy;
+        mTrackTranscoderFactory = new TrackTranscoderFactory();
+        mTrackTransforms = applyPassthrough(trackTransforms);
+        mTrackTranscoder = new ArrayList<>(trackTransforms.size());
+    }
+
+    @NonNull
+    public String getJobId() {
+        return mJobId;
+    }
+
+    /**
+     * Get job status
+     * @return one of STATUS_* constants
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    void setStatus(int status) {
+        mStatus = status;
+    }
+
+    /**
+     * Get job progress, tracks weighted by their duration. Updated a few times per second, or as often as
+     * progress listener asks for.
+     * @return progress, from 0 to 1
+     */
+    public float getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * Set how progress is reported, may be called while job runs
+     * @param progressReporter progress reporter, null to stop reporting
+     */
+    void setProgressReporter(@Nullable ProgressReporter progressReporter) {
+        mProgressReporter = progressReporter;
+    }
+
+    /**
+     * Set jobs coalesced into this one. Their tracks are tracks of this job, consecutive and in the same
+     * order, and this job publishes progress of each of them instead of its own.
+     */
+    void setCoalescedJobs(@NonNull List<TransformationJob> jobs) {
+        mCoalescedJobs = jobs;
+    }
+
+    /**
+     * Set meter which counts samples written by every track of this job, must be called before job runs
+     */
+    void setThroughputMeter(@Nullable ThroughputMeter throughputMeter) {
+        mThroughputMeter = throughputMeter;
+    }
+
+    /**
+     * Set budget every sample copy, queue and buffer of this job is charged to, must be called before job runs
+     * @param memoryBudget memory budget, null if memory is not accounted
+     */
+    void setMemoryBudget(@Nullable MemoryBudget memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    @Nullable
+    MemoryBudget getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * Set callback invoked on the job thread as soon as a finishing job has released its codecs, before
+     * its sources and targets are released, so that the codecs can be handed over early
+     */
+    void setOnCodecsReleased(@Nullable Runnable onCodecsReleased) {
+        mOnCodecsReleased = onCodecsReleased;
+    }
+
+    /**
+     * Set sources this job does not read but should release along with its own, e.g. sources of jobs
+     * coalesced into this one, which reads a source they share instead
+     */
+    void setDetachedMediaSources(@NonNull List<MediaSource> mediaSources) {
+        mDetachedMediaSources = mediaSources;
+    }
+
+    @NonNull
+    List<TrackTransform> getTrackTransforms() {
+        return mTrackTransforms;
+    }
+
+    /**
+     * Get target tracks which were to be transcoded, but are written as is because their source already
+     * matches target format
+     */
+    @NonNull
+    public List<Integer> getPassthroughTracks() {
+        return Collections.unmodifiableList(mPassthroughTracks);
+    }
+
+    /**
+     * Run the job on the calling thread. Track transcoders are driven round-robin until every track reaches
+     * end of stream. When a whole round makes no progress the loop backs off instead of spinning on codecs.
+     * @throws Exception if a track transcoder fails or the calling thread is interrupted
+     */
+    void run() throws Exception {
+        boolean completed = false;
+        boolean suspended = false;
+        try {
+            if (mTrackFinished == null) {
+                createTrackTranscoders();
+                startTrackTranscoders();
+            } else {
+                resumeTrackTranscoders();
+            }
+
+            do {
+                if (mSuspendRequested && !mSuspending) {
+                    mSuspending = suspendTrackTranscoders();
+                }
+                completed = processNextRound();
+                updateProgress(completed);
+                suspended = !completed && isSuspended();
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Transformation interrupted");
+                }
+            } while (!completed && !suspended);
+        } finally {
+            if (!suspended) {
+                // release waits for stage threads to exit, it should not be cut short by a pending interrupt
+                boolean interrupted = Thread.interrupted();
+                release(completed);
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Ask job to pause at a safe point, so that its codecs can be used by another job. Job returns from
+     * {@link #run()} once every unfinished track has released its codecs, and the next {@link #run()}
+     * continues from where it stopped, possibly on another thread.
+     */
+    void requestSuspend() {
+        if (mSuspendable) {
+            mSuspendRequested = true;
+            mIdleStrategy.wake();
+        }
+    }
+
+    /**
+     * Check if a suspend request is still pending, it is dropped if a track can not be suspended
+     */
+    boolean isSuspendRequested() {
+        return mSuspendRequested;
+    }
+
+    /**
+     * Check if job can be suspended, false once a track refused to suspend
+     */
+    boolean isSuspendable() {
+        return mSuspendable;
+    }
+
+    /**
+     * Check if job returned from {@link #run()} paused, with more work to do
+     */
+    boolean isSuspended() {
+        return mTrackTranscoder != null
+                && mSuspendedTrackCount > 0
+                && mSuspendedTrackCount + mFinishedTrackCount == mTrackTranscoder.size();
+    }
+
+    /**
+     * Release sources and targets of a job which is not running: it was cancelled or rejected before it ran,
+     * or cancelled while suspended.
+     */
+    void releaseIdle() {
+        release(false);
+    }
+
+    /**
+     * Turn tracks whose source already matches target into passthrough tracks, before anything counts their
+     * codecs or lets them share a decoder
+     */
+    @NonNull
+    private List<TrackTransform> applyPassthrough(@NonNull List<TrackTransform> trackTransforms) {
+        for (int index = 0; index < trackTransforms.size(); index++) {
+            TrackTransform trackTransform = trackTransforms.get(index);
+            if (trackTransform.getTargetFormat() == null
+                    || !mTrackTranscoderFactory.shouldPassThrough(trackTransform.getSourceTrack(),
+                            trackTransform.getMediaSource(),
+                            trackTransform.getRenderer(),
+                            trackTransform.getTargetFormat(),
+                            trackTransform.getOptions())) {
+                continue;
+            }
+            trackTransforms.set(index, new TrackTransform.Builder(trackTransform.getMediaSource(),
+                    trackTransform.getSourceTrack(),
+                    trackTransform.getMediaTarget())
+                    .setTargetTrack(trackTransform.getTargetTrack())
+                    .setOptions(trackTransform.getOptions())
+                    .build());
+            mPassthroughTracks.add(trackTransform.getTargetTrack());
+            LogUtils.i(TAG, "Job " + mJobId + " passes target track " + trackTransform.getTargetTrack()
+                    + " through, source already matches target format");
+        }
+        return trackTransforms;
+    }
+
+    private void createTrackTranscoders() throws Exception {
+        int[] leaders = getDecoderLeaders(mTrackTransforms);
+        for (int index = 0; index < mTrackTransforms.size(); index++) {
+            TrackTransform trackTransform = mTrackTransforms.get(index);
+            // callback driven codecs wake the run loop up as soon as a buffer becomes available
+            if (trackTransform.getEncoder() instanceof AsyncCodec) {
+                ((AsyncCodec) trackTransform.getEncoder()).setOnBufferAvailableListener(mIdleStrategy::wake);
+            }
+            TrackTranscoder trackTranscoder;
+            if (leaders[index] != index) {
+                // another track decodes this source track, this one only renders and encodes
+                trackTranscoder = mTrackTranscoderFactory.createFollower(mTrackTranscoder.get(leaders[index]),
+                        trackTransform.getTargetTrack(),
+                        trackTransform.getMediaSource(),
+                        trackTransform.getRenderer(),
+                        trackTransform.getEncoder(),
+                        trackTransform.getMediaTarget(),
+                        trackTransform.getTargetFormat(),
+                        trackTransform.getOptions());
+            } else {
+                MediaSource mediaSource = trackTransform.getMediaSource();
+                MediaSource underlyingSource = SharedMediaSource.getUnderlyingSource(mediaSource);
+                if (isMediaSourceShared(underlyingSource, leaders) || mediaSource.getCutList() != null) {
+                    // demux shared source once, each track reads from its own queue, dispatcher also skips
+                    // gaps of cut lists
+                    MediaSampleDispatcher dispatcher = mSampleDispatchers.get(underlyingSource);
+                    if (dispatcher == null) {
+                        dispatcher = new MediaSampleDispatcher(underlyingSource,
+                                MediaSampleDispatcher.DEFAULT_QUEUE_SIZE,
+                                mMemoryBudget,
+                                mIdleStrategy::wake);
+                        mSampleDispatchers.put(underlyingSource, dispatcher);
+                    }
+                    mediaSource = dispatcher.createTrackSource(trackTransform.getSourceTrack(),
+                            mediaSource.getSelection(),
+                            mediaSource.getCutList(),
+                            getDecodeEnd(index, leaders));
+                }
+                if (trackTransform.getDecoder() instanceof AsyncCodec) {
+                    ((AsyncCodec) trackTransform.getDecoder()).setOnBufferAvailableListener(mIdleStrategy::wake);
+                }
+                if (trackTransform.getAnalyzer() != null) {
+                    trackTranscoder = mTrackTranscoderFactory.createAnalyzer(trackTransform.getSourceTrack(),
+                            mediaSource,
+                            trackTransform.getDecoder(),
+                            trackTransform.getAnalyzer());
+                } else {
+                    trackTranscoder = mTrackTranscoderFactory.create(trackTransform.getSourceTrack(),
+                            trackTransform.getTargetTrack(),
+                            mediaSource,
+                            trackTransform.getDecoder(),
+                            trackTransform.getRenderer(),
+                            trackTransform.getEncoder(),
+                            trackTransform.getMediaTarget(),
+                            trackTransform.getTargetFormat(),
+                            trackTransform.getOptions());
+                }
+            }
+            trackTranscoder.setThroughputMeter(mThroughputMeter);
+            trackTranscoder.setMemoryBudget(mMemoryBudget);
+            trackTranscoder.setSpeed(trackTransform.getOptions().getSpeed());
+            if (trackTransform.getMediaTarget() != null) {
+                trackTransform.getMediaTarget().setMemoryBudget(mMemoryBudget);
+            }
+            mTrackTranscoder.add(trackTranscoder);
+        }
+        mTrackWeights = getTrackWeights(mTrackTranscoder);
+        mTrackFinished = new boolean[mTrackTranscoder.size()];
+        mFinishedTrackCount = 0;
+        mTrackSuspended = new boolean[mTrackTranscoder.size()];
+        mSuspendedTrackCount = 0;
+    }
+
+    /**
+     * Ask every unfinished track to suspend, unless one of them can not
+     * @return true if suspension is on the way, false if request was dropped
+     */
+    private boolean suspendTrackTranscoders() {
+        for (int index = 0; index < mTrackTranscoder.size(); index++) {
+            if (!mTrackFinished[index] && !mTrackTranscoder.get(index).requestSuspend()) {
+                LogUtils.w(TAG, "Job " + mJobId + " can not be suspended, track "
+                        + mTrackTranscoder.get(index).getSourceTrack() + " does not support it");
+                // tracks already asked still suspend, they are resumed right away
+                mSuspendable = false;
+                mSuspendRequested = false;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void resumeTrackTranscoders() throws Exception {
+        for (int index = 0; index < mTrackTranscoder.size(); index++) {
+            if (mTrackSuspended[index]) {
+                mTrackTranscoder.get(index).resume();
+                mTrackSuspended[index] = false;
+            }
+        }
+        mSuspendedTrackCount = 0;
+        mSuspending = false;
+        mSuspendRequested = false;
+    }
+
+    /**
+     * Check if more than one track reads from a source, followers do not read
+     */
+    private boolean isMediaSourceShared(@NonNull MediaSource underlyingSource, @NonNull int[] leaders) {
+        int readerCount = 0;
+        for (int index = 0; index < mTrackTransforms.size(); index++) {
+            if (leaders[index] == index
+                    && SharedMediaSource.getUnderlyingSource(mTrackTransforms.get(index).getMediaSource()) == underlyingSource) {
+                readerCount++;
+            }
+        }
+        return readerCount > 1;
+    }
+
+    /**
+     * Get time a track reads its source up to, end of the latest selection among the track and its followers
+     */
+    private long getDecodeEnd(int leader, @NonNull int[] leaders) {
+        long decodeEnd = 0;
+        for (int index = 0; index < mTrackTransforms.size(); index++) {
+            if (leaders[index] == leader) {
+                decodeEnd = Math.max(decodeEnd, mTrackTransforms.get(index).getMediaSource().getSelection().getEnd());
+            }
+        }
+        return decodeEnd;
+    }
+
+    /**
+     * Find tracks which can share one decode pass: transcoded, not pipelined outputs of the same source track.
+     * First of them with a decoder decodes for all, the others follow it and do not need a decoder of their own.
+     * @return for each track, index of the track which decodes for it, its own index if it decodes for itself
+     */
+    @NonNull
+    static int[] getDecoderLeaders(@NonNull List<TrackTransform> trackTransforms) {
+        int[] leaders = new int[trackTransforms.size()];
+        for (int index = 0; index < trackTransforms.size(); index++) {
+            leaders[index] = index;
+            TrackTransform trackTransform = trackTransforms.get(index);
+            if (!canShareDecoder(trackTransform)) {
+                continue;
+            }
+            for (int leader = 0; leader < index; leader++) {
+                TrackTransform leaderTrackTransform = trackTransforms.get(leader);
+                if (leaders[leader] == leader
+                        && leaderTrackTransform.getDecoder() != null
+                        && canShareDecoder(leaderTrackTransform)
+                        && leaderTrackTransform.getSourceTrack() == trackTransform.getSourceTrack()
+                        && SharedMediaSource.getUnderlyingSource(leaderTrackTransform.getMediaSource())
+                            == SharedMediaSource.getUnderlyingSource(trackTransform.getMediaSource())
+                        && isVideo(leaderTrackTransform) == isVideo(trackTransform)) {
+                    leaders[index] = leader;
+                    break;
+                }
+            }
+        }
+        return leaders;
+    }
+
+    private static boolean canShareDecoder(@NonNull TrackTransform trackTransform) {
+        if (trackTransform.getEncoder() == null
+                || trackTransform.getTargetFormat() == null
+                || trackTransform.getOptions().isPipelined()) {
+            return false;
+        }
+        String mimeType = trackTransform.getTargetFormat().getString(MediaFormat.KEY_MIME);
+        if (mimeType == null) {
+            return false;
+        }
+        return mimeType.startsWith("audio")
+                || (mimeType.startsWith("video") && trackTransform.getRenderer() instanceof GlVideoRenderer);
+    }
+
+    private static boolean isVideo(@NonNull TrackTransform trackTransform) {
+        String mimeType = trackTransform.getTargetFormat().getString(MediaFormat.KEY_MIME);
+        return mimeType != null && mimeType.startsWith("video");
+    }
+
+    private void startTrackTranscoders() throws Exception {
+        for (TrackTranscoder trackTranscoder : mTrackTranscoder) {
+            trackTranscoder.start();
+        }
+        // tracks are selected by now, dispatchers can start reading
+        for (MediaSampleDispatcher dispatcher : mSampleDispatchers.values()) {
+            dispatcher.start();
+        }
+    }
+
+    /**
+     * Give every unfinished track transcoder one chance to do work.
+     * @return true if all tracks reached end of stream, false otherwise
+     */
+    private boolean processNextRound() throws Exception {
+        for (MediaSampleDispatcher dispatcher : mSampleDispatchers.values()) {
+            Exception error = dispatcher.getError();
+            if (error != null) {
+                throw new Exception("Failed to read media source", error);
+            }
+        }
+
+        boolean progressed = false;
+        for (int index = 0; index < mTrackTranscoder.size(); index++) {
+            if (mTrackFinished[index] || mTrackSuspended[index]) {
+                continue;
+            }
+            TrackTranscoder trackTranscoder = mTrackTranscoder.get(index);
+            int result = trackTranscoder.processNextFrame();
+            switch (result) {
+                case TrackTranscoder.RESULT_EOS_REACHED:
+                    mTrackFinished[index] = true;
+                    mFinishedTrackCount++;
+                    progressed = true;
+                    LogUtils.d(TAG, "Track " + trackTranscoder.getSourceTrack() + " reached EoS");
+                    break;
+                case TrackTranscoder.RESULT_SUSPENDED:
+                    if (!mSuspending) {
+                        // a track suspended although job could not, bring it back
+                        trackTranscoder.resume();
+                    } else {
+                        mTrackSuspended[index] = true;
+                        mSuspendedTrackCount++;
+                        LogUtils.d(TAG, "Track " + trackTranscoder.getSourceTrack() + " suspended");
+                    }
+                    progressed = true;
+                    break;
+                case TrackTranscoder.RESULT_TRY_AGAIN_LATER:
+                    break;
+                case TrackTranscoder.ERROR_TRANSCODER_NOT_RUNNING:
+                    throw new Exception("Track transcoder for track " + trackTranscoder.getSourceTrack() + " is not running");
+                default:
+                    progressed = true;
+                    break;
+            }
+        }
+
+        boolean completed = mFinishedTrackCount == mTrackTranscoder.size();
+        if (progressed) {
+            mIdleStrategy.reset();
+        } else if (!completed && !isSuspended()) {
+            mIdleStrategy.idle();
+        }
+        return completed;
+    }
+
+    /**
+     * Weigh tracks by duration, a track of unknown duration counts as an average one
+     */
+    @NonNull
+    private static float[] getTrackWeights(@NonNull List<TrackTranscoder> trackTranscoders) {
+        float[] trackWeights = new float[trackTranscoders.size()];
+        float knownDuration = 0;
+        int knownDurationCount = 0;
+        for (TrackTranscoder trackTranscoder : trackTranscoders) {
+            if (trackTranscoder.getDuration() > 0) {
+                knownDuration += trackTranscoder.getDuration();
+                knownDurationCount++;
+            }
+        }
+        float defaultWeight = knownDurationCount > 0 ? knownDuration / knownDurationCount : 1;
+        for (int index = 0; index < trackWeights.length; index++) {
+            long duration = trackTranscoders.get(index).getDuration();
+            trackWeights[index] = duration > 0 ? duration : defaultWeight;
+        }
+        return trackWeights;
+    }
+
+    /**
+     * Recompute and publish progress once the update interval is over. Runs every round of the job loop,
+     * so it only reads volatile fields and allocates nothing unless a listener is notified.
+     */
+    private void updateProgress(boolean completed) {
+        long nowNs = System.nanoTime();
+        if (!completed && nowNs < mNextProgressUpdateNs) {
+            return;
+        }
+        ProgressReporter progressReporter = mProgressReporter;
+        mNextProgressUpdateNs = nowNs + (progressReporter != null ? progressReporter.mMinIntervalNs : DEFAULT_PROGRESS_INTERVAL_NS);
+        if (mCoalescedJobs.isEmpty()) {
+            publishProgress(completed ? 1 : getProgress(0, mTrackTranscoder.size()));
+            return;
+        }
+        int firstTrack = 0;
+        for (int index = 0; index < mCoalescedJobs.size(); index++) {
+            TransformationJob job = mCoalescedJobs.get(index);
+            int lastTrack = firstTrack + job.mTrackTransforms.size();
+            if (job.getStatus() != STATUS_CANCELLED) {
+                job.publishProgress(completed ? 1 : getProgress(firstTrack, lastTrack));
+            }
+            firstTrack = lastTrack;
+        }
+    }
+
+    private float getProgress(int firstTrack, int lastTrack) {
+        float weightedProgress = 0;
+        float totalWeight = 0;
+        for (int index = firstTrack; index < lastTrack; index++) {
+            float trackProgress = Math.max(0, Math.min(1, mTrackTranscoder.get(index).getProgress()));
+            weightedProgress += mTrackWeights[index] * trackProgress;
+            totalWeight += mTrackWeights[index];
+        }
+        return totalWeight > 0 ? weightedProgress / totalWeight : 0;
+    }
+
+    private void publishProgress(float progress) {
+        mProgress = progress;
+        ProgressReporter progressReporter = mProgressReporter;
+        if (progressReporter != null && progressReporter.shouldReport(progress, mLastProgress)) {
+            mLastProgress = progress;
+            progressReporter.report(mJobId, progress);
+        }
+    }
+
+    private void release(boolean success) {
+        // reverse order, so that followers are gone before the track they share a decoder and renderer with
+        for (int index = mTrackTranscoder.size() - 1; index >= 0; index--) {
+            TrackTranscoder trackTranscoder = mTrackTranscoder.get(index);
+            try {
+                trackTranscoder.stop();
+            } catch (RuntimeException e) {
+                LogUtils.e(TAG, "Failed to stop track transcoder: " + e);
+            }
+        }
+        if (mOnCodecsReleased != null) {
+            mOnCodecsReleased.run();
+        }
+        for (MediaSampleDispatcher dispatcher : mSampleDispatchers.values()) {
+            dispatcher.stop();
+        }
+
+        // several track transforms usually share the same source and target, release each of them once
+        Map<MediaSource, Boolean> mediaSources = new IdentityHashMap<>();
+        Map<MediaTarget, Boolean> mediaTargets = new IdentityHashMap<>();
+        for (TrackTransform trackTransform : mTrackTransforms) {
+            mediaSources.put(trackTransform.getMediaSource(), Boolean.TRUE);
+            if (trackTransform.getMediaTarget() != null) {
+                mediaTargets.put(trackTransform.getMediaTarget(), Boolean.TRUE);
+            }
+        }
+        for (MediaSource mediaSource : mDetachedMediaSources) {
+            mediaSources.put(mediaSource, Boolean.TRUE);
+        }
+        for (MediaSource mediaSource : mediaSources.keySet()) {
+            try {
+                mediaSource.release();
+            } catch (RuntimeException e) {
+                LogUtils.e(TAG, "Failed to release media source: " + e);
+            }
+        }
+        for (MediaTarget mediaTarget : mediaTargets.keySet()) {
+            try {
+                mediaTarget.release();
+            } catch (RuntimeException e) {
+                LogUtils.e(TAG, "Failed to release media target: " + e);
+            }
+            if (!success) {
+                deleteOutput(mediaTarget);
+            }
+        }
+
+        LogUtils.i(TAG, "Transformation " + mJobId + " " + (success ? "completed" : "failed"));
+    }
 
-    TransformationJob(List<TrackTransform> trackTransforms) {
-        mTrackTransforms = trackTransforms;
+    /**
+     * Delete partial output of a failed or cancelled job, it is not a playable file
+     */
+    static void deleteOutput(@Nullable MediaTarget mediaTarget) {
+        if (mediaTarget == null) {
+            return;
+        }
+        String outputFilePath = mediaTarget.getOutputFilePath();
+        if (outputFilePath.isEmpty()) {
+            return;
+        }
+        File outputFile = new File(outputFilePath);
+        if (outputFile.exists() && !outputFile.delete()) {
+            LogUtils.w(TAG, "Failed to delete partial output " + outputFilePath);
+        }
     }
 }
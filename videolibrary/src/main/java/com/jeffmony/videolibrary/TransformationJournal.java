@@ -0,0 +1,146 @@
+package com.jeffmony.videolibrary;
+
+import androidx.annotation.NonNull;
+
+import com.jeffmony.videolibrary.utils.LogUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Small append only journal kept next to the target of a resumable transformation. First line describes
+ * the transformation: source path and size, selection, segment boundaries and settings of every track
+ * transform. Every following line is a checkpoint, a piece which was fully written and closed, with its
+ * size in bytes. Each append is synced to storage before it is considered committed, so a process killed
+ * at any point leaves either the old or the new checkpoint behind, never a piece which is recorded but not
+ * written.
+ * <p>
+ * A journal whose header does not match the current transformation is discarded, so a changed source,
+ * a different plan or different track settings start over.
+ */
+final class TransformationJournal {
+
+    private static final String TAG = "TransformationJournal";
+
+    private static final String VERSION = "v1";
+    private static final String PIECE = "piece";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final String mHeader;
+    private final Map<String, Long> mPieces = new HashMap<>();
+
+    /**
+     * Open a journal, loading checkpoints of a previous run of the same transformation
+     * @param file journal file
+     * @param header description of the transformation, single line
+     */
+    TransformationJournal(@NonNull File file, @NonNull String header) throws IOException {
+        mFile = file;
+        mHeader = VERSION + " " + header;
+        if (mFile.exists() && !load()) {
+            LogUtils.i(TAG, "Discarding journal of a different transformation " + mFile);
+        }
+        rewrite();
+    }
+
+    /**
+     * Check if a piece was committed by a previous run and is still intact
+     * @param name piece name
+     * @param path piece file
+     */
+    boolean isCommitted(@NonNull String name, @NonNull File path) {
+        Long length = mPieces.get(name);
+        return length != null && path.length() == length;
+    }
+
+    /**
+     * Record a fully written piece
+     * @param name piece name
+     * @param path piece file, closed
+     */
+    void commit(@NonNull String name, @NonNull File path) throws IOException {
+        long length = path.length();
+        FileOutputStream outputStream = new FileOutputStream(mFile, true);
+        try {
+            outputStream.write(getPieceLine(name, length).getBytes(UTF_8));
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        mPieces.put(name, length);
+    }
+
+    /**
+     * Remove journal, transformation is complete
+     */
+    void delete() {
+        if (mFile.exists() && !mFile.delete()) {
+            LogUtils.w(TAG, "Failed to delete " + mFile);
+        }
+    }
+
+    private boolean load() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(mFile));
+        try {
+            if (!mHeader.equals(reader.readLine())) {
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 3 || !PIECE.equals(fields[0])) {
+                    // torn last line of a killed process
+                    break;
+                }
+                try {
+                    mPieces.put(fields[1], Long.parseLong(fields[2]));
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Replace journal with loaded checkpoints only, dropping a torn last line. New journal is written aside
+     * and renamed over the old one, so a kill in the middle leaves the old journal in place.
+     */
+    private void rewrite() throws IOException {
+        StringBuilder text = new StringBuilder(mHeader).append('\n');
+        for (Map.Entry<String, Long> piece : mPieces.entrySet()) {
+            text.append(getPieceLine(piece.getKey(), piece.getValue()));
+        }
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(tempFile, false);
+        try {
+            outputStream.write(text.toString().getBytes(UTF_8));
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            throw new IOException("Failed to replace journal " + mFile);
+        }
+    }
+
+    @NonNull
+    private static String getPieceLine(@NonNull String name, long length) {
+        return PIECE + " " + name + " " + length + "\n";
+    }
+}
@@ -1,10 +1,1174 @@
 package com.jeffmony.videolibrary;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.io.MediaExtractorMediaSource;
+import com.jeffmony.videolibrary.io.MediaRange;
+import com.jeffmony.videolibrary.io.MediaSource;
+import com.jeffmony.videolibrary.io.MemoryBudget;
+import com.jeffmony.videolibrary.io.SharedMediaSource;
+import com.jeffmony.videolibrary.transcoder.ThroughputMeter;
+import com.jeffmony.videolibrary.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * @author : jeffli
  * @Email  : jeffmony@163.com
  * @Date   : 2021-08-26
  */
 
+/**
+ * Entry point of the transformation engine. Jobs are queued and run on a bounded worker pool. A queued job
+ * is admitted only when all codec instances it needs are free, see {@link CodecCapacity}, so running more
+ * jobs than the hardware supports does not end up in codec configuration failures.
+ * <p>
+ * Queue is ordered by job priority, then by submission order. When the first queued job can not be admitted,
+ * running jobs of lower priority are paused at a safe point until enough codecs and worker slots are on their
+ * way back. A paused job releases its codecs and renderers but keeps its sources and targets, goes back to
+ * the queue and later resumes from the point it stopped at.
+ * <p>
+ * With a {@link ConcurrencyController} the number of running jobs is tuned at runtime, between controller
+ * limits, by measuring frames and bytes written by all jobs together.
+ * <p>
+ * Jobs may have deadlines. Within a priority, jobs with earlier deadlines go first and jobs without one go last.
+ * Finish time of every job with a deadline is predicted from a {@link ThroughputModel} learned from finished
+ * jobs; once a job is predicted to miss its deadline it is reported to the {@link DeadlineListener}, may run
+ * above the concurrency controller limit and may pause running jobs of the same priority with later deadlines.
+ * <p>
+ * Queued jobs which read overlapping ranges of the same file are coalesced when admitted: they run as one job
+ * which demuxes the file once and decodes each source track once, handing decoded frames to the renderers
+ * and encoders of every job. Each job keeps its own future, status and output; a failure of the coalesced
+ * job fails all of them, and a coalesced job is only cancelled once all of its jobs are.
+ * <p>
+ * A track may be analyzed instead of transcoded, see {@link com.jeffmony.videolibrary.transcoder.FrameAnalyzer}:
+ * it is only demuxed and decoded, and needs neither a renderer, an encoder nor a target.
+ * <p>
+ * Job progress is polled with {@link #getProgress(String)} or pushed to a {@link ProgressListener}. Each job
+ * weighs its tracks by duration and publishes its progress from its own thread, throttled by time and by
+ * progress change, so neither polling nor listening takes locks on the transcoding path.
+ */
 public class Transformer {
+
+    private static final String TAG = "Transformer";
+
+    public static final int DEFAULT_MAX_PARALLEL_JOBS = 4;
+    public static final long DEFAULT_PROGRESS_INTERVAL_MS = 100;
+    public static final float DEFAULT_PROGRESS_DELTA = 0.01f;
+    public static final long NO_MEMORY_BUDGET = 0;
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final long DEFAULT_MONITOR_PERIOD_MS = 500;
+    // time left to a deadline is clamped to this, which keeps nanosecond arithmetic from overflowing
+    private static final long MAX_DEADLINE_DELTA_MS = TimeUnit.DAYS.toMillis(3650);
+
+    private final int mMaxParallelJobs;
+    private final CodecCapacity mCodecCapacity;
+    private final ExecutorService mExecutor;
+    private final ExecutorService mCoordinatorExecutor;
+    @Nullable private final ConcurrencyController mConcurrencyController;
+    private final ScheduledExecutorService mMonitorExecutor;
+    private final ThroughputMeter mThroughputMeter = new ThroughputMeter();
+    private final ThroughputModel mThroughputModel = new ThroughputModel();
+
+    @Nullable private volatile DeadlineListener mDeadlineListener;
+    @Nullable private ProgressReporter mProgressReporter;
+
+    private final Map<String, JobTask> mJobs = new HashMap<>();
+    private final Map<String, SegmentedJobTask> mSegmentedJobs = new HashMap<>();
+    private final LinkedList<JobTask> mPendingJobs = new LinkedList<>();
+    private final List<JobTask> mRunningJobs = new ArrayList<>();
+    private long mJobSequence;
+    private long mJobMemoryBudget = NO_MEMORY_BUDGET;
+    private int mJobLimit;
+    private boolean mReleased;
+
+    public Transformer() {
+        this(DEFAULT_MAX_PARALLEL_JOBS, new CodecCapacity());
+    }
+
+    /**
+     * Create an instance of Transformer
+     * @param maxParallelJobs max number of jobs running at the same time, also the size of the worker pool
+     * @param codecCapacity codec instance limits used for job admission
+     */
+    public Transformer(int maxParallelJobs, @NonNull CodecCapacity codecCapacity) {
+        this(maxParallelJobs, codecCapacity, null);
+    }
+
+    /**
+     * Create an instance of Transformer which tunes number of running jobs by itself
+     * @param maxParallelJobs size of the worker pool
+     * @param codecCapacity codec instance limits used for job admission
+     * @param concurrencyController controller of number of running jobs, its max jobs should not exceed
+     *                              maxParallelJobs; null to always allow maxParallelJobs
+     */
+    public Transformer(int maxParallelJobs,
+                       @NonNull CodecCapacity codecCapacity,
+                       @Nullable ConcurrencyController concurrencyController) {
+        if (maxParallelJobs <= 0) {
+            throw new IllegalArgumentException("maxParallelJobs should be greater than 0");
+        }
+        if (concurrencyController != null && concurrencyController.getMaxJobs() > maxParallelJobs) {
+            throw new IllegalArgumentException("Controller max jobs " + concurrencyController.getMaxJobs()
+                    + " exceeds maxParallelJobs " + maxParallelJobs);
+        }
+        mMaxParallelJobs = maxParallelJobs;
+        mCodecCapacity = codecCapacity;
+        mExecutor = Executors.newFixedThreadPool(maxParallelJobs, new WorkerThreadFactory("Transformer-"));
+        // coordinators mostly wait for their jobs, they should not take worker slots
+        mCoordinatorExecutor = Executors.newCachedThreadPool(new WorkerThreadFactory("TransformerCoordinator-"));
+        mConcurrencyController = concurrencyController;
+        long monitorPeriodMs = DEFAULT_MONITOR_PERIOD_MS;
+        if (concurrencyController != null) {
+            mJobLimit = concurrencyController.getLimit();
+            // sample several times per window, so that windows do not stretch much because of timer jitter
+            monitorPeriodMs = Math.max(1, Math.min(monitorPeriodMs, concurrencyController.getWindowMs() / 4));
+        } else {
+            mJobLimit = maxParallelJobs;
+        }
+        mMonitorExecutor = Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory("TransformerMonitor-"));
+        mMonitorExecutor.scheduleAtFixedRate(this::monitorJobs, monitorPeriodMs, monitorPeriodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set listener which is warned about jobs predicted to miss their deadlines
+     * @param deadlineListener listener, null to stop listening
+     */
+    public void setDeadlineListener(@Nullable DeadlineListener deadlineListener) {
+        mDeadlineListener = deadlineListener;
+    }
+
+    /**
+     * Set memory budget of jobs queued from now on. Sample queues of a job stop growing once its budget is
+     * exhausted and samples its target holds before it starts are spilled to disk, so that many jobs can run
+     * at once on a device with little memory.
+     * @param bytes budget of each job, in bytes, or NO_MEMORY_BUDGET to not account memory
+     */
+    public synchronized void setJobMemoryBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Memory budget should not be negative");
+        }
+        mJobMemoryBudget = bytes;
+    }
+
+    /**
+     * Set listener which receives progress of all jobs, at most every {@link #DEFAULT_PROGRESS_INTERVAL_MS}
+     * and only once progress moved by {@link #DEFAULT_PROGRESS_DELTA}
+     * @param progressListener listener, null to stop listening
+     * @param executor executor progress callbacks run on, e.g. one posting to the main thread
+     */
+    public void setProgressListener(@Nullable ProgressListener progressListener, @NonNull Executor executor) {
+        setProgressListener(progressListener, executor, DEFAULT_PROGRESS_INTERVAL_MS, DEFAULT_PROGRESS_DELTA);
+    }
+
+    /**
+     * Set listener which receives progress of all jobs, including jobs already queued or running
+     * @param progressListener listener, null to stop listening
+     * @param executor executor progress callbacks run on, e.g. one posting to the main thread
+     * @param minIntervalMs minimal time between two progress checks of a job, in milliseconds
+     * @param minDelta minimal progress change to report, from 0 to 1; reaching 1 is always reported
+     */
+    public synchronized void setProgressListener(@Nullable ProgressListener progressListener,
+                                                 @NonNull Executor executor,
+                                                 long minIntervalMs,
+                                                 float minDelta) {
+        mProgressReporter = progressListener != null
+                ? new ProgressReporter(progressListener, executor, minIntervalMs, minDelta)
+                : null;
+        for (JobTask jobTask : mJobs.values()) {
+            jobTask.mJob.setProgressReporter(mProgressReporter);
+        }
+        // coalesced jobs are not in the job map, they only check progress on behalf of their members
+        for (List<JobTask> jobTasks : Arrays.asList(mRunningJobs, mPendingJobs)) {
+            for (JobTask jobTask : jobTasks) {
+                jobTask.mJob.setProgressReporter(mProgressReporter);
+            }
+        }
+    }
+
+    /**
+     * Queue a transformation with a generated job id
+     * @param trackTransforms list of track transforms, one per target track
+     * @return job id
+     */
+    @NonNull
+    public String transform(@NonNull List<TrackTransform> trackTransforms) {
+        String jobId = UUID.randomUUID().toString();
+        transform(jobId, trackTransforms);
+        return jobId;
+    }
+
+    /**
+     * Queue a transformation
+     * @param jobId unique job id
+     * @param trackTransforms list of track transforms, one per target track
+     * @return future which completes when the job completes, fails or is cancelled
+     */
+    @NonNull
+    public Future<Void> transform(@NonNull String jobId, @NonNull List<TrackTransform> trackTransforms) {
+        return submit(jobId, trackTransforms, PRIORITY_NORMAL, NO_DEADLINE, null, true);
+    }
+
+    /**
+     * Queue a transformation with a priority
+     * @param jobId unique job id
+     * @param trackTransforms list of track transforms, one per target track
+     * @param priority job priority, e.g. one of PRIORITY_* constants, higher value goes first and may pause
+     *                 running jobs of lower priority
+     * @return future which completes when the job completes, fails or is cancelled
+     */
+    @NonNull
+    public Future<Void> transform(@NonNull String jobId, @NonNull List<TrackTransform> trackTransforms, int priority) {
+        return submit(jobId, trackTransforms, priority, NO_DEADLINE, null, true);
+    }
+
+    /**
+     * Queue a transformation with a priority and a deadline
+     * @param jobId unique job id
+     * @param trackTransforms list of track transforms, one per target track
+     * @param priority job priority, e.g. one of PRIORITY_* constants
+     * @param deadlineMs time the job should be finished by, in milliseconds since epoch, or NO_DEADLINE
+     * @return future which completes when the job completes, fails or is cancelled
+     */
+    @NonNull
+    public Future<Void> transform(@NonNull String jobId,
+                                  @NonNull List<TrackTransform> trackTransforms,
+                                  int priority,
+                                  long deadlineMs) {
+        return submit(jobId, trackTransforms, priority, deadlineMs, null, true);
+    }
+
+    /**
+     * Queue a transformation which is never coalesced with other jobs, e.g. a segment job which is meant
+     * to run in parallel with jobs reading the same source
+     * @param onDone optional callback invoked once job completes, fails or is cancelled
+     */
+    @NonNull
+    Future<Void> transform(@NonNull String jobId,
+                           @NonNull List<TrackTransform> trackTransforms,
+                           int priority,
+                           long deadlineMs,
+                           @Nullable Runnable onDone) {
+        return submit(jobId, trackTransforms, priority, deadlineMs, onDone, false);
+    }
+
+    @NonNull
+    private Future<Void> submit(@NonNull String jobId,
+                                @NonNull List<TrackTransform> trackTransforms,
+                                int priority,
+                                long deadlineMs,
+                                @Nullable Runnable onDone,
+                                boolean coalescable) {
+        if (trackTransforms.isEmpty()) {
+            throw new IllegalArgumentException("No track transforms provided for job " + jobId);
+        }
+        TransformationJob job = new TransformationJob(jobId, new ArrayList<>(trackTransforms));
+        // compatible tracks may have been turned into passthrough tracks, count what the job really uses
+        JobTask jobTask = new JobTask(job, CodecCapacity.getDemand(job.getTrackTransforms()), priority, onDone);
+        jobTask.mThroughputMeter = new ThroughputMeter(mThroughputMeter);
+        jobTask.mCoalescable = coalescable;
+        job.setOnCodecsReleased(() -> returnCodecs(jobTask));
+        job.setThroughputMeter(jobTask.mThroughputMeter);
+        if (deadlineMs != NO_DEADLINE) {
+            jobTask.mDeadlineMs = deadlineMs;
+            jobTask.mDeadlineNs = toDeadlineNs(deadlineMs);
+            jobTask.mProfile = ThroughputModel.getProfile(job.getTrackTransforms());
+        }
+
+        synchronized (this) {
+            if (mReleased) {
+                throw new IllegalStateException("Transformer is released");
+            }
+            checkJobId(jobId);
+            jobTask.mSequence = mJobSequence++;
+            job.setProgressReporter(mProgressReporter);
+            if (mJobMemoryBudget != NO_MEMORY_BUDGET) {
+                job.setMemoryBudget(new MemoryBudget(mJobMemoryBudget));
+            }
+            mJobs.put(jobId, jobTask);
+            if (!mCodecCapacity.canEverAcquire(jobTask.mCodecDemand)) {
+                jobTask.fail(new IllegalStateException("Job " + jobId + " needs more codec instances than device has: "
+                        + jobTask.mCodecDemand));
+                return jobTask;
+            }
+            enqueue(jobTask);
+            scheduleJobs();
+        }
+        return jobTask;
+    }
+
+    /**
+     * Queue a segmented transformation. Video track of the source is split into keyframe aligned segments which
+     * are transcoded as separate jobs, in parallel as far as worker slots and codec capacity allow, and then
+     * stitched into the target with continuous timestamps. Segment and track jobs are queued under ids
+     * derived from jobId and removed once the segmented transformation is over. Status, progress and
+     * cancellation of jobId cover all of them.
+     * @param jobId unique job id
+     * @param segmentedTransform segmented transformation description
+     * @return future which completes when the target is written, fails or is cancelled
+     */
+    @NonNull
+    public Future<Void> transform(@NonNull String jobId, @NonNull SegmentedTransform segmentedTransform) {
+        SegmentedJobTask jobTask = new SegmentedJobTask(new SegmentedTransformationJob(jobId, segmentedTransform, this));
+        synchronized (this) {
+            if (mReleased) {
+                throw new IllegalStateException("Transformer is released");
+            }
+            checkJobId(jobId);
+            mSegmentedJobs.put(jobId, jobTask);
+            mCoordinatorExecutor.execute(jobTask);
+        }
+        return jobTask;
+    }
+
+    private void checkJobId(@NonNull String jobId) {
+        if (mJobs.containsKey(jobId) || mSegmentedJobs.containsKey(jobId)) {
+            throw new IllegalArgumentException("Job " + jobId + " already exists");
+        }
+    }
+
+    /**
+     * Get job status
+     * @param jobId job id
+     * @return one of TransformationJob.STATUS_* constants, -1 if job is unknown
+     */
+    public synchronized int getStatus(@NonNull String jobId) {
+        JobTask jobTask = mJobs.get(jobId);
+        if (jobTask != null) {
+            return jobTask.mJob.getStatus();
+        }
+        SegmentedJobTask segmentedJobTask = mSegmentedJobs.get(jobId);
+        return segmentedJobTask != null ? segmentedJobTask.getStatus() : -1;
+    }
+
+    /**
+     * Get job progress
+     * @param jobId job id
+     * @return progress from 0 to 1, -1 if job is unknown
+     */
+    public synchronized float getProgress(@NonNull String jobId) {
+        JobTask jobTask = mJobs.get(jobId);
+        if (jobTask != null) {
+            return jobTask.mJob.getProgress();
+        }
+        SegmentedJobTask segmentedJobTask = mSegmentedJobs.get(jobId);
+        return segmentedJobTask != null ? segmentedJobTask.mJob.getProgress() : -1;
+    }
+
+    /**
+     * Get target tracks of a job which were to be transcoded, but are written as is because their source
+     * already matches target format
+     * @param jobId job id
+     * @return target track indices, null if job is unknown
+     */
+    @Nullable
+    public synchronized List<Integer> getPassthroughTracks(@NonNull String jobId) {
+        JobTask jobTask = mJobs.get(jobId);
+        return jobTask != null ? jobTask.mJob.getPassthroughTracks() : null;
+    }
+
+    /**
+     * Get future of a job
+     * @param jobId job id
+     * @return future, null if job is unknown
+     */
+    @Nullable
+    public synchronized Future<Void> getFuture(@NonNull String jobId) {
+        JobTask jobTask = mJobs.get(jobId);
+        return jobTask != null ? jobTask : mSegmentedJobs.get(jobId);
+    }
+
+    /**
+     * Cancel a queued or running job, a segmented transformation is cancelled together with all its jobs
+     * @param jobId job id
+     * @return true if job was cancelled, false if it is unknown or already finished
+     */
+    public boolean cancel(@NonNull String jobId) {
+        Future<Void> future;
+        synchronized (this) {
+            future = getFuture(jobId);
+        }
+        return future != null && future.cancel(true);
+    }
+
+    /**
+     * Forget a finished job, so that its status is no longer kept
+     * @param jobId job id
+     * @return true if job was removed, false if it is unknown or still queued or running
+     */
+    public synchronized boolean removeJob(@NonNull String jobId) {
+        Future<Void> future = getFuture(jobId);
+        if (future == null || !future.isDone()) {
+            return false;
+        }
+        mJobs.remove(jobId);
+        mSegmentedJobs.remove(jobId);
+        return true;
+    }
+
+    /**
+     * Cancel all jobs and shut down worker pool. Transformer can not be used after it is released.
+     */
+    public void release() {
+        List<Future<Void>> futures;
+        synchronized (this) {
+            mReleased = true;
+            futures = new ArrayList<Future<Void>>(mSegmentedJobs.values());
+            futures.addAll(mJobs.values());
+        }
+        for (Future<Void> future : futures) {
+            future.cancel(true);
+        }
+        mCoordinatorExecutor.shutdownNow();
+        mMonitorExecutor.shutdownNow();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Get number of jobs allowed to run at the same time, changes over time if a concurrency controller is set
+     */
+    public synchronized int getJobLimit() {
+        return mJobLimit;
+    }
+
+    /**
+     * Get number of segments worth splitting a video into when running segments in parallel
+     * @param videoMimeType mime type of source video
+     */
+    int getDefaultSegmentCount(@NonNull String videoMimeType) {
+        return Math.max(1, Math.min(mMaxParallelJobs, mCodecCapacity.getCapacity(videoMimeType, false)));
+    }
+
+    /**
+     * Convert a wall clock deadline to System.nanoTime() base. Time left is clamped, so that a far away
+     * deadline does not overflow and end up in the past.
+     */
+    private static long toDeadlineNs(long deadlineMs) {
+        long nowNs = System.nanoTime();
+        long nowMs = System.currentTimeMillis();
+        long remainingMs;
+        if (deadlineMs > nowMs + MAX_DEADLINE_DELTA_MS) {
+            remainingMs = MAX_DEADLINE_DELTA_MS;
+        } else if (deadlineMs < nowMs - MAX_DEADLINE_DELTA_MS) {
+            remainingMs = -MAX_DEADLINE_DELTA_MS;
+        } else {
+            remainingMs = deadlineMs - nowMs;
+        }
+        return nowNs + TimeUnit.MILLISECONDS.toNanos(remainingMs);
+    }
+
+    /**
+     * Insert a job behind every job which should go before it
+     */
+    private void enqueue(@NonNull JobTask jobTask) {
+        ListIterator<JobTask> iterator = mPendingJobs.listIterator();
+        while (iterator.hasNext()) {
+            if (jobTask.goesBefore(iterator.next())) {
+                iterator.previous();
+                break;
+            }
+        }
+        iterator.add(jobTask);
+    }
+
+    /**
+     * Admit as many pending jobs as worker slots and codec capacity allow. Jobs are considered in queue order,
+     * a job which can not get its codecs does not block smaller jobs behind it. A job is admitted together with
+     * queued jobs reading the same source, as one coalesced job, when their codecs fit. Then make room for
+     * the first job left in the queue by pausing less urgent jobs, if needed.
+     */
+    private void scheduleJobs() {
+        for (JobTask jobTask : new ArrayList<>(mPendingJobs)) {
+            if (mRunningJobs.size() >= mMaxParallelJobs) {
+                break;
+            }
+            if (jobTask.isDone()) {
+                mPendingJobs.remove(jobTask);
+                continue;
+            }
+            if (jobTask.mAdmitted || mRunningJobs.size() >= getJobLimit(jobTask)) {
+                // coalesced into a job admitted in this pass, or no slot for it
+                continue;
+            }
+            JobTask coalescedJobTask = coalesce(jobTask);
+            if (coalescedJobTask != null) {
+                admit(coalescedJobTask);
+            } else if (mCodecCapacity.tryAcquire(jobTask.mCodecDemand)) {
+                mPendingJobs.remove(jobTask);
+                admit(jobTask);
+            }
+        }
+        preemptJobs();
+    }
+
+    private void admit(@NonNull JobTask jobTask) {
+        jobTask.mAdmitted = true;
+        jobTask.mHoldsCodecs = true;
+        mRunningJobs.add(jobTask);
+        mExecutor.execute(jobTask);
+    }
+
+    /**
+     * Merge a job about to be admitted with queued jobs which read the same file, over overlapping ranges,
+     * into one job which demuxes the file once and decodes each source track once for all of them. Jobs
+     * which never ran and read a single source are eligible. Merged jobs leave the queue, keep their futures
+     * and statuses, and complete when the coalesced job does.
+     * @return coalesced job which got its codecs, null if there is nothing to merge or merged job does not fit
+     */
+    @Nullable
+    private JobTask coalesce(@NonNull JobTask jobTask) {
+        String path = getCoalescingPath(jobTask);
+        if (path == null) {
+            return null;
+        }
+        MediaRange selection = jobTask.mJob.getTrackTransforms().get(0).getMediaSource().getSelection();
+        long start = selection.getStart();
+        long end = selection.getEnd();
+        List<JobTask> members = new ArrayList<>();
+        members.add(jobTask);
+        // ranges are merged transitively, repeat until no job overlaps the merged range
+        boolean merged;
+        do {
+            merged = false;
+            for (JobTask pendingJob : mPendingJobs) {
+                if (members.contains(pendingJob) || !path.equals(getCoalescingPath(pendingJob))) {
+                    continue;
+                }
+                MediaRange pendingSelection = pendingJob.mJob.getTrackTransforms().get(0).getMediaSource().getSelection();
+                if (pendingSelection.getStart() < end && start < pendingSelection.getEnd()) {
+                    start = Math.min(start, pendingSelection.getStart());
+                    end = Math.max(end, pendingSelection.getEnd());
+                    members.add(pendingJob);
+                    merged = true;
+                }
+            }
+        } while (merged);
+        if (members.size() == 1) {
+            return null;
+        }
+
+        // coalesced job owns sources and targets of its members from now on, unless a member is being
+        // cancelled right now and releases its own
+        Iterator<JobTask> iterator = members.iterator();
+        while (iterator.hasNext()) {
+            if (!iterator.next().mOwned.compareAndSet(false, true)) {
+                iterator.remove();
+            }
+        }
+        if (members.size() < 2) {
+            disown(members);
+            return null;
+        }
+
+        // first job's source is read by everyone, through views with their own selections
+        MediaSource firstMediaSource = members.get(0).mJob.getTrackTransforms().get(0).getMediaSource();
+        SharedMediaSource sharedMediaSource = new SharedMediaSource(firstMediaSource);
+        List<TrackTransform> trackTransforms = new ArrayList<>();
+        List<MediaSource> detachedMediaSources = new ArrayList<>();
+        for (JobTask member : members) {
+            MediaSource mediaSource = member.mJob.getTrackTransforms().get(0).getMediaSource();
+            MediaSource view = sharedMediaSource.createView(mediaSource.getSelection());
+            for (TrackTransform trackTransform : member.mJob.getTrackTransforms()) {
+                TrackTransform.Builder builder = trackTransform.getAnalyzer() != null
+                        ? new TrackTransform.Builder(view, trackTransform.getSourceTrack(), trackTransform.getAnalyzer())
+                        : new TrackTransform.Builder(view, trackTransform.getSourceTrack(), trackTransform.getMediaTarget());
+                trackTransforms.add(builder
+                        .setDecoder(trackTransform.getDecoder())
+                        .setRenderer(trackTransform.getRenderer())
+                        .setEncoder(trackTransform.getEncoder())
+                        .setTargetFormat(trackTransform.getTargetFormat())
+                        .setTargetTrack(trackTransform.getTargetTrack())
+                        .setOptions(trackTransform.getOptions())
+                        .build());
+            }
+            if (mediaSource != firstMediaSource) {
+                detachedMediaSources.add(mediaSource);
+            }
+        }
+        Map<String, Integer> codecDemand = CodecCapacity.getDemand(trackTransforms);
+        if (!mCodecCapacity.tryAcquire(codecDemand)) {
+            // views are dropped unused, every job still has its own source
+            disown(members);
+            return null;
+        }
+
+        StringBuilder coalescedJobId = new StringBuilder();
+        int priority = PRIORITY_LOW;
+        for (JobTask member : members) {
+            coalescedJobId.append(coalescedJobId.length() == 0 ? "" : "+").append(member.mJob.getJobId());
+            priority = Math.max(priority, member.mPriority);
+        }
+        TransformationJob job = new TransformationJob(coalescedJobId.toString(), trackTransforms);
+        job.setDetachedMediaSources(detachedMediaSources);
+        job.setProgressReporter(mProgressReporter);
+        List<TransformationJob> memberJobs = new ArrayList<>();
+        for (JobTask member : members) {
+            memberJobs.add(member.mJob);
+        }
+        job.setCoalescedJobs(memberJobs);
+        job.setMemoryBudget(getCoalescedMemoryBudget(memberJobs));
+        JobTask coalescedJobTask = new JobTask(job, codecDemand, priority, null);
+        coalescedJobTask.mThroughputMeter = new ThroughputMeter(mThroughputMeter);
+        coalescedJobTask.mSequence = jobTask.mSequence;
+        coalescedJobTask.mMembers = new ArrayList<>();
+        job.setOnCodecsReleased(() -> returnCodecs(coalescedJobTask));
+        job.setThroughputMeter(coalescedJobTask.mThroughputMeter);
+        for (JobTask member : members) {
+            mPendingJobs.remove(member);
+            member.mAdmitted = true;
+            member.mGroup = coalescedJobTask;
+            member.mJob.setStatus(TransformationJob.STATUS_RUNNING);
+            coalescedJobTask.mMembers.add(member);
+            if (member.mDeadlineNs < coalescedJobTask.mDeadlineNs) {
+                coalescedJobTask.mDeadlineNs = member.mDeadlineNs;
+                coalescedJobTask.mDeadlineMs = member.mDeadlineMs;
+            }
+        }
+        if (coalescedJobTask.mDeadlineNs != NO_DEADLINE) {
+            // tracked as a whole, members with deadlines are checked against its predicted finish time
+            coalescedJobTask.mProfile = ThroughputModel.getProfile(trackTransforms);
+        }
+        LogUtils.i(TAG, "Coalesced jobs " + coalescedJobId + " into one decode pass");
+        return coalescedJobTask;
+    }
+
+    /**
+     * Give jobs which were not coalesced after all their resources back
+     */
+    private void disown(@NonNull List<JobTask> jobTasks) {
+        for (JobTask jobTask : jobTasks) {
+            jobTask.mOwned.set(false);
+            if (jobTask.isDone() && jobTask.mOwned.compareAndSet(false, true)) {
+                // cancelled while it was held here, nobody released it
+                jobTask.mJob.releaseIdle();
+            }
+        }
+    }
+
+    /**
+     * Coalesced job gets the budgets of its jobs together, or none if one of them had none
+     */
+    @Nullable
+    private static MemoryBudget getCoalescedMemoryBudget(@NonNull List<TransformationJob> jobs) {
+        long capacity = 0;
+        for (TransformationJob job : jobs) {
+            MemoryBudget memoryBudget = job.getMemoryBudget();
+            if (memoryBudget == null) {
+                return null;
+            }
+            capacity += memoryBudget.getCapacity();
+        }
+        return new MemoryBudget(capacity);
+    }
+
+    /**
+     * Get path of the file a job reads, if the job can be coalesced with others
+     * @return path, null if job can not be coalesced
+     */
+    @Nullable
+    private static String getCoalescingPath(@NonNull JobTask jobTask) {
+        if (!jobTask.mCoalescable
+                || jobTask.mAdmitted
+                || jobTask.isDone()
+                || jobTask.mJob.getStatus() != TransformationJob.STATUS_QUEUED) {
+            return null;
+        }
+        MediaSource mediaSource = null;
+        for (TrackTransform trackTransform : jobTask.mJob.getTrackTransforms()) {
+            if (mediaSource != null && trackTransform.getMediaSource() != mediaSource) {
+                return null;
+            }
+            mediaSource = trackTransform.getMediaSource();
+        }
+        if (!(mediaSource instanceof MediaExtractorMediaSource) || mediaSource.getCutList() != null) {
+            // a view has a single selection, cut lists are not shared
+            return null;
+        }
+        return ((MediaExtractorMediaSource) mediaSource).getPath();
+    }
+
+    /**
+     * Pause just enough less urgent running jobs for the first queued job to fit. Jobs which are already
+     * pausing count as free, so a burst of scheduling passes does not pause more jobs than needed.
+     */
+    private void preemptJobs() {
+        JobTask waitingJob = null;
+        for (JobTask jobTask : mPendingJobs) {
+            if (!jobTask.isDone()) {
+                waitingJob = jobTask;
+                break;
+            }
+        }
+        if (waitingJob == null) {
+            return;
+        }
+
+        List<Map<String, Integer>> releasingDemands = new ArrayList<>();
+        List<JobTask> candidates = new ArrayList<>();
+        int releasingSlots = 0;
+        for (JobTask jobTask : mRunningJobs) {
+            if (!jobTask.mHoldsCodecs) {
+                // finishing, codecs are back already
+                releasingSlots++;
+            } else if (jobTask.mJob.isSuspendRequested()) {
+                releasingDemands.add(jobTask.mCodecDemand);
+                releasingSlots++;
+            } else if (waitingJob.mayPreempt(jobTask) && jobTask.mJob.isSuspendable()) {
+                candidates.add(jobTask);
+            }
+        }
+        // least urgent first
+        Collections.sort(candidates, (jobTask, otherJobTask) -> jobTask.goesBefore(otherJobTask)
+                ? 1
+                : otherJobTask.goesBefore(jobTask) ? -1 : 0);
+
+        List<JobTask> victims = new ArrayList<>();
+        while (!fitsAfterRelease(waitingJob, releasingSlots, releasingDemands)) {
+            if (candidates.isEmpty()) {
+                // pausing everything eligible would not be enough, leave running jobs alone
+                return;
+            }
+            JobTask victim = candidates.remove(0);
+            victims.add(victim);
+            releasingDemands.add(victim.mCodecDemand);
+            releasingSlots++;
+        }
+        for (JobTask victim : victims) {
+            LogUtils.i(TAG, "Pausing job " + victim.mJob.getJobId() + " for job " + waitingJob.mJob.getJobId());
+            victim.mJob.requestSuspend();
+        }
+    }
+
+    private boolean fitsAfterRelease(@NonNull JobTask jobTask,
+                                     int releasingSlots,
+                                     @NonNull List<Map<String, Integer>> releasingDemands) {
+        return mRunningJobs.size() - releasingSlots < getJobLimit(jobTask)
+                && mCodecCapacity.canAcquireAfterRelease(jobTask.mCodecDemand, releasingDemands);
+    }
+
+    /**
+     * Get number of running jobs a job may be admitted under, a job at risk of missing its deadline
+     * may use every worker
+     */
+    private int getJobLimit(@NonNull JobTask jobTask) {
+        return jobTask.mAtRisk ? mMaxParallelJobs : mJobLimit;
+    }
+
+    /**
+     * Periodic work of the monitor thread: concurrency control and deadline tracking. Listener is called
+     * outside of the lock.
+     */
+    private void monitorJobs() {
+        List<JobTask> atRiskJobs;
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            sampleThroughput();
+            atRiskJobs = checkDeadlines();
+        }
+        DeadlineListener deadlineListener = mDeadlineListener;
+        for (JobTask jobTask : atRiskJobs) {
+            LogUtils.w(TAG, "Job " + jobTask.mJob.getJobId() + " is predicted to miss its deadline by "
+                    + (jobTask.mPredictedFinishTimeMs - jobTask.mDeadlineMs) + "ms");
+            if (deadlineListener != null) {
+                deadlineListener.onDeadlineAtRisk(jobTask.mJob.getJobId(), jobTask.mPredictedFinishTimeMs, jobTask.mDeadlineMs);
+            }
+        }
+    }
+
+    /**
+     * Predict finish times of queued and running jobs with deadlines. Queued jobs are predicted as if they
+     * started now, so they are only flagged when even that is too late. A coalesced job is scheduled by
+     * the earliest deadline of its jobs, and each of its jobs with a deadline is reported on its own.
+     * @return jobs which became at risk since last check
+     */
+    @NonNull
+    private List<JobTask> checkDeadlines() {
+        List<JobTask> atRiskJobs = new ArrayList<>();
+        boolean reschedule = false;
+        long nowNs = System.nanoTime();
+        long nowMs = System.currentTimeMillis();
+        for (List<JobTask> jobTasks : Arrays.asList(mRunningJobs, mPendingJobs)) {
+            for (JobTask jobTask : jobTasks) {
+                if ((jobTask.mAtRisk && jobTask.mMembers == null) || jobTask.mProfile == null || jobTask.isDone()) {
+                    continue;
+                }
+                long remainingTimeNs = mThroughputModel.predictRemainingTimeNs(jobTask.mProfile,
+                        jobTask.mThroughputMeter.getFrameCount(),
+                        jobTask.getRunningTimeNs(nowNs));
+                long finishTimeNs = nowNs + remainingTimeNs;
+                long finishTimeMs = nowMs + TimeUnit.NANOSECONDS.toMillis(remainingTimeNs);
+                if (!jobTask.mAtRisk && finishTimeNs > jobTask.mDeadlineNs) {
+                    jobTask.mAtRisk = true;
+                    jobTask.mPredictedFinishTimeMs = finishTimeMs;
+                    reschedule = true;
+                    if (jobTask.mMembers == null) {
+                        atRiskJobs.add(jobTask);
+                    }
+                }
+                if (jobTask.mMembers != null) {
+                    for (JobTask member : jobTask.mMembers) {
+                        if (!member.mAtRisk
+                                && member.mDeadlineNs != NO_DEADLINE
+                                && !member.isDone()
+                                && finishTimeNs > member.mDeadlineNs) {
+                            member.mAtRisk = true;
+                            member.mPredictedFinishTimeMs = finishTimeMs;
+                            atRiskJobs.add(member);
+                        }
+                    }
+                }
+            }
+        }
+        if (reschedule) {
+            scheduleJobs();
+        }
+        return atRiskJobs;
+    }
+
+    /**
+     * Feed the concurrency controller with throughput counters and apply the limit it comes up with. When the
+     * limit goes down running jobs are left alone, fewer jobs are admitted as they finish.
+     */
+    private void sampleThroughput() {
+        if (mConcurrencyController == null) {
+            return;
+        }
+        boolean saturated = mRunningJobs.size() >= mJobLimit && hasPendingJobs();
+        int jobLimit = mConcurrencyController.onSample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()),
+                mThroughputMeter.getFrameCount(),
+                mThroughputMeter.getByteCount(),
+                saturated);
+        if (jobLimit != mJobLimit) {
+            LogUtils.i(TAG, "Job limit " + mJobLimit + " -> " + jobLimit);
+            mJobLimit = jobLimit;
+            scheduleJobs();
+        }
+    }
+
+    private boolean hasPendingJobs() {
+        for (JobTask jobTask : mPendingJobs) {
+            if (!jobTask.isDone()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take a job which is done out of the queue
+     * @return coalesced job the job was part of, if every job in it is cancelled by now, so that it should
+     *         be cancelled as well; null otherwise
+     */
+    @Nullable
+    private synchronized JobTask onJobDone(@NonNull JobTask jobTask) {
+        if (!jobTask.mAdmitted) {
+            // cancelled or failed while still queued
+            mPendingJobs.remove(jobTask);
+        }
+        JobTask coalescedJobTask = jobTask.mGroup;
+        if (coalescedJobTask == null || !jobTask.isCancelled() || coalescedJobTask.isDone()) {
+            return null;
+        }
+        for (JobTask member : coalescedJobTask.mMembers) {
+            if (!member.isCancelled()) {
+                return null;
+            }
+        }
+        return coalescedJobTask;
+    }
+
+    /**
+     * Hand codecs of a job over to queued jobs as soon as the job released them
+     */
+    private synchronized void returnCodecs(@NonNull JobTask jobTask) {
+        if (!jobTask.mHoldsCodecs) {
+            return;
+        }
+        mCodecCapacity.release(jobTask.mCodecDemand);
+        jobTask.mHoldsCodecs = false;
+        if (!mReleased) {
+            scheduleJobs();
+        }
+    }
+
+    private synchronized void onJobFinished(@NonNull JobTask jobTask) {
+        // codecs are released by now, unless job already returned them hand them over to queued jobs
+        if (jobTask.mHoldsCodecs) {
+            mCodecCapacity.release(jobTask.mCodecDemand);
+            jobTask.mHoldsCodecs = false;
+        }
+        mRunningJobs.remove(jobTask);
+        if (jobTask.mProfile != null && jobTask.mJob.getStatus() == TransformationJob.STATUS_COMPLETED) {
+            mThroughputModel.record(jobTask.mProfile,
+                    jobTask.mThroughputMeter.getFrameCount(),
+                    jobTask.getRunningTimeNs(System.nanoTime()));
+        }
+        if (!jobTask.isDone() && jobTask.mJob.isSuspended()) {
+            // paused to make room, queue it again to resume later
+            jobTask.mAdmitted = false;
+            jobTask.mJob.setStatus(TransformationJob.STATUS_PAUSED);
+            if (!mReleased) {
+                enqueue(jobTask);
+            }
+        }
+        if (!mReleased) {
+            scheduleJobs();
+        }
+    }
+
+    /**
+     * Segmented transformation running on a coordinator thread, its segment and track jobs are queued as
+     * regular jobs
+     */
+    private static class SegmentedJobTask extends FutureTask<Void> {
+
+        private final SegmentedTransformationJob mJob;
+
+        private SegmentedJobTask(@NonNull SegmentedTransformationJob job) {
+            super(() -> {
+                job.run();
+                return null;
+            });
+            mJob = job;
+        }
+
+        private int getStatus() {
+            if (isCancelled()) {
+                return TransformationJob.STATUS_CANCELLED;
+            }
+            if (!isDone()) {
+                return mJob.getStatus();
+            }
+            try {
+                get();
+                return TransformationJob.STATUS_COMPLETED;
+            } catch (ExecutionException | InterruptedException e) {
+                return TransformationJob.STATUS_FAILED;
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                mJob.cancelJobs();
+            }
+            return cancelled;
+        }
+    }
+
+    private class JobTask extends FutureTask<Void> {
+
+        private final TransformationJob mJob;
+        private final Map<String, Integer> mCodecDemand;
+        private final int mPriority;
+        @Nullable private final Runnable mOnDone;
+
+        // held by a worker while it runs the job, whoever takes an idle job for good, a worker or
+        // a cancellation, is responsible for releasing its resources
+        private final AtomicBoolean mOwned;
+
+        // set at submission
+        private ThroughputMeter mThroughputMeter;
+        private boolean mCoalescable;
+        private long mDeadlineMs = NO_DEADLINE;
+        private long mDeadlineNs = NO_DEADLINE;
+        @Nullable private ThroughputModel.Profile mProfile;
+
+        // guarded by Transformer.this
+        private boolean mAdmitted;
+        private boolean mHoldsCodecs;
+        private long mSequence;
+        private boolean mAtRisk;
+        private long mPredictedFinishTimeMs;
+        // coalesced job this job runs in, and jobs running in a coalesced job, set once on admission
+        @Nullable private JobTask mGroup;
+        @Nullable private List<JobTask> mMembers;
+
+        // written by worker, read by monitor
+        private volatile long mRunningTimeNs;
+        private volatile long mRunStartNs;
+
+        private JobTask(@NonNull TransformationJob job,
+                        @NonNull Map<String, Integer> codecDemand,
+                        int priority,
+                        @Nullable Runnable onDone) {
+            this(job, codecDemand, priority, onDone, new AtomicBoolean());
+        }
+
+        private JobTask(@NonNull TransformationJob job,
+                        @NonNull Map<String, Integer> codecDemand,
+                        int priority,
+                        @Nullable Runnable onDone,
+                        @NonNull AtomicBoolean owned) {
+            super(() -> {
+                if (!owned.compareAndSet(false, true)) {
+                    return null;
+                }
+                boolean suspended = false;
+                try {
+                    job.setStatus(TransformationJob.STATUS_RUNNING);
+                    job.run();
+                    suspended = job.isSuspended();
+                } finally {
+                    if (suspended) {
+                        // idle again until it is admitted to resume
+                        owned.set(false);
+                    }
+                }
+                return null;
+            });
+            mJob = job;
+            mCodecDemand = codecDemand;
+            mPriority = priority;
+            mOnDone = onDone;
+            mOwned = owned;
+        }
+
+        private boolean goesBefore(@NonNull JobTask jobTask) {
+            if (mPriority != jobTask.mPriority) {
+                return mPriority > jobTask.mPriority;
+            }
+            if (mDeadlineNs != jobTask.mDeadlineNs) {
+                return mDeadlineNs < jobTask.mDeadlineNs;
+            }
+            return mSequence < jobTask.mSequence;
+        }
+
+        /**
+         * Check if this job may pause a running job to make room: one of lower priority, or, when this job
+         * is at risk, one of the same priority with a later deadline which is not at risk itself
+         */
+        private boolean mayPreempt(@NonNull JobTask jobTask) {
+            if (mPriority != jobTask.mPriority) {
+                return mPriority > jobTask.mPriority;
+            }
+            return mAtRisk && !jobTask.mAtRisk && mDeadlineNs < jobTask.mDeadlineNs;
+        }
+
+        private long getRunningTimeNs(long nowNs) {
+            long runStartNs = mRunStartNs;
+            return mRunningTimeNs + (runStartNs != 0 ? nowNs - runStartNs : 0);
+        }
+
+        private void fail(@NonNull Throwable throwable) {
+            setException(throwable);
+        }
+
+        @Override
+        protected void done() {
+            Throwable failure = null;
+            if (isCancelled()) {
+                mJob.setStatus(TransformationJob.STATUS_CANCELLED);
+            } else {
+                try {
+                    get();
+                    mJob.setStatus(TransformationJob.STATUS_COMPLETED);
+                } catch (ExecutionException | InterruptedException | CancellationException e) {
+                    LogUtils.e(TAG, "Job " + mJob.getJobId() + " failed: " + e);
+                    mJob.setStatus(TransformationJob.STATUS_FAILED);
+                    failure = e instanceof ExecutionException ? e.getCause() : e;
+                }
+            }
+            JobTask abandonedJobTask = onJobDone(this);
+            if (mOwned.compareAndSet(false, true)) {
+                // job is not running, never ran or is paused, its sources and targets are still open
+                mJob.releaseIdle();
+            }
+            if (abandonedJobTask != null) {
+                LogUtils.i(TAG, "Every job coalesced into " + abandonedJobTask.mJob.getJobId() + " is cancelled");
+                abandonedJobTask.cancel(true);
+            }
+            if (mMembers != null) {
+                finishMembers(failure);
+            }
+            if (mOnDone != null) {
+                mOnDone.run();
+            }
+        }
+
+        /**
+         * Complete jobs coalesced into this one the way this one completed. A member cancelled on its own
+         * while others went on does not get its output.
+         */
+        private void finishMembers(@Nullable Throwable failure) {
+            for (JobTask member : mMembers) {
+                if (member.isCancelled()) {
+                    for (TrackTransform trackTransform : member.mJob.getTrackTransforms()) {
+                        TransformationJob.deleteOutput(trackTransform.getMediaTarget());
+                    }
+                } else if (isCancelled()) {
+                    member.cancel(false);
+                } else if (failure != null) {
+                    member.setException(failure);
+                } else {
+                    member.set(null);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            mRunStartNs = System.nanoTime();
+            try {
+                // a paused job keeps its future pending and runs again when it is admitted back
+                if (runAndReset() && !mJob.isSuspended()) {
+                    set(null);
+                }
+                if (isCancelled() && mOwned.compareAndSet(false, true)) {
+                    // cancelled right when it paused
+                    mJob.releaseIdle();
+                }
+            } finally {
+                mRunningTimeNs += System.nanoTime() - mRunStartNs;
+                mRunStartNs = 0;
+                onJobFinished(this);
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String mNamePrefix;
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        private WorkerThreadFactory(@NonNull String namePrefix) {
+            mNamePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            return new Thread(runnable, mNamePrefix + mThreadCount.incrementAndGet());
+        }
+    }
 }
@@ -0,0 +1,22 @@
+package com.jeffmony.videolibrary.codec;
+
+import androidx.annotation.Nullable;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Codec which learns about buffer availability from codec callbacks instead of polling.
+ */
+public interface AsyncCodec {
+
+    /**
+     * Set a listener invoked on codec callback thread whenever an input or output buffer becomes available,
+     * output format changes or codec fails. Listener should be cheap, e.g. wake up a waiting run loop.
+     * @param listener listener, null to remove
+     */
+    void setOnBufferAvailableListener(@Nullable Runnable listener);
+}
@@ -0,0 +1,163 @@
+package com.jeffmony.videolibrary.codec;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * {@link MediaCodec.Callback} shared by asynchronous decoder and encoder. Callbacks arrive on a dedicated
+ * handler thread, since job threads have no looper, and only push buffer indices into lock free queues.
+ * Dequeue calls then read those queues the same way synchronous codec dequeue calls would, including
+ * their timeout semantics, so track transcoders do not need to know which mode a codec runs in.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+final class AsyncCodecCallback extends MediaCodec.Callback {
+
+    // more than any codec allocates buffers, format change events included
+    private static final int QUEUE_CAPACITY = 64;
+
+    private final CodecBufferQueue mInputQueue = new CodecBufferQueue(QUEUE_CAPACITY);
+    private final CodecBufferQueue mOutputQueue = new CodecBufferQueue(QUEUE_CAPACITY);
+
+    @Nullable private HandlerThread mHandlerThread;
+    @Nullable private volatile Runnable mListener;
+    @Nullable private volatile IllegalStateException mError;
+    private volatile boolean mActive;
+
+    @NonNull
+    Handler getHandler(@NonNull String name) {
+        if (mHandlerThread == null) {
+            mHandlerThread = new HandlerThread(name);
+            mHandlerThread.start();
+        }
+        return new Handler(mHandlerThread.getLooper());
+    }
+
+    void setListener(@Nullable Runnable listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Start accepting callbacks, should be called right before codec is started. Error of a codec this
+     * callback served before, which was replaced by a newly configured one, is cleared.
+     */
+    void activate() {
+        mInputQueue.clear();
+        mOutputQueue.clear();
+        mError = null;
+        mActive = true;
+    }
+
+    /**
+     * Stop accepting callbacks, should be called right before codec is stopped. Callbacks which are
+     * already posted to handler thread refer to buffers of the stopped codec and are dropped.
+     */
+    void deactivate() {
+        mActive = false;
+        mInputQueue.clear();
+        mOutputQueue.clear();
+    }
+
+    void quit() {
+        mActive = false;
+        if (mHandlerThread != null) {
+            mHandlerThread.quitSafely();
+            mHandlerThread = null;
+        }
+    }
+
+    /**
+     * @return input buffer index or {@link MediaCodec#INFO_TRY_AGAIN_LATER}
+     */
+    int dequeueInputBuffer(long timeoutUs) {
+        checkError();
+        if (!mInputQueue.await(timeoutUs)) {
+            checkError();
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        return mInputQueue.poll();
+    }
+
+    /**
+     * @return output buffer index, {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED} or {@link MediaCodec#INFO_TRY_AGAIN_LATER}
+     */
+    int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs) {
+        checkError();
+        if (!mOutputQueue.await(timeoutUs)) {
+            checkError();
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        int index = mOutputQueue.poll();
+        if (index >= 0) {
+            info.set(mOutputQueue.getOffset(),
+                    mOutputQueue.getSize(),
+                    mOutputQueue.getPresentationTimeUs(),
+                    mOutputQueue.getFlags());
+        }
+        return index;
+    }
+
+    @Override
+    public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        if (mActive && !mInputQueue.offer(index)) {
+            fail(new IllegalStateException("Input buffer queue overflow"));
+        }
+        notifyListener();
+    }
+
+    @Override
+    public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+        if (mActive && !mOutputQueue.offer(index, info.offset, info.size, info.presentationTimeUs, info.flags)) {
+            fail(new IllegalStateException("Output buffer queue overflow"));
+        }
+        notifyListener();
+    }
+
+    @Override
+    public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+        fail(e);
+    }
+
+    @Override
+    public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        if (mActive && !mOutputQueue.offer(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)) {
+            fail(new IllegalStateException("Output buffer queue overflow"));
+        }
+        notifyListener();
+    }
+
+    private void fail(@NonNull IllegalStateException error) {
+        if (mError == null) {
+            mError = error;
+        }
+        mInputQueue.wakeUp();
+        mOutputQueue.wakeUp();
+        notifyListener();
+    }
+
+    private void checkError() {
+        IllegalStateException error = mError;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void notifyListener() {
+        Runnable listener = mListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+}
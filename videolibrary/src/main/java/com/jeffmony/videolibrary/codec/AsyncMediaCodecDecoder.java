@@ -0,0 +1,146 @@
+package com.jeffmony.videolibrary.codec;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.jeffmony.videolibrary.utils.CodecUtils;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Decoder running {@link MediaCodec} in asynchronous mode. Buffer indices are delivered by codec callbacks,
+ * so dequeue calls never enter the codec and wait on a lock free queue when a timeout is given.
+ * Can be used anywhere {@link MediaCodecDecoder} is used.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class AsyncMediaCodecDecoder implements Decoder, AsyncCodec {
+
+    private MediaCodec mMediaCodec;
+    private String mCodecName;
+    private final Set<String> mExcludedCodecs = new HashSet<>();
+
+    private boolean mIsRunning;
+    private boolean mIsReleased = true;
+    private final AsyncCodecCallback mCallback = new AsyncCodecCallback();
+    private final MediaCodec.BufferInfo mOutputBufferInfo = new MediaCodec.BufferInfo();
+
+    @Override
+    public void init(@NonNull MediaFormat format, @Nullable Surface surface) throws Exception {
+        mMediaCodec = CodecUtils.getAndConfigureCodec(format, surface, false,
+                mCallback, mCallback.getHandler("AsyncDecoder"), mExcludedCodecs);
+        mCodecName = mMediaCodec != null ? mMediaCodec.getName() : null;
+        mIsReleased = (mMediaCodec == null);
+    }
+
+    @Override
+    public void setOnBufferAvailableListener(@Nullable Runnable listener) {
+        mCallback.setListener(listener);
+    }
+
+    @Override
+    public void start() {
+        if (!mIsRunning) {
+            mCallback.activate();
+            mMediaCodec.start();
+            mIsRunning = true;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    @Override
+    public int dequeueInputFrame(long timeout) {
+        return mCallback.dequeueInputBuffer(timeout);
+    }
+
+    @Override
+    public Frame getInputFrame(int tag) {
+        if (tag >= 0) {
+            ByteBuffer inputBuffer = mMediaCodec.getInputBuffer(tag);
+            return new Frame(tag, inputBuffer, null);
+        }
+        return null;
+    }
+
+    @Override
+    public void queueInputFrame(Frame frame) {
+        mMediaCodec.queueInputBuffer(frame.mTag,
+                frame.mBufferInfo.offset,
+                frame.mBufferInfo.size,
+                frame.mBufferInfo.presentationTimeUs,
+                frame.mBufferInfo.flags);
+    }
+
+    @Override
+    public int dequeueOutputFrame(long timeout) {
+        return mCallback.dequeueOutputBuffer(mOutputBufferInfo, timeout);
+    }
+
+    @Override
+    public Frame getOutputFrame(int tag) {
+        if (tag >= 0) {
+            ByteBuffer buffer = mMediaCodec.getOutputBuffer(tag);
+            return new Frame(tag, buffer, mOutputBufferInfo);
+        }
+        return null;
+    }
+
+    @Override
+    public void releaseOutputFrame(int tag, boolean render) {
+        mMediaCodec.releaseOutputBuffer(tag, render);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mMediaCodec.getOutputFormat();
+    }
+
+    @Override
+    public void stop() {
+        if (mIsRunning) {
+            mCallback.deactivate();
+            mMediaCodec.stop();
+            mIsRunning = false;
+        }
+    }
+
+    @Override
+    public void release() {
+        if (!mIsReleased) {
+            mMediaCodec.release();
+            mIsReleased = true;
+        }
+        mCallback.quit();
+    }
+
+    @Override
+    public boolean excludeCurrentCodec() {
+        if (mCodecName == null) {
+            return false;
+        }
+        mExcludedCodecs.add(mCodecName);
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return mMediaCodec.getName();
+    }
+}
@@ -0,0 +1,195 @@
+package com.jeffmony.videolibrary.codec;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Lock free single producer / single consumer ring of codec buffer indices, together with buffer info
+ * of output buffers. Producer is the codec callback thread, consumer is whoever dequeues frames. Entries
+ * are kept as primitives so that nothing is allocated per buffer, and the class does not touch any
+ * Android API, so its logic can be exercised on a plain JVM.
+ * <p>
+ * A negative index is stored as is, which lets output format change travel in order with output buffers.
+ */
+final class CodecBufferQueue {
+
+    static final int NO_ENTRY = -1;
+
+    private final int mMask;
+    private final int[] mIndices;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mPresentationTimesUs;
+    private final int[] mFlags;
+
+    // written by consumer only
+    private final AtomicLong mHead = new AtomicLong();
+    // written by producer only
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile Thread mWaiter;
+    private volatile boolean mWakeUpRequested;
+
+    // buffer info of the entry returned by last poll, consumer side only
+    private int mOffset;
+    private int mSize;
+    private long mPresentationTimeUs;
+    private int mFlag;
+
+    /**
+     * @param capacity max number of entries, rounded up to a power of two
+     */
+    CodecBufferQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be greater than 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mIndices = new int[size];
+        mOffsets = new int[size];
+        mSizes = new int[size];
+        mPresentationTimesUs = new long[size];
+        mFlags = new int[size];
+    }
+
+    /**
+     * Producer side. Add an input buffer index, or any entry without buffer info.
+     * @return false if queue is full
+     */
+    boolean offer(int index) {
+        return offer(index, 0, 0, 0, 0);
+    }
+
+    /**
+     * Producer side. Add an output buffer index with its buffer info.
+     * @return false if queue is full
+     */
+    boolean offer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            return false;
+        }
+        int slot = (int) (tail & mMask);
+        mIndices[slot] = index;
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mPresentationTimesUs[slot] = presentationTimeUs;
+        mFlags[slot] = flags;
+        // volatile store publishes slot contents, and is not reordered with the waiter read below, so a consumer
+        // which went to sleep on an empty queue is always woken up
+        mTail.set(tail + 1);
+
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * Consumer side. Take next entry, its buffer info is then available through getters.
+     * @return buffer index or negative info value, {@link #NO_ENTRY} if queue is empty
+     */
+    int poll() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return NO_ENTRY;
+        }
+        int slot = (int) (head & mMask);
+        int index = mIndices[slot];
+        mOffset = mOffsets[slot];
+        mSize = mSizes[slot];
+        mPresentationTimeUs = mPresentationTimesUs[slot];
+        mFlag = mFlags[slot];
+        mHead.lazySet(head + 1);
+        return index;
+    }
+
+    /**
+     * Consumer side. Wait until queue has an entry.
+     * @param timeoutUs 0 to return immediately, negative to wait indefinitely
+     * @return true if an entry is available, false on timeout, interrupt or {@link #wakeUp()}
+     */
+    boolean await(long timeoutUs) {
+        if (!isEmpty() || timeoutUs == 0) {
+            return !isEmpty();
+        }
+        long deadline = System.nanoTime() + timeoutUs * 1000;
+        mWaiter = Thread.currentThread();
+        try {
+            while (isEmpty()) {
+                if (mWakeUpRequested) {
+                    mWakeUpRequested = false;
+                    return false;
+                }
+                if (timeoutUs < 0) {
+                    LockSupport.park(this);
+                } else {
+                    long remainingNs = deadline - System.nanoTime();
+                    if (remainingNs <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, remainingNs);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return !isEmpty();
+                }
+            }
+            return true;
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    /**
+     * Wake up a consumer blocked in {@link #await(long)}, e.g. when codec failed.
+     */
+    void wakeUp() {
+        mWakeUpRequested = true;
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * Consumer side. Drop all entries, e.g. after codec was stopped or flushed.
+     */
+    void clear() {
+        mWakeUpRequested = false;
+        mHead.lazySet(mTail.get());
+    }
+
+    int getOffset() {
+        return mOffset;
+    }
+
+    int getSize() {
+        return mSize;
+    }
+
+    long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    int getFlags() {
+        return mFlag;
+    }
+}
@@ -85,4 +85,12 @@ public interface Decoder {
     void release();
 
     String getName();
+
+    /**
+     * 排除当前的解码器，解码器出错之后再次init会选择下一个可用的解码器
+     * @return 是否支持回退到下一个解码器
+     */
+    default boolean excludeCurrentCodec() {
+        return false;
+    }
 }
@@ -101,4 +101,12 @@ public interface Encoder {
      * @return
      */
     String getName();
+
+    /**
+     * 排除当前的编码器，编码器出错之后再次init会选择下一个可用的编码器
+     * @return 是否支持回退到下一个编码器
+     */
+    default boolean excludeCurrentCodec() {
+        return false;
+    }
 }
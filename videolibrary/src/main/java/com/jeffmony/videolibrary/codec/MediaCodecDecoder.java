@@ -11,6 +11,8 @@ import androidx.annotation.Nullable;
 import com.jeffmony.videolibrary.utils.CodecUtils;
 
 import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * @author : jeffli
@@ -21,6 +23,8 @@ import java.nio.ByteBuffer;
 public class MediaCodecDecoder implements Decoder {
 
     private MediaCodec mMediaCodec;
+    private String mCodecName;
+    private final Set<String> mExcludedCodecs = new HashSet<>();
 
     private boolean mIsRunning;
     private boolean mIsReleased;
@@ -28,7 +32,9 @@ public class MediaCodecDecoder implements Decoder {
 
     @Override
     public void init(@NonNull MediaFormat format, @Nullable Surface surface) throws Exception {
-        mMediaCodec = CodecUtils.getAndConfigureCodec(format, surface, false);
+        mMediaCodec = CodecUtils.getAndConfigureCodec(format, surface, false,
+                null, null, mExcludedCodecs);
+        mCodecName = mMediaCodec != null ? mMediaCodec.getName() : null;
         mIsReleased = (mMediaCodec == null);
     }
 
@@ -116,10 +122,20 @@ public class MediaCodecDecoder implements Decoder {
     public void release() {
         if (!mIsReleased) {
             mMediaCodec.release();
-            mIsReleased = false;
+            mIsReleased = true;
         }
     }
 
+    @Override
+    public boolean excludeCurrentCodec() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mCodecName == null) {
+            // codecs are picked by type only, the same one would come back
+            return false;
+        }
+        mExcludedCodecs.add(mCodecName);
+        return true;
+    }
+
     @Override
     public String getName() {
         return mMediaCodec.getName();
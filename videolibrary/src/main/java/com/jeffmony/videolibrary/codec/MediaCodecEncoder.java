@@ -11,6 +11,8 @@ import androidx.annotation.NonNull;
 import com.jeffmony.videolibrary.utils.CodecUtils;
 
 import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * @author : jeffli
@@ -21,6 +23,8 @@ import java.nio.ByteBuffer;
 public class MediaCodecEncoder implements Encoder {
 
     private MediaCodec mMediaCodec;
+    private String mCodecName;
+    private final Set<String> mExcludedCodecs = new HashSet<>();
 
     private boolean mIsReleased = true;
     private boolean mIsRunning;
@@ -33,7 +37,9 @@ public class MediaCodecEncoder implements Encoder {
             format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         }
 
-        mMediaCodec = CodecUtils.getAndConfigureCodec(format, null, true);
+        mMediaCodec = CodecUtils.getAndConfigureCodec(format, null, true,
+                null, null, mExcludedCodecs);
+        mCodecName = mMediaCodec != null ? mMediaCodec.getName() : null;
         mIsReleased = (mMediaCodec == null);
     }
 
@@ -132,6 +138,16 @@ public class MediaCodecEncoder implements Encoder {
         }
     }
 
+    @Override
+    public boolean excludeCurrentCodec() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mCodecName == null) {
+            // codecs are picked by type only, the same one would come back
+            return false;
+        }
+        mExcludedCodecs.add(mCodecName);
+        return true;
+    }
+
     @Override
     public String getName() {
         return mMediaCodec.getName();
@@ -0,0 +1,230 @@
+package com.jeffmony.videolibrary.io;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Single track view of a {@link MediaSource} shared through {@link MediaSampleDispatcher}. Samples are read
+ * from a queue filled by the dispatcher. When the queue is empty, {@link #getSampleTrackIndex()} returns
+ * {@link #SAMPLE_NOT_READY}, which track transcoders treat the same way as a sample of another track:
+ * they try again later. Only one consumer may read from a view, several views of the same track may each
+ * have their own selection.
+ * <p>
+ * A view may seek while dispatcher runs, e.g. to decode again after a codec failure. Dispatcher rewinds the
+ * shared source, the view drops what is left in its queue until the dispatcher confirms the seek, and other
+ * views skip samples they already got.
+ */
+public class DispatchedMediaSource implements MediaSource {
+
+    public static final int SAMPLE_NOT_READY = -2;
+
+    private final MediaSampleDispatcher mDispatcher;
+    private final MediaSource mMediaSource;
+    private final int mTrack;
+    private final MediaSampleQueue mSampleQueue;
+    private final MediaRange mSelection;
+    @Nullable private final MediaCutList mCutList;
+    // samples are dispatched up to here, may be past selection end
+    final long mDispatchEnd;
+
+    // dispatcher thread only
+    boolean mFinished;
+    boolean mSkipping;
+    long mLastDispatchedTime = Long.MIN_VALUE;
+
+    // requested seek, guarded by dispatcher
+    long mSeekPosition;
+    int mSeekMode;
+
+    // consumer only, samples are dropped until dispatcher confirms a seek
+    private boolean mSeeking;
+
+    @Nullable private MediaSampleQueue.Sample mCurrentSample;
+
+    DispatchedMediaSource(@NonNull MediaSampleDispatcher dispatcher,
+                          @NonNull MediaSource mediaSource,
+                          int track,
+                          @NonNull MediaSampleQueue sampleQueue,
+                          @NonNull MediaRange selection,
+                          @Nullable MediaCutList cutList,
+                          long dispatchEnd) {
+        mDispatcher = dispatcher;
+        mMediaSource = mediaSource;
+        mTrack = track;
+        mSampleQueue = sampleQueue;
+        mSelection = selection;
+        mCutList = cutList;
+        mDispatchEnd = dispatchEnd;
+    }
+
+    /**
+     * Wait until a sample of this track, or its end of stream, becomes available.
+     * @return true if a sample is available, false on timeout
+     */
+    public boolean awaitSample(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        if (peekSample() == null) {
+            MediaSampleQueue.Sample sample = mSampleQueue.poll(timeout, unit);
+            if (sample != null) {
+                accept(sample);
+            }
+        }
+        return mCurrentSample != null;
+    }
+
+    @Override
+    public int getOrientationHint() {
+        return mMediaSource.getOrientationHint();
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mMediaSource.getTrackCount();
+    }
+
+    @NonNull
+    @Override
+    public MediaFormat getTrackFormat(int track) {
+        return mMediaSource.getTrackFormat(track);
+    }
+
+    @Override
+    public void selectTrack(int track) {
+        if (track != mTrack) {
+            throw new IllegalArgumentException("Track " + track + " can not be selected in a view of track " + mTrack);
+        }
+        mDispatcher.selectTrack(track);
+    }
+
+    /**
+     * Ask dispatcher to rewind to a position. Samples are not ready until dispatcher did. Before dispatcher
+     * starts, e.g. when a transcoder starts at its selection, only moves where dispatching starts.
+     * @throws IllegalStateException if dispatcher is not running anymore
+     */
+    @Override
+    public void seekTo(long position, int mode) {
+        // drop queued samples before asking, so that seek confirmation can not be dropped with them
+        mSeeking = true;
+        if (mCurrentSample != null) {
+            mSampleQueue.recycle(mCurrentSample);
+            mCurrentSample = null;
+        }
+        mSampleQueue.clear();
+        try {
+            mSeeking = mDispatcher.requestSeek(this, position, mode);
+        } catch (IllegalStateException e) {
+            mSeeking = false;
+            throw e;
+        }
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        MediaSampleQueue.Sample sample = peekSample();
+        if (sample == null) {
+            return SAMPLE_NOT_READY;
+        }
+        return sample.isEndOfStream() ? -1 : mTrack;
+    }
+
+    @Override
+    public int readSampleData(@NonNull ByteBuffer buffer, int offset) {
+        MediaSampleQueue.Sample sample = peekSample();
+        if (sample == null || sample.isEndOfStream()) {
+            return -1;
+        }
+        ByteBuffer sampleBuffer = sample.mBuffer.duplicate();
+        sampleBuffer.position(0);
+        sampleBuffer.limit(sample.mInfo.size);
+        buffer.clear();
+        buffer.position(offset);
+        buffer.put(sampleBuffer);
+        buffer.limit(offset + sample.mInfo.size);
+        buffer.position(offset);
+        return sample.mInfo.size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        MediaSampleQueue.Sample sample = peekSample();
+        if (sample == null || sample.isEndOfStream()) {
+            return -1;
+        }
+        return sample.mInfo.presentationTimeUs;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        MediaSampleQueue.Sample sample = peekSample();
+        if (sample == null) {
+            return 0;
+        }
+        return sample.isEndOfStream() ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : sample.mInfo.flags;
+    }
+
+    @Override
+    public void advance() {
+        MediaSampleQueue.Sample sample = peekSample();
+        if (sample != null && !sample.isEndOfStream()) {
+            mCurrentSample = null;
+            mSampleQueue.recycle(sample);
+        }
+    }
+
+    @Override
+    public void release() {
+        // underlying media source is owned and released by whoever created the dispatcher
+    }
+
+    @Override
+    public long getSize() {
+        return mMediaSource.getSize();
+    }
+
+    @NonNull
+    @Override
+    public MediaRange getSelection() {
+        return mSelection;
+    }
+
+    @Nullable
+    @Override
+    public MediaCutList getCutList() {
+        return mCutList;
+    }
+
+    @NonNull
+    MediaSampleQueue getSampleQueue() {
+        return mSampleQueue;
+    }
+
+    @Nullable
+    private MediaSampleQueue.Sample peekSample() {
+        MediaSampleQueue.Sample sample;
+        while (mCurrentSample == null && (sample = mSampleQueue.poll()) != null) {
+            accept(sample);
+        }
+        return mCurrentSample;
+    }
+
+    private void accept(@NonNull MediaSampleQueue.Sample sample) {
+        if (mSeeking) {
+            // queued before the seek, or the seek confirmation itself
+            mSeeking = !sample.mSeekDone;
+            mSampleQueue.recycle(sample);
+        } else {
+            mCurrentSample = sample;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.jeffmony.videolibrary.io;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Ranges of a source which are kept, in order, e.g. a clip with its ad breaks cut out. Gaps between ranges are
+ * removed from the output: target timestamps run continuously, each range starts where the previous one ended.
+ * Selection of a source with a cut list spans from the start of the first range to the end of the last one.
+ */
+public class MediaCutList {
+
+    private final List<MediaRange> mRanges;
+
+    /**
+     * Create a cut list
+     * @param ranges ranges to keep, sorted by start, not overlapping, last one may be open ended
+     */
+    public MediaCutList(@NonNull List<MediaRange> ranges) {
+        if (ranges.isEmpty()) {
+            throw new IllegalArgumentException("Cut list should have at least one range");
+        }
+        long previousEnd = Long.MIN_VALUE;
+        for (MediaRange range : ranges) {
+            if (range.getEnd() <= range.getStart()) {
+                throw new IllegalArgumentException("Range end should be greater than range start");
+            }
+            if (range.getStart() < previousEnd) {
+                throw new IllegalArgumentException("Ranges should be sorted and should not overlap");
+            }
+            previousEnd = range.getEnd();
+        }
+        mRanges = Collections.unmodifiableList(new ArrayList<>(ranges));
+    }
+
+    @NonNull
+    public List<MediaRange> getRanges() {
+        return mRanges;
+    }
+
+    /**
+     * Get range from the start of the first kept range to the end of the last one
+     */
+    @NonNull
+    public MediaRange getSelection() {
+        return new MediaRange(mRanges.get(0).getStart(), mRanges.get(mRanges.size() - 1).getEnd());
+    }
+
+    /**
+     * Check if a source time is kept
+     */
+    public boolean contains(long timeUs) {
+        int index = findRange(timeUs);
+        return index >= 0 && timeUs < mRanges.get(index).getEnd();
+    }
+
+    /**
+     * Get the first kept source time at or after a source time
+     * @return timeUs if it is kept, start of the next range if it is in a gap, Long.MAX_VALUE if it is past
+     *         the last range
+     */
+    public long getNextKeptTime(long timeUs) {
+        int index = findRange(timeUs);
+        if (index >= 0 && timeUs < mRanges.get(index).getEnd()) {
+            return timeUs;
+        }
+        return index + 1 < mRanges.size() ? mRanges.get(index + 1).getStart() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Convert a source time to target time. A time in a gap maps to where the next range starts in target.
+     */
+    public long toTargetTime(long sourceTimeUs) {
+        long targetTimeUs = 0;
+        for (MediaRange range : mRanges) {
+            if (sourceTimeUs < range.getStart()) {
+                break;
+            }
+            if (sourceTimeUs < range.getEnd()) {
+                return targetTimeUs + sourceTimeUs - range.getStart();
+            }
+            targetTimeUs += range.getEnd() - range.getStart();
+        }
+        return targetTimeUs;
+    }
+
+    /**
+     * Convert a target time back to source time
+     */
+    public long toSourceTime(long targetTimeUs) {
+        long rangeTargetStartUs = 0;
+        for (MediaRange range : mRanges) {
+            long rangeDurationUs = range.getEnd() - range.getStart();
+            if (targetTimeUs < rangeTargetStartUs + rangeDurationUs) {
+                return range.getStart() + Math.max(0, targetTimeUs - rangeTargetStartUs);
+            }
+            rangeTargetStartUs += rangeDurationUs;
+        }
+        return mRanges.get(mRanges.size() - 1).getEnd();
+    }
+
+    /**
+     * Get kept duration of a track
+     * @param durationUs track duration
+     * @return sum of kept durations within the track, in microseconds
+     */
+    public long getDuration(long durationUs) {
+        long keptDurationUs = 0;
+        for (MediaRange range : mRanges) {
+            if (range.getStart() >= durationUs) {
+                break;
+            }
+            keptDurationUs += Math.min(range.getEnd(), durationUs) - range.getStart();
+        }
+        return keptDurationUs;
+    }
+
+    /**
+     * Find the last range which starts at or before a source time
+     * @return range index, -1 if time is before the first range
+     */
+    private int findRange(long timeUs) {
+        int low = 0;
+        int high = mRanges.size() - 1;
+        int index = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (mRanges.get(middle).getStart() <= timeUs) {
+                index = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return index;
+    }
+}
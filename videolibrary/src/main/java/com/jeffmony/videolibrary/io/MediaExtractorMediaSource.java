@@ -5,6 +5,7 @@ import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.jeffmony.videolibrary.utils.FileUtils;
 
@@ -20,7 +21,9 @@ import java.nio.ByteBuffer;
 public class MediaExtractorMediaSource implements MediaSource {
 
     private final MediaExtractor mExtractor;
+    private final String mPath;
     private final MediaRange mRange;
+    @Nullable private final MediaCutList mCutList;
 
     private int mOrientationHint;
     private long mSize;
@@ -30,7 +33,24 @@ public class MediaExtractorMediaSource implements MediaSource {
     }
 
     public MediaExtractorMediaSource(@NonNull String path, @NonNull MediaRange range) throws Exception {
+        this(path, range, null);
+    }
+
+    /**
+     * Create a source which keeps only ranges of a cut list, gaps between them are cut out of the output
+     * @param path media file path
+     * @param cutList ranges to keep
+     */
+    public MediaExtractorMediaSource(@NonNull String path, @NonNull MediaCutList cutList) throws Exception {
+        this(path, cutList.getSelection(), cutList);
+    }
+
+    private MediaExtractorMediaSource(@NonNull String path,
+                                      @NonNull MediaRange range,
+                                      @Nullable MediaCutList cutList) throws Exception {
+        mPath = path;
         mRange = range;
+        mCutList = cutList;
         mExtractor = new MediaExtractor();
         MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
 
@@ -48,6 +68,14 @@ public class MediaExtractorMediaSource implements MediaSource {
         mediaMetadataRetriever.release();
     }
 
+    /**
+     * Get path of the media file
+     */
+    @NonNull
+    public String getPath() {
+        return mPath;
+    }
+
     @Override
     public int getOrientationHint() {
         return mOrientationHint;
@@ -114,4 +142,10 @@ public class MediaExtractorMediaSource implements MediaSource {
     public MediaRange getSelection() {
         return mRange;
     }
+
+    @Nullable
+    @Override
+    public MediaCutList getCutList() {
+        return mCutList;
+    }
 }
@@ -6,10 +6,15 @@ import android.media.MediaMuxer;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.jeffmony.videolibrary.utils.LogUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.LinkedList;
 
 /**
@@ -18,10 +23,17 @@ import java.util.LinkedList;
  * @Date   : 2021-08-26
  */
 
+/**
+ * MediaMuxer can only be started once all tracks are added, samples written before that are queued. Queued
+ * samples are charged to the memory budget, once it is exhausted they are spilled to a file next to the output
+ * and read back when the muxer starts.
+ */
 public class MediaMuxerMediaTarget implements MediaTarget {
 
     private static final String TAG = "MediaMuxerMediaTarget";
 
+    private static final String SPILL_FILE_SUFFIX = ".spill";
+
     private LinkedList<MediaSample> mQueue;
     private boolean mIsStarted;
     private MediaMuxer mMediaMuxer;
@@ -31,6 +43,12 @@ public class MediaMuxerMediaTarget implements MediaTarget {
     private String mOutputFilePath;
     private int mTrackCount;
 
+    @Nullable private MemoryBudget mMemoryBudget;
+    // bytes of queued samples held in memory, charged to memory budget
+    private long mQueuedBytes;
+    @Nullable private File mSpillFile;
+    @Nullable private FileChannel mSpillChannel;
+
     public MediaMuxerMediaTarget(@NonNull String outputFilePath, int trackCount, int orientationHint, int outputFormat) throws Exception {
         mOutputFilePath = outputFilePath;
         try {
@@ -53,7 +71,7 @@ public class MediaMuxerMediaTarget implements MediaTarget {
     }
 
     @Override
-    public int addTrack(@NonNull MediaFormat mediaFormat, @IntRange(from = 0) int targetTrack) {
+    public synchronized int addTrack(@NonNull MediaFormat mediaFormat, @IntRange(from = 0) int targetTrack) {
         mFormatsToAdd[targetTrack] = mediaFormat;
         mNumberOfTracksAdd++;
 
@@ -67,16 +85,29 @@ public class MediaMuxerMediaTarget implements MediaTarget {
             mMediaMuxer.start();
             mIsStarted = true;
 
-            while (mQueue.isEmpty()) {
+            ByteBuffer spillBuffer = null;
+            while (!mQueue.isEmpty()) {
                 MediaSample mediaSample = mQueue.removeFirst();
-                mMediaMuxer.writeSampleData(mediaSample.mTargetTrack, mediaSample.mBuffer, mediaSample.mInfo);
+                if (mediaSample.mBuffer != null) {
+                    mMediaMuxer.writeSampleData(mediaSample.mTargetTrack, mediaSample.mBuffer, mediaSample.mInfo);
+                    releaseQueuedBytes(mediaSample.mInfo.size);
+                } else {
+                    spillBuffer = readSpilledSample(mediaSample, spillBuffer);
+                    mMediaMuxer.writeSampleData(mediaSample.mTargetTrack, spillBuffer, mediaSample.mInfo);
+                }
             }
+            closeSpillFile();
         }
         return targetTrack;
     }
 
     @Override
-    public void writeSampleData(int targetTrack, @NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info) {
+    public synchronized void setMemoryBudget(@Nullable MemoryBudget memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int targetTrack, @NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info) {
         if (mIsStarted) {
             if (buffer == null) {
                 LogUtils.e(TAG, "Trying to write a null buffer, skipping");
@@ -84,13 +115,15 @@ public class MediaMuxerMediaTarget implements MediaTarget {
                 mMediaMuxer.writeSampleData(targetTrack, buffer, info);
             }
         } else {
-            MediaSample mediaSample = new MediaSample(targetTrack, buffer, info);
-            mQueue.addLast(mediaSample);
+            queueSample(targetTrack, buffer, info);
         }
     }
 
     @Override
-    public void release() {
+    public synchronized void release() {
+        mQueue.clear();
+        releaseQueuedBytes(mQueuedBytes);
+        closeSpillFile();
         mMediaMuxer.release();
     }
 
@@ -100,19 +133,95 @@ public class MediaMuxerMediaTarget implements MediaTarget {
         return mOutputFilePath != null ? mOutputFilePath : "";
     }
 
-    private class MediaSample {
-        private int mTargetTrack;
-        private ByteBuffer mBuffer;
-        private MediaCodec.BufferInfo mInfo;
+    private void queueSample(int targetTrack, @NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info) {
+        // only sample data is kept, not the whole codec buffer, and info is copied because writers reuse it
+        ByteBuffer data = buffer.duplicate();
+        data.limit(info.offset + info.size);
+        data.position(info.offset);
+        if (mMemoryBudget == null || mMemoryBudget.tryAcquire(info.size)) {
+            ByteBuffer copy = ByteBuffer.allocate(info.size);
+            copy.put(data);
+            copy.flip();
+            mQueuedBytes += info.size;
+            mQueue.addLast(new MediaSample(targetTrack, info, copy, 0));
+        } else {
+            mQueue.addLast(new MediaSample(targetTrack, info, null, spill(data)));
+        }
+    }
 
-        private MediaSample(int targetTrack, ByteBuffer buffer, MediaCodec.BufferInfo info) {
-            mTargetTrack = targetTrack;
-            mInfo = info;
+    private long spill(@NonNull ByteBuffer data) {
+        try {
+            if (mSpillChannel == null) {
+                mSpillFile = new File(getOutputFilePath() + SPILL_FILE_SUFFIX);
+                mSpillChannel = new RandomAccessFile(mSpillFile, "rw").getChannel();
+                LogUtils.d(TAG, "Memory budget exhausted, spilling queued samples to " + mSpillFile);
+            }
+            long offset = mSpillChannel.position();
+            while (data.hasRemaining()) {
+                mSpillChannel.write(data);
+            }
+            return offset;
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to spill queued sample to " + mSpillFile, e);
+        }
+    }
+
+    @NonNull
+    private ByteBuffer readSpilledSample(@NonNull MediaSample mediaSample, @Nullable ByteBuffer buffer) {
+        int size = mediaSample.mInfo.size;
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        try {
+            while (buffer.hasRemaining()) {
+                if (mSpillChannel.read(buffer, mediaSample.mSpillOffset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of spill file");
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read spilled sample from " + mSpillFile, e);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void releaseQueuedBytes(long bytes) {
+        mQueuedBytes -= bytes;
+        if (mMemoryBudget != null) {
+            mMemoryBudget.release(bytes);
+        }
+    }
 
+    private void closeSpillFile() {
+        if (mSpillChannel == null) {
+            return;
+        }
+        try {
+            mSpillChannel.close();
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Failed to close spill file: " + e);
+        }
+        if (!mSpillFile.delete()) {
+            LogUtils.w(TAG, "Failed to delete spill file " + mSpillFile);
+        }
+        mSpillChannel = null;
+        mSpillFile = null;
+    }
+
+    private static class MediaSample {
+        private final int mTargetTrack;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        // sample data, null if it was spilled
+        @Nullable private final ByteBuffer mBuffer;
+        private final long mSpillOffset;
+
+        private MediaSample(int targetTrack, @NonNull MediaCodec.BufferInfo info, @Nullable ByteBuffer buffer, long spillOffset) {
+            mTargetTrack = targetTrack;
             mInfo.set(0, info.size, info.presentationTimeUs, info.flags);
-            mBuffer = ByteBuffer.allocate(buffer.capacity());
-            mBuffer.put(buffer);
-            mBuffer.flip();
+            mBuffer = buffer;
+            mSpillOffset = spillOffset;
         }
     }
 }
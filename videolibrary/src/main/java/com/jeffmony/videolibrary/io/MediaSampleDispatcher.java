@@ -0,0 +1,552 @@
+package com.jeffmony.videolibrary.io;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.utils.LogUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Reads a shared {@link MediaSource} exactly once, in file order, on its own thread and pushes every sample
+ * into a bounded queue of the track it belongs to. Track transcoders read from per track views returned
+ * by {@link #getTrackSource(int)}, so they neither poll samples of other tracks nor skip ahead in the file,
+ * and each track progresses at its own pace within the queue bounds. A track may have several views, e.g.
+ * one per job reading a shared source, each sample is then copied into every view which wants it.
+ * <p>
+ * Samples at or after the dispatch end of a view, by default its selection end, are not dispatched to it,
+ * the view gets end of stream instead.
+ * <p>
+ * A view may seek while dispatching runs, see {@link DispatchedMediaSource#seekTo(long, int)}. Seeks requested
+ * before dispatching starts only pick where it starts: if every view asked for one, the source is rewound to
+ * the earliest position once, otherwise it is read from where it is.
+ * <p>
+ * Views may have cut lists. Once every view is in a gap of its cut list, the source skips ahead to the sync
+ * sample before the earliest range any of them needs next, instead of reading the gap.
+ * <p>
+ * Queue buffers may be charged to a {@link MemoryBudget}, the dispatcher then waits for consumers to recycle
+ * samples instead of allocating more once the budget is exhausted.
+ */
+public class MediaSampleDispatcher {
+
+    private static final String TAG = "MediaSampleDispatcher";
+
+    public static final int DEFAULT_QUEUE_SIZE = 32;
+
+    private static final int DEFAULT_SAMPLE_BUFFER_SIZE = 1024 * 1024;
+    private static final long DISPATCH_WAIT_TIMEOUT_MS = 10;
+    private static final long DISPATCH_JOIN_TIMEOUT_MS = 1000;
+
+    private final MediaSource mMediaSource;
+    private final int mQueueSize;
+    @Nullable private final MemoryBudget mMemoryBudget;
+    @Nullable private final Runnable mOnSampleDispatched;
+
+    private final SparseArray<List<DispatchedMediaSource>> mTrackSources = new SparseArray<>();
+    private int mTrackSourceCount;
+
+    // dispatcher thread only
+    private final List<DispatchedMediaSource> mReadyTrackSources = new ArrayList<>();
+    private final List<MediaSampleQueue.Sample> mReadySamples = new ArrayList<>();
+
+    // views waiting for a seek, guarded by this
+    private final List<DispatchedMediaSource> mSeekRequests = new ArrayList<>();
+    private final List<DispatchedMediaSource> mStartSeekRequests = new ArrayList<>();
+    private volatile boolean mSeekRequested;
+    private boolean mDone;
+
+    private Thread mThread;
+    private volatile boolean mStopped;
+    private volatile Exception mError;
+
+    // dispatcher thread only, position the source last skipped a gap to
+    private long mGapSkipPosition = Long.MIN_VALUE;
+
+    /**
+     * Create a dispatcher
+     * @param mediaSource shared media source, owned by caller
+     * @param queueSize max number of queued samples per track
+     * @param onSampleDispatched optional callback invoked on dispatcher thread after each sample or end of stream
+     *                           is queued, e.g. to wake up a backed off run loop
+     */
+    public MediaSampleDispatcher(@NonNull MediaSource mediaSource, int queueSize, @Nullable Runnable onSampleDispatched) {
+        this(mediaSource, queueSize, null, onSampleDispatched);
+    }
+
+    /**
+     * Create a dispatcher which charges its queues to a memory budget
+     * @param mediaSource shared media source, owned by caller
+     * @param queueSize max number of queued samples per track
+     * @param memoryBudget budget queue buffers are charged to, null if memory is not accounted
+     * @param onSampleDispatched optional callback invoked on dispatcher thread after each sample or end of stream
+     *                           is queued
+     */
+    public MediaSampleDispatcher(@NonNull MediaSource mediaSource,
+                                 int queueSize,
+                                 @Nullable MemoryBudget memoryBudget,
+                                 @Nullable Runnable onSampleDispatched) {
+        mMediaSource = mediaSource;
+        mQueueSize = queueSize;
+        mMemoryBudget = memoryBudget;
+        mOnSampleDispatched = onSampleDispatched;
+    }
+
+    /**
+     * Get a single track view of the media source with source selection, the same view for every call.
+     * Must be called before {@link #start()}.
+     * @param track track index
+     * @return media source which only returns samples of given track
+     */
+    @NonNull
+    public synchronized DispatchedMediaSource getTrackSource(int track) {
+        List<DispatchedMediaSource> trackSources = mTrackSources.get(track);
+        if (trackSources != null) {
+            return trackSources.get(0);
+        }
+        MediaRange selection = mMediaSource.getSelection();
+        return createTrackSource(track, selection, mMediaSource.getCutList(), selection.getEnd());
+    }
+
+    /**
+     * Create another single track view of the media source. Each view has its own queue, so a track read by
+     * several consumers is still read from the source once. Must be called before {@link #start()}.
+     * @param track track index
+     * @param selection selection of the view
+     * @param dispatchEnd time samples are dispatched up to, in microseconds, at least selection end, e.g. for
+     *                    a consumer which also decodes for others
+     * @return media source which only returns samples of given track
+     */
+    @NonNull
+    public synchronized DispatchedMediaSource createTrackSource(int track, @NonNull MediaRange selection, long dispatchEnd) {
+        return createTrackSource(track, selection, null, dispatchEnd);
+    }
+
+    /**
+     * Create another single track view of the media source, which keeps only ranges of a cut list.
+     * Must be called before {@link #start()}.
+     * @param track track index
+     * @param selection selection of the view
+     * @param cutList ranges of the selection the view keeps, null to keep the whole selection
+     * @param dispatchEnd time samples are dispatched up to, in microseconds, at least selection end
+     * @return media source which only returns samples of given track
+     */
+    @NonNull
+    public synchronized DispatchedMediaSource createTrackSource(int track,
+                                                                @NonNull MediaRange selection,
+                                                                @Nullable MediaCutList cutList,
+                                                                long dispatchEnd) {
+        if (mThread != null) {
+            throw new IllegalStateException("Dispatcher already started");
+        }
+        MediaFormat format = mMediaSource.getTrackFormat(track);
+        int bufferSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                : DEFAULT_SAMPLE_BUFFER_SIZE;
+        MediaSampleQueue sampleQueue = new MediaSampleQueue(mQueueSize, bufferSize);
+        sampleQueue.setMemoryBudget(mMemoryBudget);
+        DispatchedMediaSource trackSource = new DispatchedMediaSource(this, mMediaSource, track, sampleQueue,
+                selection, cutList, Math.max(dispatchEnd, selection.getEnd()));
+        List<DispatchedMediaSource> trackSources = mTrackSources.get(track);
+        if (trackSources == null) {
+            trackSources = new ArrayList<>();
+            mTrackSources.put(track, trackSources);
+        }
+        trackSources.add(trackSource);
+        mTrackSourceCount++;
+        return trackSource;
+    }
+
+    synchronized void selectTrack(int track) {
+        if (mThread != null) {
+            throw new IllegalStateException("Tracks should be selected before dispatcher starts");
+        }
+        mMediaSource.selectTrack(track);
+    }
+
+    /**
+     * Start dispatching. All track views should be created and their tracks selected by now.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mStopped = false;
+        mThread = new Thread(() -> {
+            try {
+                dispatch();
+            } catch (InterruptedException e) {
+                // stopped while waiting for a queue
+            } catch (Exception e) {
+                LogUtils.e(TAG, "Dispatching failed: " + e);
+                mError = e;
+            } finally {
+                synchronized (this) {
+                    mDone = true;
+                }
+            }
+        }, "SampleDispatcher");
+        mThread.start();
+    }
+
+    /**
+     * Stop dispatching and wait for dispatcher thread to exit.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread == null) {
+            return;
+        }
+        mStopped = true;
+        thread.interrupt();
+        try {
+            thread.join(DISPATCH_JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            LogUtils.w(TAG, "Dispatcher thread did not stop in time");
+            return;
+        }
+        releaseBuffers();
+    }
+
+    private synchronized void releaseBuffers() {
+        for (int index = 0; index < mTrackSources.size(); index++) {
+            for (DispatchedMediaSource trackSource : mTrackSources.valueAt(index)) {
+                trackSource.getSampleQueue().releaseBuffers();
+            }
+        }
+    }
+
+    /**
+     * Get error which stopped dispatching
+     * @return error, null if dispatcher is running or finished normally
+     */
+    @Nullable
+    public Exception getError() {
+        return mError;
+    }
+
+    /**
+     * Ask dispatcher thread to rewind the source for a view
+     * @return true if view should wait for seek confirmation, false if seek was requested before dispatching
+     *         started and only moves where it starts
+     * @throws IllegalStateException if dispatching is over
+     */
+    synchronized boolean requestSeek(@NonNull DispatchedMediaSource trackSource, long position, int mode) {
+        if (mDone) {
+            throw new IllegalStateException("Dispatcher is not running, track view can not seek");
+        }
+        trackSource.mSeekPosition = position;
+        trackSource.mSeekMode = mode;
+        if (mThread == null) {
+            if (!mStartSeekRequests.contains(trackSource)) {
+                mStartSeekRequests.add(trackSource);
+            }
+            return false;
+        }
+        if (!mSeekRequests.contains(trackSource)) {
+            mSeekRequests.add(trackSource);
+        }
+        mSeekRequested = true;
+        return true;
+    }
+
+    private void dispatch() throws Exception {
+        int unfinishedTrackSourceCount = mTrackSourceCount;
+        seekToStart();
+
+        while (!mStopped) {
+            if (mSeekRequested) {
+                int reopenedTrackSourceCount = seek();
+                if (reopenedTrackSourceCount < 0) {
+                    return;
+                }
+                unfinishedTrackSourceCount += reopenedTrackSourceCount;
+            }
+            if (unfinishedTrackSourceCount == 0) {
+                synchronized (this) {
+                    // a view may still seek back until dispatching is over
+                    if (!mSeekRequested) {
+                        mDone = true;
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            int track = mMediaSource.getSampleTrackIndex();
+            if (track < 0) {
+                // end of container, every view which is still reading gets EoS
+                for (int index = 0; index < mTrackSources.size(); index++) {
+                    for (DispatchedMediaSource trackSource : mTrackSources.valueAt(index)) {
+                        if (!trackSource.mFinished) {
+                            if (!publishEndOfStream(trackSource)) {
+                                return;
+                            }
+                            unfinishedTrackSourceCount--;
+                        }
+                    }
+                }
+                continue;
+            }
+
+            List<DispatchedMediaSource> trackSources = mTrackSources.get(track);
+            if (trackSources == null) {
+                // nobody reads this track
+                mMediaSource.advance();
+                continue;
+            }
+
+            // sample is read once and copied into queue of every view which still wants it, queues are
+            // published only when all copies are made
+            long sampleTime = mMediaSource.getSampleTime();
+            int sampleFlags = mMediaSource.getSampleFlags();
+            if ((sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                long gapEnd = getGapEnd(track, sampleTime);
+                if (gapEnd > sampleTime && gapEnd > mGapSkipPosition && gapEnd != Long.MAX_VALUE) {
+                    // skip to where some view needs samples again, sync sample before it is decoded
+                    mGapSkipPosition = gapEnd;
+                    mMediaSource.seekTo(gapEnd, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    LogUtils.d(TAG, "Skipped gap from " + sampleTime + " to " + mMediaSource.getSampleTime());
+                    continue;
+                }
+            }
+            mReadyTrackSources.clear();
+            mReadySamples.clear();
+            MediaSampleQueue.Sample firstSample = null;
+            boolean unreadable = false;
+            for (DispatchedMediaSource trackSource : trackSources) {
+                if (trackSource.mFinished || (trackSource.mSkipping && !skipTo(trackSource, sampleTime, sampleFlags))) {
+                    continue;
+                }
+                if (sampleTime >= trackSource.mDispatchEnd) {
+                    if (!publishEndOfStream(trackSource)) {
+                        return;
+                    }
+                    unfinishedTrackSourceCount--;
+                    continue;
+                }
+                MediaSampleQueue.Sample sample = obtainSample(trackSource.getSampleQueue());
+                if (sample == null) {
+                    return;
+                }
+                if (firstSample == null) {
+                    int bytesRead = mMediaSource.readSampleData(sample.mBuffer, 0);
+                    if (bytesRead <= 0) {
+                        trackSource.getSampleQueue().recycle(sample);
+                        unreadable = true;
+                        break;
+                    }
+                    sample.mBuffer.position(0);
+                    sample.mBuffer.limit(bytesRead);
+                    sample.mInfo.set(0, bytesRead, sampleTime, sampleFlags);
+                    firstSample = sample;
+                } else {
+                    ByteBuffer data = firstSample.mBuffer.duplicate();
+                    sample.mBuffer.clear();
+                    sample.mBuffer.put(data);
+                    sample.mBuffer.position(0);
+                    sample.mBuffer.limit(firstSample.mInfo.size);
+                    sample.mInfo.set(0, firstSample.mInfo.size, sampleTime, firstSample.mInfo.flags);
+                }
+                mReadyTrackSources.add(trackSource);
+                mReadySamples.add(sample);
+                trackSource.mLastDispatchedTime = sampleTime;
+            }
+
+            if (unreadable) {
+                // nothing could be read, every view still reading this track gets EoS
+                for (DispatchedMediaSource trackSource : trackSources) {
+                    if (!trackSource.mFinished) {
+                        if (!publishEndOfStream(trackSource)) {
+                            return;
+                        }
+                        unfinishedTrackSourceCount--;
+                    }
+                }
+            } else {
+                for (int index = 0; index < mReadySamples.size(); index++) {
+                    mReadyTrackSources.get(index).getSampleQueue().publish(mReadySamples.get(index));
+                }
+                if (!mReadySamples.isEmpty()) {
+                    notifySampleDispatched();
+                }
+            }
+
+            mMediaSource.advance();
+        }
+    }
+
+    /**
+     * Get the earliest source time any unfinished view needs a sample from, given a sync sample just read
+     * @return sampleTime if some view may need this sample, later time if every view is in a gap
+     */
+    private long getGapEnd(int sampleTrack, long sampleTime) {
+        long gapEnd = Long.MAX_VALUE;
+        for (int index = 0; index < mTrackSources.size(); index++) {
+            int track = mTrackSources.keyAt(index);
+            for (DispatchedMediaSource trackSource : mTrackSources.valueAt(index)) {
+                if (trackSource.mFinished) {
+                    continue;
+                }
+                MediaCutList cutList = trackSource.getCutList();
+                if (cutList == null || trackSource.mSkipping) {
+                    return sampleTime;
+                }
+                long position;
+                if (track == sampleTrack) {
+                    position = sampleTime;
+                } else if (trackSource.mLastDispatchedTime != Long.MIN_VALUE) {
+                    // samples of other tracks are interleaved, only skip once view is past its range as well
+                    position = trackSource.mLastDispatchedTime;
+                } else {
+                    return sampleTime;
+                }
+                long nextKeptTime = cutList.getNextKeptTime(position);
+                if (nextKeptTime <= sampleTime) {
+                    return sampleTime;
+                }
+                gapEnd = Math.min(gapEnd, nextKeptTime);
+            }
+        }
+        return gapEnd;
+    }
+
+    /**
+     * Start at the earliest position views asked for before dispatching started, nothing was dispatched yet,
+     * so no view needs a seek confirmation
+     */
+    private void seekToStart() {
+        List<DispatchedMediaSource> startSeekRequests;
+        synchronized (this) {
+            startSeekRequests = new ArrayList<>(mStartSeekRequests);
+            mStartSeekRequests.clear();
+        }
+        if (startSeekRequests.isEmpty() || startSeekRequests.size() < mTrackSourceCount) {
+            // some view reads from where source is
+            return;
+        }
+        DispatchedMediaSource earliestRequest = startSeekRequests.get(0);
+        for (DispatchedMediaSource trackSource : startSeekRequests) {
+            if (trackSource.mSeekPosition < earliestRequest.mSeekPosition) {
+                earliestRequest = trackSource;
+            }
+        }
+        mMediaSource.seekTo(earliestRequest.mSeekPosition, earliestRequest.mSeekMode);
+        LogUtils.d(TAG, "Starting at " + mMediaSource.getSampleTime() + " for " + startSeekRequests.size() + " view(s)");
+    }
+
+    /**
+     * Rewind the source for views which asked to seek, to the earliest position any of them asked for. Each of
+     * them gets a seek confirmation, other views skip samples until they are back where they were.
+     * @return number of finished views which read again, -1 if dispatching was stopped
+     */
+    private int seek() throws InterruptedException {
+        List<DispatchedMediaSource> seekRequests;
+        synchronized (this) {
+            seekRequests = new ArrayList<>(mSeekRequests);
+            mSeekRequests.clear();
+            mSeekRequested = false;
+        }
+        mGapSkipPosition = Long.MIN_VALUE;
+        DispatchedMediaSource earliestRequest = seekRequests.get(0);
+        for (DispatchedMediaSource trackSource : seekRequests) {
+            if (trackSource.mSeekPosition < earliestRequest.mSeekPosition) {
+                earliestRequest = trackSource;
+            }
+        }
+        mMediaSource.seekTo(earliestRequest.mSeekPosition, earliestRequest.mSeekMode);
+        LogUtils.d(TAG, "Rewound to " + mMediaSource.getSampleTime() + " for " + seekRequests.size() + " view(s)");
+
+        int reopenedTrackSourceCount = 0;
+        for (int index = 0; index < mTrackSources.size(); index++) {
+            for (DispatchedMediaSource trackSource : mTrackSources.valueAt(index)) {
+                if (seekRequests.contains(trackSource)) {
+                    MediaSampleQueue sampleQueue = trackSource.getSampleQueue();
+                    MediaSampleQueue.Sample sample = obtainSample(sampleQueue);
+                    if (sample == null) {
+                        return -1;
+                    }
+                    sample.mSeekDone = true;
+                    sampleQueue.publish(sample);
+                    if (trackSource.mFinished) {
+                        trackSource.mFinished = false;
+                        reopenedTrackSourceCount++;
+                    }
+                    trackSource.mSkipping = false;
+                    trackSource.mLastDispatchedTime = Long.MIN_VALUE;
+                } else if (!trackSource.mFinished && trackSource.mLastDispatchedTime != Long.MIN_VALUE) {
+                    trackSource.mSkipping = true;
+                }
+            }
+        }
+        notifySampleDispatched();
+        return reopenedTrackSourceCount;
+    }
+
+    /**
+     * Check if a view which skips samples after a seek is back where it was
+     * @return true if sample should be dispatched to the view
+     */
+    private static boolean skipTo(@NonNull DispatchedMediaSource trackSource, long sampleTime, int sampleFlags) {
+        if (sampleTime == trackSource.mLastDispatchedTime) {
+            // the last sample view got, dispatch from the next one
+            trackSource.mSkipping = false;
+            return false;
+        }
+        if ((sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 && sampleTime > trackSource.mLastDispatchedTime) {
+            // passed it without seeing it, samples are not reordered across sync samples
+            trackSource.mSkipping = false;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean publishEndOfStream(@NonNull DispatchedMediaSource trackSource) throws InterruptedException {
+        MediaSampleQueue sampleQueue = trackSource.getSampleQueue();
+        MediaSampleQueue.Sample sample = obtainSample(sampleQueue);
+        if (sample == null) {
+            return false;
+        }
+        sample.mInfo.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        sampleQueue.publish(sample);
+        trackSource.mFinished = true;
+        notifySampleDispatched();
+        return true;
+    }
+
+    @Nullable
+    private MediaSampleQueue.Sample obtainSample(@NonNull MediaSampleQueue sampleQueue) throws InterruptedException {
+        while (!mStopped) {
+            MediaSampleQueue.Sample sample = sampleQueue.obtain(DISPATCH_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (sample != null) {
+                return sample;
+            }
+        }
+        return null;
+    }
+
+    private void notifySampleDispatched() {
+        if (mOnSampleDispatched != null) {
+            mOnSampleDispatched.run();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.jeffmony.videolibrary.io;
+
+import android.media.MediaCodec;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Bounded single producer / single consumer queue of encoded samples. Sample buffers are pooled: producer
+ * obtains a free sample, fills and publishes it, consumer polls it and recycles it when done. When all
+ * samples are in flight {@link #obtain(long, TimeUnit)} blocks, which is how backpressure reaches the producer.
+ * With a {@link MemoryBudget} a sample is only allocated while the budget allows it, the first one always is,
+ * so an exhausted budget shrinks the queue instead of growing the job.
+ */
+public class MediaSampleQueue {
+
+    public static class Sample {
+        @NonNull public final ByteBuffer mBuffer;
+        @NonNull public final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        // marks the first sample after a seek of a dispatched view, carries no data
+        boolean mSeekDone;
+
+        private Sample(int bufferSize) {
+            mBuffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        public boolean isEndOfStream() {
+            // extractor's SAMPLE_FLAG_PARTIAL_FRAME has the same value as EoS flag, EoS samples are also empty
+            return mInfo.size == 0 && (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        }
+    }
+
+    private final int mCapacity;
+    private final int mBufferSize;
+    private final ArrayBlockingQueue<Sample> mFreeSamples;
+    private final ArrayBlockingQueue<Sample> mQueuedSamples;
+
+    @Nullable private MemoryBudget mMemoryBudget;
+
+    // only touched by producer
+    private int mAllocatedCount;
+    private long mChargedBytes;
+
+    /**
+     * Create a sample queue
+     * @param capacity max number of samples in flight
+     * @param bufferSize size of each sample buffer, in bytes
+     */
+    public MediaSampleQueue(int capacity, int bufferSize) {
+        if (capacity <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Capacity and buffer size should be greater than 0");
+        }
+        mCapacity = capacity;
+        mBufferSize = bufferSize;
+        mFreeSamples = new ArrayBlockingQueue<>(capacity);
+        mQueuedSamples = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Set budget sample buffers are charged to. Must be set before the first sample is obtained.
+     * @param memoryBudget memory budget, null if memory is not accounted
+     */
+    public void setMemoryBudget(@Nullable MemoryBudget memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Producer side. Get an empty sample to fill, allocating it lazily until capacity or memory budget is reached.
+     * @return empty sample, null if none became free before timeout
+     */
+    @Nullable
+    public Sample obtain(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        Sample sample = mFreeSamples.poll();
+        if (sample == null && mAllocatedCount < mCapacity && chargeSample()) {
+            mAllocatedCount++;
+            return new Sample(mBufferSize);
+        }
+        if (sample == null) {
+            sample = mFreeSamples.poll(timeout, unit);
+        }
+        return sample;
+    }
+
+    /**
+     * Producer side. Hand a filled sample over to consumer.
+     */
+    public void publish(@NonNull Sample sample) {
+        // can not overflow, there are never more samples than capacity
+        mQueuedSamples.add(sample);
+    }
+
+    /**
+     * Consumer side. Get next sample without blocking.
+     * @return next sample, null if queue is empty
+     */
+    @Nullable
+    public Sample poll() {
+        return mQueuedSamples.poll();
+    }
+
+    /**
+     * Consumer side. Get next sample, waiting for it up to a timeout.
+     * @return next sample, null if nothing was published before timeout
+     */
+    @Nullable
+    public Sample poll(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        return mQueuedSamples.poll(timeout, unit);
+    }
+
+    /**
+     * Consumer side. Return a sample to the pool once its data has been consumed.
+     */
+    public void recycle(@NonNull Sample sample) {
+        sample.mBuffer.clear();
+        sample.mInfo.set(0, 0, 0, 0);
+        sample.mSeekDone = false;
+        mFreeSamples.offer(sample);
+    }
+
+    /**
+     * Get number of samples published and not yet consumed
+     */
+    public int size() {
+        return mQueuedSamples.size();
+    }
+
+    /**
+     * Drop all published samples, returning them to the pool. Consumer side only.
+     */
+    public void clear() {
+        Sample sample;
+        while ((sample = mQueuedSamples.poll()) != null) {
+            recycle(sample);
+        }
+    }
+
+    /**
+     * Drop all samples and return their memory to the budget. Call once neither producer nor consumer
+     * uses the queue anymore.
+     */
+    public void releaseBuffers() {
+        mQueuedSamples.clear();
+        mFreeSamples.clear();
+        mAllocatedCount = 0;
+        if (mMemoryBudget != null) {
+            mMemoryBudget.release(mChargedBytes);
+        }
+        mChargedBytes = 0;
+    }
+
+    private boolean chargeSample() {
+        if (mMemoryBudget == null) {
+            return true;
+        }
+        if (mAllocatedCount == 0) {
+            // a queue without samples would stall its producer for good
+            mMemoryBudget.forceAcquire(mBufferSize);
+        } else if (!mMemoryBudget.tryAcquire(mBufferSize)) {
+            return false;
+        }
+        mChargedBytes += mBufferSize;
+        return true;
+    }
+}
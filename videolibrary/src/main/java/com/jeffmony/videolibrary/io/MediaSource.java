@@ -3,6 +3,7 @@ package com.jeffmony.videolibrary.io;
 import android.media.MediaFormat;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.nio.ByteBuffer;
 
@@ -95,4 +96,13 @@ public interface MediaSource {
     default MediaRange getSelection() {
         return new MediaRange(0, Long.MAX_VALUE);
     }
+
+    /**
+     * Get ranges of the selection which are kept, selection then spans from the first range to the last one.
+     * Default is no cut list, the whole selection is kept.
+     */
+    @Nullable
+    default MediaCutList getCutList() {
+        return null;
+    }
 }
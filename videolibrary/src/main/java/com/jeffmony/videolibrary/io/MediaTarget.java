@@ -5,6 +5,7 @@ import android.media.MediaFormat;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.nio.ByteBuffer;
 
@@ -31,6 +32,13 @@ public interface MediaTarget {
      */
     void writeSampleData(int targetTrack, @NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info);
 
+    /**
+     * Set budget samples held by the target, e.g. queued before all tracks are added, are charged to
+     * @param memoryBudget memory budget, null if memory is not accounted
+     */
+    default void setMemoryBudget(@Nullable MemoryBudget memoryBudget) {
+    }
+
     /**
      * Release all resources. Make sure to call this when MediaTarget is no longer needed
      */
@@ -0,0 +1,84 @@
+package com.jeffmony.videolibrary.io;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Byte budget of a job, charged by every sample copy, queue and buffer the job allocates. Producers which can
+ * wait, e.g. sample queues, stop allocating once the budget is exhausted and recycle what they have; producers
+ * which can not, e.g. a muxer queueing samples before it starts, spill to disk. A buffer a job can not make
+ * progress without is always granted, so a job with a tiny budget runs slowly instead of stalling.
+ * Safe to use from any thread.
+ */
+public class MemoryBudget {
+
+    private final long mCapacity;
+    private long mUsed;
+    private long mPeak;
+
+    /**
+     * Create a budget
+     * @param capacity budget size, in bytes
+     */
+    public MemoryBudget(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Memory budget should be greater than 0");
+        }
+        mCapacity = capacity;
+    }
+
+    /**
+     * Charge an allocation if it fits into what is left of the budget
+     * @param bytes allocation size, in bytes
+     * @return true if allocation was charged, false if caller should wait for memory or spill
+     */
+    public synchronized boolean tryAcquire(long bytes) {
+        if (mUsed + bytes > mCapacity) {
+            return false;
+        }
+        charge(bytes);
+        return true;
+    }
+
+    /**
+     * Charge an allocation a job can not do without, even if it exceeds the budget
+     * @param bytes allocation size, in bytes
+     */
+    public synchronized void forceAcquire(long bytes) {
+        charge(bytes);
+    }
+
+    /**
+     * Return memory of a freed allocation to the budget
+     * @param bytes allocation size, in bytes
+     */
+    public synchronized void release(long bytes) {
+        mUsed = Math.max(0, mUsed - bytes);
+    }
+
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Get bytes currently charged
+     */
+    public synchronized long getUsed() {
+        return mUsed;
+    }
+
+    /**
+     * Get most bytes ever charged at once
+     */
+    public synchronized long getPeak() {
+        return mPeak;
+    }
+
+    private void charge(long bytes) {
+        mUsed += bytes;
+        mPeak = Math.max(mPeak, mUsed);
+    }
+}
@@ -0,0 +1,146 @@
+package com.jeffmony.videolibrary.io;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * A media source read by several consumers which want different parts of it, e.g. jobs coalesced into one
+ * decode pass. Each consumer gets a view with its own selection, all views read the same underlying source,
+ * so they should be demuxed through a {@link MediaSampleDispatcher}. Underlying source is released when
+ * the last view is released.
+ */
+public class SharedMediaSource {
+
+    private final MediaSource mMediaSource;
+    private int mViewCount;
+
+    /**
+     * Create a shared media source
+     * @param mediaSource underlying media source, owned by shared media source from now on
+     */
+    public SharedMediaSource(@NonNull MediaSource mediaSource) {
+        mMediaSource = mediaSource;
+    }
+
+    /**
+     * Create a view with its own selection
+     * @param selection selection of the view
+     * @return media source view
+     */
+    @NonNull
+    public synchronized MediaSource createView(@NonNull MediaRange selection) {
+        mViewCount++;
+        return new View(selection);
+    }
+
+    /**
+     * Get the media source a source reads from, underlying source of a view or the source itself
+     */
+    @NonNull
+    public static MediaSource getUnderlyingSource(@NonNull MediaSource mediaSource) {
+        return mediaSource instanceof View ? ((View) mediaSource).getSharedSource().mMediaSource : mediaSource;
+    }
+
+    private synchronized void onViewReleased() {
+        if (--mViewCount == 0) {
+            mMediaSource.release();
+        }
+    }
+
+    private class View implements MediaSource {
+
+        private final MediaRange mSelection;
+        private boolean mReleased;
+
+        private View(@NonNull MediaRange selection) {
+            mSelection = selection;
+        }
+
+        @NonNull
+        private SharedMediaSource getSharedSource() {
+            return SharedMediaSource.this;
+        }
+
+        @Override
+        public int getOrientationHint() {
+            return mMediaSource.getOrientationHint();
+        }
+
+        @Override
+        public int getTrackCount() {
+            return mMediaSource.getTrackCount();
+        }
+
+        @NonNull
+        @Override
+        public MediaFormat getTrackFormat(int track) {
+            return mMediaSource.getTrackFormat(track);
+        }
+
+        @Override
+        public void selectTrack(int track) {
+            mMediaSource.selectTrack(track);
+        }
+
+        @Override
+        public void seekTo(long position, int mode) {
+            mMediaSource.seekTo(position, mode);
+        }
+
+        @Override
+        public int getSampleTrackIndex() {
+            return mMediaSource.getSampleTrackIndex();
+        }
+
+        @Override
+        public int readSampleData(@NonNull ByteBuffer buffer, int offset) {
+            return mMediaSource.readSampleData(buffer, offset);
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mMediaSource.getSampleTime();
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return mMediaSource.getSampleFlags();
+        }
+
+        @Override
+        public void advance() {
+            mMediaSource.advance();
+        }
+
+        @Override
+        public void release() {
+            synchronized (SharedMediaSource.this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+                onViewReleased();
+            }
+        }
+
+        @Override
+        public long getSize() {
+            return mMediaSource.getSize();
+        }
+
+        @NonNull
+        @Override
+        public MediaRange getSelection() {
+            return mSelection;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.jeffmony.videolibrary.io;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Target which streams encoded samples to a {@link Subscriber} instead of writing a file, e.g. a network uploader
+ * or a custom packager. Subscriber sets the pace: it gets no more samples than it requested, and samples it has
+ * not released yet are not reused. Sample buffers are pooled, up to queue size or while memory budget allows it,
+ * the first one always is; once all of them are queued or held by the subscriber, writing blocks, which slows
+ * the transcoder down to the subscriber's pace. Buffers only grow when a sample does not fit, they are not
+ * allocated per sample.
+ * <p>
+ * Subscriber is called on the thread which wrote the sample or requested more of them, one call at a time and
+ * in order. Track additions are delivered in order with samples and do not count against demand. Completion
+ * follows the last sample once the target is released; a subscriber which cancels fails the next write.
+ */
+public class StreamingMediaTarget implements MediaTarget {
+
+    public static final int DEFAULT_QUEUE_SIZE = 32;
+
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    public interface Subscriber {
+
+        /**
+         * Called once, before anything else, with the subscription to request samples with
+         */
+        void onSubscribe(@NonNull Subscription subscription);
+
+        /**
+         * Called when a track is added, before its first sample
+         * @param targetTrack target track index
+         * @param mediaFormat track format, with codec config of the track
+         */
+        default void onTrackAdded(int targetTrack, @NonNull MediaFormat mediaFormat) {
+        }
+
+        /**
+         * Called with the next requested sample. Sample should be released once its data is consumed,
+         * on any thread.
+         */
+        void onSample(@NonNull Sample sample);
+
+        /**
+         * Called after the last sample once target is released
+         */
+        void onComplete();
+    }
+
+    public interface Subscription {
+
+        /**
+         * Request more samples, safe to call from any thread and from subscriber callbacks
+         * @param count number of samples, greater than 0, Long.MAX_VALUE for no limit
+         */
+        void request(long count);
+
+        /**
+         * Stop receiving samples, queued samples are dropped and the next write fails
+         */
+        void cancel();
+    }
+
+    /**
+     * Encoded sample, owned by the subscriber until it is released
+     */
+    public static final class Sample {
+        @NonNull private final StreamingMediaTarget mOwner;
+        @NonNull private ByteBuffer mBuffer;
+        @NonNull private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private int mTargetTrack;
+
+        private Sample(@NonNull StreamingMediaTarget owner, int bufferSize) {
+            mOwner = owner;
+            mBuffer = ByteBuffer.allocate(bufferSize);
+        }
+
+        public int getTargetTrack() {
+            return mTargetTrack;
+        }
+
+        /**
+         * Get sample data, from position 0 to info size
+         */
+        @NonNull
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        @NonNull
+        public MediaCodec.BufferInfo getInfo() {
+            return mInfo;
+        }
+
+        /**
+         * Return sample buffer to the target, sample must not be used after that
+         */
+        public void release() {
+            mOwner.mFreeSamples.offer(this);
+        }
+    }
+
+    private static class TrackAdded {
+        private final int mTargetTrack;
+        @NonNull private final MediaFormat mMediaFormat;
+
+        private TrackAdded(int targetTrack, @NonNull MediaFormat mediaFormat) {
+            mTargetTrack = targetTrack;
+            mMediaFormat = mediaFormat;
+        }
+    }
+
+    private static final Object COMPLETE = new Object();
+
+    private final int mCapacity;
+    private final ArrayBlockingQueue<Sample> mFreeSamples;
+
+    private final Object mLock = new Object();
+    // samples and added tracks not delivered yet, guarded by lock like the delivery state below
+    private final ArrayDeque<Object> mPending = new ArrayDeque<>();
+    @Nullable private Subscriber mSubscriber;
+    private long mDemand;
+    private boolean mDraining;
+    private boolean mDrainAgain;
+    private boolean mCancelled;
+    private boolean mCompleted;
+    private boolean mCompleteDelivered;
+
+    // only touched by writers, which are serialized
+    @Nullable private MemoryBudget mMemoryBudget;
+    private int mAllocatedCount;
+    private long mChargedBytes;
+
+    public StreamingMediaTarget() {
+        this(DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Create a target
+     * @param queueSize max number of samples queued or held by subscriber, greater than 0
+     */
+    public StreamingMediaTarget(int queueSize) {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("Queue size should be greater than 0");
+        }
+        mCapacity = queueSize;
+        mFreeSamples = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    /**
+     * Subscribe to samples. Samples written before are queued until subscriber requests them.
+     * @param subscriber the only subscriber of this target
+     */
+    public void subscribe(@NonNull Subscriber subscriber) {
+        synchronized (mLock) {
+            if (mSubscriber != null) {
+                throw new IllegalStateException("Streaming target already has a subscriber");
+            }
+            mSubscriber = subscriber;
+        }
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long count) {
+                if (count <= 0) {
+                    throw new IllegalArgumentException("Requested count should be greater than 0");
+                }
+                synchronized (mLock) {
+                    mDemand = mDemand + count < 0 ? Long.MAX_VALUE : mDemand + count;
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                synchronized (mLock) {
+                    mCancelled = true;
+                    for (Object event : mPending) {
+                        if (event instanceof Sample) {
+                            ((Sample) event).release();
+                        }
+                    }
+                    mPending.clear();
+                }
+            }
+        });
+        drain();
+    }
+
+    @Override
+    public synchronized int addTrack(@NonNull MediaFormat mediaFormat, @IntRange(from = 0) int targetTrack) {
+        synchronized (mLock) {
+            mPending.add(new TrackAdded(targetTrack, mediaFormat));
+        }
+        drain();
+        return targetTrack;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int targetTrack, @NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info) {
+        Sample sample = obtain(info.size);
+        ByteBuffer data = buffer.duplicate();
+        data.limit(info.offset + info.size);
+        data.position(info.offset);
+        sample.mBuffer.clear();
+        sample.mBuffer.put(data);
+        sample.mBuffer.flip();
+        sample.mInfo.set(0, info.size, info.presentationTimeUs, info.flags);
+        sample.mTargetTrack = targetTrack;
+        synchronized (mLock) {
+            if (mCancelled) {
+                sample.release();
+                throw new IllegalStateException("Streaming target subscriber cancelled");
+            }
+            mPending.add(sample);
+        }
+        drain();
+    }
+
+    @Override
+    public synchronized void setMemoryBudget(@Nullable MemoryBudget memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Complete the stream once subscriber received what is queued. Samples subscriber still holds stay valid.
+     */
+    @Override
+    public synchronized void release() {
+        synchronized (mLock) {
+            mCompleted = true;
+        }
+        drain();
+        if (mMemoryBudget != null) {
+            mMemoryBudget.release(mChargedBytes);
+        }
+        mChargedBytes = 0;
+    }
+
+    @NonNull
+    @Override
+    public String getOutputFilePath() {
+        // nothing is written to a file
+        return "";
+    }
+
+    /**
+     * Get a free sample which fits a given size, waiting for the subscriber to release one if all are in use
+     */
+    @NonNull
+    private Sample obtain(int size) {
+        Sample sample = mFreeSamples.poll();
+        if (sample == null && mAllocatedCount < mCapacity && chargeSample(size)) {
+            mAllocatedCount++;
+            return new Sample(this, size);
+        }
+        try {
+            while (sample == null) {
+                synchronized (mLock) {
+                    if (mCancelled) {
+                        throw new IllegalStateException("Streaming target subscriber cancelled");
+                    }
+                }
+                sample = mFreeSamples.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for streaming target subscriber", e);
+        }
+        if (sample.mBuffer.capacity() < size) {
+            if (mMemoryBudget != null) {
+                mMemoryBudget.forceAcquire(size - sample.mBuffer.capacity());
+                mChargedBytes += size - sample.mBuffer.capacity();
+            }
+            sample.mBuffer = ByteBuffer.allocate(size);
+        }
+        return sample;
+    }
+
+    private boolean chargeSample(int size) {
+        if (mMemoryBudget == null) {
+            return true;
+        }
+        if (mAllocatedCount == 0) {
+            // a target without samples would stall its writer for good
+            mMemoryBudget.forceAcquire(size);
+        } else if (!mMemoryBudget.tryAcquire(size)) {
+            return false;
+        }
+        mChargedBytes += size;
+        return true;
+    }
+
+    /**
+     * Deliver what subscriber can take. Only one thread delivers at a time, a thread which finds another one
+     * delivering leaves the work to it.
+     */
+    private void drain() {
+        synchronized (mLock) {
+            if (mDraining) {
+                mDrainAgain = true;
+                return;
+            }
+            mDraining = true;
+        }
+        while (true) {
+            Subscriber subscriber;
+            Object event;
+            synchronized (mLock) {
+                subscriber = mSubscriber;
+                event = subscriber != null && !mCancelled ? nextEvent() : null;
+                if (event == null) {
+                    if (mDrainAgain) {
+                        mDrainAgain = false;
+                        continue;
+                    }
+                    mDraining = false;
+                    return;
+                }
+            }
+            try {
+                if (event == COMPLETE) {
+                    subscriber.onComplete();
+                } else if (event instanceof TrackAdded) {
+                    TrackAdded trackAdded = (TrackAdded) event;
+                    subscriber.onTrackAdded(trackAdded.mTargetTrack, trackAdded.mMediaFormat);
+                } else {
+                    subscriber.onSample((Sample) event);
+                }
+            } catch (RuntimeException e) {
+                synchronized (mLock) {
+                    mDraining = false;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Take the next event subscriber can get now. Must hold the lock.
+     * @return sample, added track or completion, null if there is nothing or no demand
+     */
+    @Nullable
+    private Object nextEvent() {
+        Object event = mPending.peek();
+        if (event == null) {
+            if (mCompleted && !mCompleteDelivered) {
+                mCompleteDelivered = true;
+                return COMPLETE;
+            }
+            return null;
+        }
+        if (event instanceof Sample) {
+            if (mDemand == 0) {
+                return null;
+            }
+            if (mDemand != Long.MAX_VALUE) {
+                mDemand--;
+            }
+        }
+        return mPending.poll();
+    }
+}
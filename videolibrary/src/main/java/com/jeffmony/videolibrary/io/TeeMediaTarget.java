@@ -0,0 +1,345 @@
+package com.jeffmony.videolibrary.io;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.utils.LogUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Writes the same encoded tracks to several targets, e.g. an MP4 file and a fragment stream, so that a second
+ * container does not need a second transcode. Targets added with {@link Builder#addTarget(MediaTarget)} are
+ * written on the caller's thread and get the caller's sample buffer as is. A slow target added with
+ * {@link Builder#addAsyncTarget(MediaTarget, int)} is written on its own thread from a bounded queue of sample
+ * copies; once the queue is full, writing blocks until that target catches up. A failure of any target fails
+ * the next write. Output file path is the one of the first target.
+ */
+public class TeeMediaTarget implements MediaTarget {
+
+    private static final String TAG = "TeeMediaTarget";
+
+    public static final int DEFAULT_QUEUE_SIZE = 32;
+
+    private final MediaTarget mPrimaryTarget;
+    private final List<MediaTarget> mTargets;
+    private final List<AsyncTarget> mAsyncTargets;
+
+    private TeeMediaTarget(@NonNull MediaTarget primaryTarget,
+                           @NonNull List<MediaTarget> targets,
+                           @NonNull List<AsyncTarget> asyncTargets) {
+        mPrimaryTarget = primaryTarget;
+        mTargets = targets;
+        mAsyncTargets = asyncTargets;
+        for (AsyncTarget asyncTarget : mAsyncTargets) {
+            asyncTarget.start();
+        }
+    }
+
+    @Override
+    public synchronized int addTrack(@NonNull MediaFormat mediaFormat, @IntRange(from = 0) int targetTrack) {
+        for (MediaTarget target : mTargets) {
+            target.addTrack(mediaFormat, targetTrack);
+        }
+        for (AsyncTarget asyncTarget : mAsyncTargets) {
+            asyncTarget.addTrack(mediaFormat, targetTrack);
+        }
+        return targetTrack;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int targetTrack, @NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info) {
+        // every target reads the same buffer, restore its bounds in case a target moved them
+        int position = buffer.position();
+        int limit = buffer.limit();
+        for (MediaTarget target : mTargets) {
+            target.writeSampleData(targetTrack, buffer, info);
+            buffer.limit(limit);
+            buffer.position(position);
+        }
+        for (AsyncTarget asyncTarget : mAsyncTargets) {
+            asyncTarget.writeSampleData(targetTrack, buffer, info);
+        }
+    }
+
+    @Override
+    public synchronized void setMemoryBudget(@Nullable MemoryBudget memoryBudget) {
+        for (MediaTarget target : mTargets) {
+            target.setMemoryBudget(memoryBudget);
+        }
+        for (AsyncTarget asyncTarget : mAsyncTargets) {
+            asyncTarget.setMemoryBudget(memoryBudget);
+        }
+    }
+
+    /**
+     * Wait for asynchronous targets to write their queued samples, then release all targets
+     */
+    @Override
+    public synchronized void release() {
+        for (AsyncTarget asyncTarget : mAsyncTargets) {
+            asyncTarget.stop();
+        }
+        for (MediaTarget target : mTargets) {
+            try {
+                target.release();
+            } catch (RuntimeException e) {
+                LogUtils.e(TAG, "Failed to release media target: " + e);
+            }
+        }
+        for (AsyncTarget asyncTarget : mAsyncTargets) {
+            try {
+                asyncTarget.mTarget.release();
+            } catch (RuntimeException e) {
+                LogUtils.e(TAG, "Failed to release media target: " + e);
+            }
+        }
+    }
+
+    @NonNull
+    @Override
+    public String getOutputFilePath() {
+        return mPrimaryTarget.getOutputFilePath();
+    }
+
+    /**
+     * Target written on its own thread. Sample copies are pooled and allocated lazily up to queue size, or while
+     * memory budget allows it, the first one always is. A copy grows when a sample does not fit into it.
+     */
+    private static class AsyncTarget implements Runnable {
+
+        private static final long POLL_TIMEOUT_MS = 100;
+
+        @NonNull private final MediaTarget mTarget;
+        private final int mCapacity;
+        private final ArrayBlockingQueue<Sample> mFreeSamples;
+        // one more slot than there are samples, for the end marker
+        private final ArrayBlockingQueue<Sample> mQueuedSamples;
+
+        @Nullable private Thread mThread;
+        @Nullable private volatile Throwable mError;
+
+        @Nullable private MemoryBudget mMemoryBudget;
+        // only touched by the thread writing to the tee
+        private int mAllocatedCount;
+        private long mChargedBytes;
+
+        private AsyncTarget(@NonNull MediaTarget target, int capacity) {
+            mTarget = target;
+            mCapacity = capacity;
+            mFreeSamples = new ArrayBlockingQueue<>(capacity);
+            mQueuedSamples = new ArrayBlockingQueue<>(capacity + 1);
+        }
+
+        private void start() {
+            mThread = new Thread(this, TAG + "-" + mTarget.getOutputFilePath());
+            mThread.start();
+        }
+
+        private void setMemoryBudget(@Nullable MemoryBudget memoryBudget) {
+            mMemoryBudget = memoryBudget;
+            mTarget.setMemoryBudget(memoryBudget);
+        }
+
+        private void addTrack(@NonNull MediaFormat mediaFormat, int targetTrack) {
+            Sample sample = obtain(0);
+            sample.mFormat = mediaFormat;
+            sample.mTargetTrack = targetTrack;
+            mQueuedSamples.add(sample);
+        }
+
+        private void writeSampleData(int targetTrack, @NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info) {
+            Sample sample = obtain(info.size);
+            ByteBuffer data = buffer.duplicate();
+            data.limit(info.offset + info.size);
+            data.position(info.offset);
+            sample.mBuffer.clear();
+            sample.mBuffer.put(data);
+            sample.mBuffer.flip();
+            sample.mInfo.set(0, info.size, info.presentationTimeUs, info.flags);
+            sample.mTargetTrack = targetTrack;
+            mQueuedSamples.add(sample);
+        }
+
+        /**
+         * Get a free sample which fits a given size, waiting for the target to write one if all are queued
+         */
+        @NonNull
+        private Sample obtain(int size) {
+            checkError();
+            Sample sample = mFreeSamples.poll();
+            if (sample == null && mAllocatedCount < mCapacity && chargeSample(size)) {
+                mAllocatedCount++;
+                return new Sample(size);
+            }
+            try {
+                while (sample == null) {
+                    checkError();
+                    sample = mFreeSamples.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for " + mTarget.getOutputFilePath(), e);
+            }
+            if (sample.mBuffer.capacity() < size) {
+                chargeGrowth(size - sample.mBuffer.capacity());
+                sample.mBuffer = ByteBuffer.allocate(size);
+            }
+            return sample;
+        }
+
+        private void checkError() {
+            Throwable error = mError;
+            if (error != null) {
+                throw new IllegalStateException("Failed to write to " + mTarget.getOutputFilePath(), error);
+            }
+        }
+
+        private boolean chargeSample(int size) {
+            if (mMemoryBudget == null) {
+                return true;
+            }
+            if (mAllocatedCount == 0) {
+                // a target without samples would stall its writer for good
+                mMemoryBudget.forceAcquire(size);
+            } else if (!mMemoryBudget.tryAcquire(size)) {
+                return false;
+            }
+            mChargedBytes += size;
+            return true;
+        }
+
+        private void chargeGrowth(int bytes) {
+            if (mMemoryBudget != null) {
+                mMemoryBudget.forceAcquire(bytes);
+                mChargedBytes += bytes;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Sample sample = mQueuedSamples.take();
+                    if (sample.mEndOfQueue) {
+                        return;
+                    }
+                    if (sample.mFormat != null) {
+                        mTarget.addTrack(sample.mFormat, sample.mTargetTrack);
+                        sample.mFormat = null;
+                    } else {
+                        mTarget.writeSampleData(sample.mTargetTrack, sample.mBuffer, sample.mInfo);
+                    }
+                    mFreeSamples.offer(sample);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                LogUtils.e(TAG, "Failed to write to " + mTarget.getOutputFilePath() + ": " + e);
+                mError = e;
+            }
+        }
+
+        /**
+         * Let the target write what is queued and wait for its thread to finish
+         */
+        private void stop() {
+            Thread thread = mThread;
+            if (thread == null) {
+                return;
+            }
+            Sample endOfQueue = new Sample(0);
+            endOfQueue.mEndOfQueue = true;
+            if (mError == null) {
+                mQueuedSamples.offer(endOfQueue);
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                thread.interrupt();
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+            mQueuedSamples.clear();
+            mFreeSamples.clear();
+            mAllocatedCount = 0;
+            if (mMemoryBudget != null) {
+                mMemoryBudget.release(mChargedBytes);
+            }
+            mChargedBytes = 0;
+        }
+    }
+
+    private static class Sample {
+        @NonNull private ByteBuffer mBuffer;
+        @NonNull private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private int mTargetTrack;
+        // track to add instead of sample data, null for a sample
+        @Nullable private MediaFormat mFormat;
+        private boolean mEndOfQueue;
+
+        private Sample(int bufferSize) {
+            mBuffer = ByteBuffer.allocate(bufferSize);
+        }
+    }
+
+    public static class Builder {
+        private final MediaTarget primaryTarget;
+        private final List<MediaTarget> targets = new ArrayList<>();
+        private final List<AsyncTarget> asyncTargets = new ArrayList<>();
+
+        /**
+         * Create a builder
+         * @param primaryTarget target written on the caller's thread, its output file path is the one of the tee
+         */
+        public Builder(@NonNull MediaTarget primaryTarget) {
+            this.primaryTarget = primaryTarget;
+            targets.add(primaryTarget);
+        }
+
+        /**
+         * Add a target written on the caller's thread, from the caller's sample buffer
+         */
+        public Builder addTarget(@NonNull MediaTarget mediaTarget) {
+            targets.add(mediaTarget);
+            return this;
+        }
+
+        /**
+         * Add a target written on its own thread, with a queue of {@link #DEFAULT_QUEUE_SIZE} samples
+         */
+        public Builder addAsyncTarget(@NonNull MediaTarget mediaTarget) {
+            return addAsyncTarget(mediaTarget, DEFAULT_QUEUE_SIZE);
+        }
+
+        /**
+         * Add a target written on its own thread, e.g. a slow network sink
+         * @param queueSize max number of samples waiting to be written, greater than 0
+         */
+        public Builder addAsyncTarget(@NonNull MediaTarget mediaTarget, int queueSize) {
+            if (queueSize <= 0) {
+                throw new IllegalArgumentException("Queue size should be greater than 0");
+            }
+            asyncTargets.add(new AsyncTarget(mediaTarget, queueSize));
+            return this;
+        }
+
+        public TeeMediaTarget build() {
+            return new TeeMediaTarget(primaryTarget, targets, asyncTargets);
+        }
+    }
+}
@@ -18,6 +18,7 @@
 // modified: removed unused method bodies
 // modified: use GL_LINEAR for GL_TEXTURE_MIN_FILTER to improve quality.
 // modified: added filters
+// modified: added drawing frames decoded for another renderer
 package com.jeffmony.videolibrary.render;
 
 import android.media.MediaFormat;
@@ -26,6 +27,7 @@ import android.opengl.Matrix;
 import android.os.Build;
 import android.view.Surface;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.jeffmony.videolibrary.codec.Frame;
@@ -56,6 +58,11 @@ public class GlVideoRenderer implements Renderer {
     private VideoRenderInputSurface mInputSurface;
     private VideoRenderOutputSurface mOutputSurface;
     private List<GlFilter> mFilters;
+    // default frame render filter only draws frames as they are, it does not count as a filter
+    private boolean mHasFilters;
+
+    // renderer whose input frames this one draws, null if it has its own input surface
+    @Nullable private GlVideoRenderer mInputRenderer;
 
     private float[] mvpMatrix = new float[16];
 
@@ -86,7 +93,7 @@ public class GlVideoRenderer implements Renderer {
             mFilters.add(new DefaultVideoFrameRenderFilter());
         }
         mFilters.addAll(filters);
-        mFilters.addAll(filters);
+        mHasFilters = !filters.isEmpty();
     }
 
     @Override
@@ -110,9 +117,14 @@ public class GlVideoRenderer implements Renderer {
             aspectRatio = (float) targetMediaFormat.getInteger(MediaFormat.KEY_WIDTH) / targetMediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
         }
 
-        mOutputSurface = new VideoRenderOutputSurface(outputSurface);
-
-        mInputSurface = new VideoRenderInputSurface();
+        // renderer may be initialized again after release, input surface texture is new then
+        mInputSurfaceTextureInitialized = false;
+        if (mInputRenderer != null) {
+            mOutputSurface = new VideoRenderOutputSurface(outputSurface, mInputRenderer.mOutputSurface);
+        } else {
+            mOutputSurface = new VideoRenderOutputSurface(outputSurface);
+            mInputSurface = new VideoRenderInputSurface();
+        }
         initMvpMatrix(rotation, aspectRatio);
 
         for (GlFilter filter : mFilters) {
@@ -135,7 +147,36 @@ public class GlVideoRenderer implements Renderer {
 
     @Override
     public void renderFrame(@Nullable Frame inputFrame, long presentationTimeNs) {
+        if (mInputRenderer == null) {
+            awaitInputFrame();
+        }
+        drawInputFrame(presentationTimeNs);
+    }
+
+    /**
+     * Draw frames latched by another renderer instead of having an input surface, so that one decoder
+     * can feed several renderers. Must be called before {@link #init(Surface, MediaFormat, MediaFormat)},
+     * once that renderer is initialized, on the same thread. This renderer should be released first.
+     * @param inputRenderer renderer which owns the input surface
+     */
+    public void setInputRenderer(@NonNull GlVideoRenderer inputRenderer) {
+        mInputRenderer = inputRenderer;
+    }
+
+    /**
+     * Wait for the next decoded frame and latch it into the input texture, without drawing it
+     */
+    public void awaitInputFrame() {
+        mOutputSurface.makeCurrent();
         mInputSurface.awaitNewImage();
+    }
+
+    /**
+     * Draw the latched input frame onto the output surface and send it to the encoder
+     * @param presentationTimeNs frame presentation time in nanoseconds
+     */
+    public void drawInputFrame(long presentationTimeNs) {
+        mOutputSurface.makeCurrent();
         drawFrame(presentationTimeNs);
         mOutputSurface.setPresentationTime(presentationTimeNs);
         mOutputSurface.swapBuffers();
@@ -143,17 +184,29 @@ public class GlVideoRenderer implements Renderer {
 
     @Override
     public void release() {
+        // filters belong to this renderer's context, which is not current if other renderers drew last
+        mOutputSurface.makeCurrent();
         for (GlFilter filter : mFilters) {
             filter.release();
         }
 
-        mInputSurface.release();
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
         mOutputSurface.release();
     }
 
+    /**
+     * Get number of filters applied to each frame, including the frame render filter
+     */
+    public int getFilterCount() {
+        return mFilters.size();
+    }
+
     @Override
     public boolean hasFilters() {
-        return mFilters != null && !mFilters.isEmpty();
+        return mHasFilters;
     }
 
     /**
@@ -216,9 +269,11 @@ public class GlVideoRenderer implements Renderer {
 
     private void initInputSurfaceTexture() {
         if (!mInputSurfaceTextureInitialized) {
+            // texture of a shared input lives in the context of its renderer, which this one shares
+            VideoRenderInputSurface inputSurface = mInputRenderer != null ? mInputRenderer.mInputSurface : mInputSurface;
             for (GlFilter filter : mFilters) {
                 if (filter instanceof GlFrameRenderFilter) {
-                    ((GlFrameRenderFilter) filter).initInputFrameTexture(mInputSurface.getTextureId(), mInputSurface.getTransformMatrix());
+                    ((GlFrameRenderFilter) filter).initInputFrameTexture(inputSurface.getTextureId(), inputSurface.getTransformMatrix());
                 }
             }
             mInputSurfaceTextureInitialized = true;
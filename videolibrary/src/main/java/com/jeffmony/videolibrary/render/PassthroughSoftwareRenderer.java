@@ -147,7 +147,8 @@ public class PassthroughSoftwareRenderer implements Renderer {
                 }
             }
         }
-        while (areBytesRemaining);
+        // remaining bytes of a frame are dropped when transformation is being cancelled
+        while (areBytesRemaining && !Thread.currentThread().isInterrupted());
     }
 
     @Override
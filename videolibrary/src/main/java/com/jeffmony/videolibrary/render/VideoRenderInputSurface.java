@@ -17,6 +17,7 @@
 // blob: fc8ad9cd390c5c311f015d3b7c1359e4d295bc52
 // modified: change TIMEOUT_MS from 500 to 10000
 // modified: removed unused methods
+// modified: frame wait survives spurious wakeups and ends as soon as the thread is interrupted
 package com.jeffmony.videolibrary.render;
 
 import android.graphics.SurfaceTexture;
@@ -26,6 +27,9 @@ import android.view.Surface;
 
 import androidx.annotation.NonNull;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author : jeffli
  * @Email  : jeffmony@163.com
@@ -107,22 +111,24 @@ class VideoRenderInputSurface implements SurfaceTexture.OnFrameAvailableListener
     /**
      * Latches the next buffer into the texture.  Must be called from the thread that created
      * the OutputSurface object, after the onFrameAvailable callback has signaled that new
-     * data is available.
+     * data is available. Interrupting the calling thread, e.g. when transformation is cancelled,
+     * ends the wait right away with a {@link CancellationException} and keeps thread interrupted.
      */
     void awaitNewImage() {
         synchronized (mFrameSyncObject) {
+            long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FRAME_WAIT_TIMEOUT_MS);
             while (!mFrameAvailable) {
+                // Wait for onFrameAvailable() to signal us.  Use a timeout to avoid
+                // stalling if it doesn't arrive.
+                long remainingNs = deadlineNs - System.nanoTime();
+                if (remainingNs <= 0) {
+                    throw new RuntimeException("Surface frame wait timed out");
+                }
                 try {
-                    // Wait for onFrameAvailable() to signal us.  Use a timeout to avoid
-                    // stalling the test if it doesn't arrive.
-                    mFrameSyncObject.wait(FRAME_WAIT_TIMEOUT_MS);
-                    if (!mFrameAvailable) {
-                        // TODO: if "spurious wakeup", continue while loop
-                        throw new RuntimeException("Surface frame wait timed out");
-                    }
+                    TimeUnit.NANOSECONDS.timedWait(mFrameSyncObject, remainingNs);
                 } catch (InterruptedException ie) {
-                    // shouldn't happen
-                    throw new RuntimeException(ie);
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Surface frame wait interrupted");
                 }
             }
             mFrameAvailable = false;
@@ -16,6 +16,7 @@
 // from: https://android.googlesource.com/platform/cts/+/lollipop-release/tests/tests/media/src/android/media/cts/InputSurface.java
 // blob: 157ed88d143229e4edb6889daf18fb73aa2fc5a5
 // modified: removed unused methods
+// modified: added contexts sharing textures with another surface
 package com.jeffmony.videolibrary.render;
 
 import android.opengl.EGL14;
@@ -50,10 +51,25 @@ class VideoRenderOutputSurface {
     private EGLSurface mEglSurface = EGL14.EGL_NO_SURFACE;
 
     private Surface mSurface;
+    // display is initialized by the surface whose context this one shares, and terminated by it
+    private final boolean mOwnsDisplay;
 
     VideoRenderOutputSurface(@NonNull Surface surface) {
         mSurface = surface;
-        eglSetup();
+        mOwnsDisplay = true;
+        eglSetup(EGL14.EGL_NO_CONTEXT);
+        makeCurrent();
+    }
+
+    /**
+     * Create a surface whose context shares textures with context of another surface, so that frames
+     * latched there can be drawn here. Other surface should be released after this one.
+     */
+    VideoRenderOutputSurface(@NonNull Surface surface, @NonNull VideoRenderOutputSurface sharedSurface) {
+        mSurface = surface;
+        mOwnsDisplay = false;
+        mEglDisplay = sharedSurface.mEglDisplay;
+        eglSetup(sharedSurface.mEglContext);
         makeCurrent();
     }
 
@@ -79,7 +95,9 @@ class VideoRenderOutputSurface {
             EGL14.eglDestroySurface(mEglDisplay, mEglSurface);
             EGL14.eglDestroyContext(mEglDisplay, mEglContext);
             EGL14.eglReleaseThread();
-            EGL14.eglTerminate(mEglDisplay);
+            if (mOwnsDisplay) {
+                EGL14.eglTerminate(mEglDisplay);
+            }
 
             mEglDisplay = EGL14.EGL_NO_DISPLAY;
             mEglContext = EGL14.EGL_NO_CONTEXT;
@@ -91,15 +109,17 @@ class VideoRenderOutputSurface {
         }
     }
 
-    private void eglSetup() {
-        mEglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
-        if (mEglDisplay == EGL14.EGL_NO_DISPLAY) {
-            throw new RuntimeException("unable to get EGL14 display");
-        }
-        int[] version = new int[2];
-        if (!EGL14.eglInitialize(mEglDisplay, version, 0, version, 1)) {
-            mEglDisplay = null;
-            throw new RuntimeException("unable to initialize EGL14");
+    private void eglSetup(@NonNull EGLContext sharedContext) {
+        if (mOwnsDisplay) {
+            mEglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+            if (mEglDisplay == EGL14.EGL_NO_DISPLAY) {
+                throw new RuntimeException("unable to get EGL14 display");
+            }
+            int[] version = new int[2];
+            if (!EGL14.eglInitialize(mEglDisplay, version, 0, version, 1)) {
+                mEglDisplay = null;
+                throw new RuntimeException("unable to initialize EGL14");
+            }
         }
 
         // Configure EGL for recordable and OpenGL ES 2.0.  We want enough RGB bits
@@ -128,7 +148,7 @@ class VideoRenderOutputSurface {
         };
         mEglContext = EGL14.eglCreateContext(mEglDisplay,
                                             configs[0],
-                                            EGL14.EGL_NO_CONTEXT,
+                                            sharedContext,
                                             egl14ContextAttributes,
                                             0);
         checkEglError("eglCreateContext");
@@ -149,9 +169,13 @@ class VideoRenderOutputSurface {
     }
 
     /**
-     * Makes our EGL context and surface current.
+     * Makes our EGL context and surface current, unless they already are.
      */
-    private void makeCurrent() {
+    void makeCurrent() {
+        if (mEglContext.equals(EGL14.eglGetCurrentContext())
+                && mEglSurface.equals(EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW))) {
+            return;
+        }
         if (!EGL14.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext)) {
             throw new RuntimeException("eglMakeCurrent failed");
         }
@@ -0,0 +1,181 @@
+package com.jeffmony.videolibrary.transcoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.VisibleForTesting;
+
+import com.jeffmony.videolibrary.codec.Decoder;
+import com.jeffmony.videolibrary.codec.Frame;
+import com.jeffmony.videolibrary.io.MediaSource;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * A transcoder that only decodes: decoded frames go to a {@link FrameAnalyzer} as byte buffers, nothing is
+ * rendered, encoded or written, so an analysis pass costs demux and decode only.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public class AnalysisTranscoder extends TrackTranscoder {
+    private static final String TAG = AnalysisTranscoder.class.getSimpleName();
+
+    @VisibleForTesting int lastExtractFrameResult;
+    @VisibleForTesting int lastDecodeFrameResult;
+
+    @NonNull private final FrameAnalyzer analyzer;
+
+    private boolean inputEnded;
+
+    AnalysisTranscoder(@NonNull MediaSource mediaSource,
+                       int sourceTrack,
+                       @NonNull Decoder decoder,
+                       @NonNull FrameAnalyzer analyzer) throws Exception {
+        super(mediaSource, sourceTrack, null, sourceTrack, null, null, decoder, null);
+        this.analyzer = analyzer;
+
+        lastExtractFrameResult = RESULT_FRAME_PROCESSED;
+        lastDecodeFrameResult = RESULT_FRAME_PROCESSED;
+
+        // no surface, decoder outputs frames into byte buffers
+        mDecoder.init(mMediaSource.getTrackFormat(mSourceTrack), null);
+    }
+
+    @Override
+    public void start() throws Exception {
+        mMediaSource.selectTrack(mSourceTrack);
+        seekToSelectionStart();
+
+        mDecoder.start();
+    }
+
+    @Override
+    public int processNextFrame() throws Exception {
+        if (!mDecoder.isRunning()) {
+            // can't do any work
+            return ERROR_TRANSCODER_NOT_RUNNING;
+        }
+        boolean progressed = false;
+
+        if (lastExtractFrameResult != RESULT_EOS_REACHED) {
+            lastExtractFrameResult = extractAndEnqueueInputFrame();
+            progressed |= lastExtractFrameResult != RESULT_TRY_AGAIN_LATER;
+        }
+
+        if (lastDecodeFrameResult != RESULT_EOS_REACHED) {
+            lastDecodeFrameResult = analyzeDecodedFrame();
+            progressed |= lastDecodeFrameResult != RESULT_TRY_AGAIN_LATER;
+        }
+
+        if (lastExtractFrameResult == RESULT_EOS_REACHED && lastDecodeFrameResult == RESULT_EOS_REACHED) {
+            return RESULT_EOS_REACHED;
+        }
+        return progressed ? RESULT_FRAME_PROCESSED : RESULT_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public void stop() {
+        releaseQuietly("decoder", mDecoder::stop);
+        releaseQuietly("decoder", mDecoder::release);
+    }
+
+    /**
+     * Analysis output does not depend on target timestamps, speed is ignored
+     */
+    @Override
+    public void setSpeed(float speed) {
+    }
+
+    @Override
+    @NonNull
+    public String getEncoderName() {
+        return "none";
+    }
+
+    private int extractAndEnqueueInputFrame() throws Exception {
+        int selectedTrack = mMediaSource.getSampleTrackIndex();
+        if (selectedTrack != mSourceTrack && selectedTrack != NO_SELECTED_TRACK) {
+            // current sample belongs to another track
+            return RESULT_TRY_AGAIN_LATER;
+        }
+        int tag = mDecoder.dequeueInputFrame(0);
+        if (tag < 0) {
+            if (tag != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                Log.e(TAG, "Unhandled value " + tag + " when decoding an input frame");
+            }
+            return RESULT_TRY_AGAIN_LATER;
+        }
+        Frame frame = mDecoder.getInputFrame(tag);
+        if (frame == null) {
+            throw new Exception("NO_FRAME_AVAILABLE");
+        }
+        int bytesRead = mMediaSource.readSampleData(frame.mBuffer, 0);
+        long sampleTime = mMediaSource.getSampleTime();
+        int sampleFlags = mMediaSource.getSampleFlags();
+        if (bytesRead <= 0 || (sampleFlags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            frame.mBufferInfo.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mDecoder.queueInputFrame(frame);
+            Log.d(TAG, "EoS reached on the input stream");
+            return RESULT_EOS_REACHED;
+        } else if (sampleTime >= mSourceMediaSelection.getEnd()) {
+            frame.mBufferInfo.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mDecoder.queueInputFrame(frame);
+            advanceToNextTrack();
+            Log.d(TAG, "Selection end reached on the input stream");
+            return RESULT_EOS_REACHED;
+        }
+        frame.mBufferInfo.set(0, bytesRead, sampleTime, sampleFlags);
+        mDecoder.queueInputFrame(frame);
+        mMediaSource.advance();
+        return RESULT_FRAME_PROCESSED;
+    }
+
+    private int analyzeDecodedFrame() throws Exception {
+        int tag = mDecoder.dequeueOutputFrame(0);
+        if (tag == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            MediaFormat outputFormat = mDecoder.getOutputFormat();
+            Log.d(TAG, "Decoder output format changed: " + outputFormat);
+            analyzer.onFormatChanged(outputFormat);
+            return RESULT_OUTPUT_MEDIA_FORMAT_CHANGED;
+        } else if (tag < 0) {
+            if (tag != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                Log.e(TAG, "Unhandled value " + tag + " when receiving decoded frame");
+            }
+            return RESULT_TRY_AGAIN_LATER;
+        }
+
+        Frame frame = mDecoder.getOutputFrame(tag);
+        if (frame == null) {
+            throw new Exception("NO_FRAME_AVAILABLE");
+        }
+        MediaCodec.BufferInfo info = frame.mBufferInfo;
+        boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        if (!inputEnded && info.size > 0 && isInSelection(info.presentationTimeUs)) {
+            frame.mBuffer.limit(info.offset + info.size);
+            frame.mBuffer.position(info.offset);
+            analyzer.onFrame(frame.mBuffer, info);
+            countSample(info.size);
+            if (mDuration > 0) {
+                mProgress = Math.min(1, ((float) toTargetTime(info.presentationTimeUs)) / mDuration);
+            }
+        }
+        if (!inputEnded && (endOfStream || info.presentationTimeUs >= mSourceMediaSelection.getEnd())) {
+            inputEnded = true;
+            analyzer.onEndOfStream();
+        }
+        mDecoder.releaseOutputFrame(tag, false);
+
+        if (endOfStream) {
+            Log.d(TAG, "EoS on decoder output stream");
+            mProgress = 1.0f;
+            return RESULT_EOS_REACHED;
+        }
+        return RESULT_FRAME_PROCESSED;
+    }
+}
@@ -12,6 +12,7 @@ import android.media.MediaFormat;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.VisibleForTesting;
 
@@ -22,6 +23,8 @@ import com.jeffmony.videolibrary.io.MediaSource;
 import com.jeffmony.videolibrary.io.MediaTarget;
 import com.jeffmony.videolibrary.render.Renderer;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -38,6 +41,18 @@ public class AudioTrackTranscoder extends TrackTranscoder {
     @VisibleForTesting int lastEncodeFrameResult;
 
     @NonNull private MediaFormat sourceAudioFormat;
+    // format encoder is configured with, target format is replaced by encoder output format later
+    @NonNull private final MediaFormat encoderFormat;
+
+    private boolean suspending;
+    // encoder input is closed, either at the end of selection or at the end of stream
+    private boolean inputEnded;
+    // end of stream is waiting for a free encoder input buffer
+    private boolean endOfStreamPending;
+
+    // outputs sharing a decode pass, see VideoTrackTranscoder
+    @Nullable private final AudioTrackTranscoder leader;
+    @NonNull private final List<AudioTrackTranscoder> followers = new ArrayList<>();
 
     AudioTrackTranscoder(@NonNull MediaSource mediaSource,
                          int sourceTrack,
@@ -47,10 +62,35 @@ public class AudioTrackTranscoder extends TrackTranscoder {
                          @NonNull Renderer renderer,
                          @NonNull Decoder decoder,
                          @NonNull Encoder encoder) throws Exception {
+        this(mediaSource, sourceTrack, mediaTarget, targetTrack, targetFormat, renderer, decoder, encoder, null);
+    }
+
+    /**
+     * Create a transcoder, or a follower of a transcoder which decodes the same source track
+     * @param leader transcoder to get decoded frames from, null to decode on its own
+     */
+    AudioTrackTranscoder(@NonNull MediaSource mediaSource,
+                         int sourceTrack,
+                         @NonNull MediaTarget mediaTarget,
+                         int targetTrack,
+                         @NonNull MediaFormat targetFormat,
+                         @NonNull Renderer renderer,
+                         @NonNull Decoder decoder,
+                         @NonNull Encoder encoder,
+                         @Nullable AudioTrackTranscoder leader) throws Exception {
         super(mediaSource, sourceTrack, mediaTarget, targetTrack, targetFormat, renderer, decoder, encoder);
 
-        lastExtractFrameResult = RESULT_FRAME_PROCESSED;
-        lastDecodeFrameResult = RESULT_FRAME_PROCESSED;
+        encoderFormat = targetFormat;
+        this.leader = leader;
+        if (leader != null) {
+            // leader extracts and decodes for its followers
+            lastExtractFrameResult = RESULT_EOS_REACHED;
+            lastDecodeFrameResult = RESULT_EOS_REACHED;
+            leader.followers.add(this);
+        } else {
+            lastExtractFrameResult = RESULT_FRAME_PROCESSED;
+            lastDecodeFrameResult = RESULT_FRAME_PROCESSED;
+        }
         lastEncodeFrameResult = RESULT_FRAME_PROCESSED;
 
         initCodecs();
@@ -61,14 +101,21 @@ public class AudioTrackTranscoder extends TrackTranscoder {
 
         sourceAudioFormat = mMediaSource.getTrackFormat(mSourceTrack);
 
-        mEncoder.init(mTargetFormat);
-        mRenderer.init(null, sourceAudioFormat, mTargetFormat);
-        mDecoder.init(sourceAudioFormat, null);
+        mEncoder.init(encoderFormat);
+        mRenderer.init(null, sourceAudioFormat, encoderFormat);
+        if (leader == null) {
+            mDecoder.init(sourceAudioFormat, null);
+        }
     }
 
     @Override
     public void start() throws Exception {
+        if (leader != null) {
+            mEncoder.start();
+            return;
+        }
         mMediaSource.selectTrack(mSourceTrack);
+        seekToSelectionStart();
 
         mEncoder.start();
         mDecoder.start();
@@ -76,25 +123,37 @@ public class AudioTrackTranscoder extends TrackTranscoder {
 
     @Override
     public int processNextFrame() throws Exception {
-        if (!mEncoder.isRunning() || !mDecoder.isRunning()) {
+        if (mSuspended) {
+            return RESULT_SUSPENDED;
+        }
+        if (!mEncoder.isRunning() || (leader == null && !mDecoder.isRunning())) {
             // can't do any work
             return ERROR_TRANSCODER_NOT_RUNNING;
         }
         int result = RESULT_FRAME_PROCESSED;
+        boolean progressed = false;
 
         // extract the frame from the incoming stream and send it to the decoder
         if (lastExtractFrameResult != RESULT_EOS_REACHED) {
             lastExtractFrameResult = extractAndEnqueueInputFrame();
+            progressed |= lastExtractFrameResult != RESULT_TRY_AGAIN_LATER;
         }
 
         // receive the decoded frame and send it to the encoder
         if (lastDecodeFrameResult != RESULT_EOS_REACHED) {
             lastDecodeFrameResult = queueDecodedInputFrame();
+            progressed |= lastDecodeFrameResult != RESULT_TRY_AGAIN_LATER;
+        }
+
+        if (endOfStreamPending) {
+            endOfStreamPending = !queueEndOfStream();
+            progressed |= !endOfStreamPending;
         }
 
         // get the encoded frame and write it into the target file
         if (lastEncodeFrameResult != RESULT_EOS_REACHED) {
             lastEncodeFrameResult = writeEncodedOutputFrame();
+            progressed |= lastEncodeFrameResult != RESULT_TRY_AGAIN_LATER;
         }
 
         if (lastEncodeFrameResult == RESULT_OUTPUT_MEDIA_FORMAT_CHANGED) {
@@ -105,6 +164,18 @@ public class AudioTrackTranscoder extends TrackTranscoder {
             && lastDecodeFrameResult == RESULT_EOS_REACHED
             && lastEncodeFrameResult == RESULT_EOS_REACHED) {
             result = RESULT_EOS_REACHED;
+            if (suspending) {
+                // drained up to the sample source is left at
+                releaseCodecs();
+                suspending = false;
+                mSuspendRequested = false;
+                mSuspended = true;
+                result = RESULT_SUSPENDED;
+                Log.d(TAG, "Suspended");
+            }
+        } else if (!progressed) {
+            // every running stage is waiting on a codec buffer
+            result = RESULT_TRY_AGAIN_LATER;
         }
 
         return result;
@@ -112,16 +183,83 @@ public class AudioTrackTranscoder extends TrackTranscoder {
 
     @Override
     public void stop() {
-        mEncoder.stop();
-        mEncoder.release();
+        if (mSuspended) {
+            // codecs are already released
+            return;
+        }
+        releaseCodecs();
+    }
+
+    /**
+     * Audio would need time stretching to play at another speed, only normal speed is supported
+     */
+    @Override
+    public void setSpeed(float speed) {
+        if (speed != 1) {
+            throw new IllegalArgumentException("Audio track can not change speed");
+        }
+    }
+
+    /**
+     * Suspend before the next sample is fed. Audio samples decode on their own, so no need to wait for
+     * a sync sample or even for a sample of this track.
+     */
+    @Override
+    public boolean requestSuspend() {
+        if (leader != null || !followers.isEmpty()) {
+            return false;
+        }
+        if (lastExtractFrameResult != RESULT_EOS_REACHED) {
+            mSuspendRequested = true;
+        }
+        return true;
+    }
+
+    @Override
+    public void resume() throws Exception {
+        if (!mSuspended) {
+            return;
+        }
+        initCodecs();
+        mEncoder.start();
+        mDecoder.start();
+
+        lastExtractFrameResult = RESULT_FRAME_PROCESSED;
+        lastDecodeFrameResult = RESULT_FRAME_PROCESSED;
+        lastEncodeFrameResult = RESULT_FRAME_PROCESSED;
+        inputEnded = false;
+        mSuspended = false;
+    }
+
+    private void releaseCodecs() {
+        if (leader == null) {
+            releaseQuietly("decoder", mDecoder::stop);
+            releaseQuietly("decoder", mDecoder::release);
+        }
 
-        mDecoder.stop();
-        mDecoder.release();
+        releaseQuietly("encoder", mEncoder::stop);
+        releaseQuietly("encoder", mEncoder::release);
     }
 
     private int extractAndEnqueueInputFrame() throws Exception {
         int extractFrameResult = RESULT_FRAME_PROCESSED;
 
+        if (mSuspendRequested) {
+            int tag = mDecoder.dequeueInputFrame(0);
+            if (tag < 0) {
+                return RESULT_TRY_AGAIN_LATER;
+            }
+            Frame frame = mDecoder.getInputFrame(tag);
+            if (frame == null) {
+                throw new Exception("NO_FRAME_AVAILABLE");
+            }
+            frame.mBufferInfo.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mDecoder.queueInputFrame(frame);
+            suspending = true;
+            Log.d(TAG, "Suspending");
+            return RESULT_EOS_REACHED;
+        }
+
         int selectedTrack = mMediaSource.getSampleTrackIndex();
         if (selectedTrack == mSourceTrack || selectedTrack == NO_SELECTED_TRACK) {
             int tag = mDecoder.dequeueInputFrame(0);
@@ -138,7 +276,7 @@ public class AudioTrackTranscoder extends TrackTranscoder {
                     mDecoder.queueInputFrame(frame);
                     extractFrameResult = RESULT_EOS_REACHED;
                     Log.d(TAG, "EoS reached on the input stream");
-                } else if (sampleTime >= mSourceMediaSelection.getEnd()) {
+                } else if (sampleTime >= getDecodeEnd()) {
                     frame.mBufferInfo.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                     mDecoder.queueInputFrame(frame);
                     advanceToNextTrack();
@@ -154,12 +292,16 @@ public class AudioTrackTranscoder extends TrackTranscoder {
                 switch (tag) {
                     case MediaCodec.INFO_TRY_AGAIN_LATER:
                         //Log.d(TAG, "Will try getting decoder input buffer later");
+                        extractFrameResult = RESULT_TRY_AGAIN_LATER;
                         break;
                     default:
                         Log.e(TAG, "Unhandled value " + tag + " when decoding an input frame");
                         break;
                 }
             }
+        } else {
+            // current sample belongs to another track
+            extractFrameResult = RESULT_TRY_AGAIN_LATER;
         }
 
         return extractFrameResult;
@@ -175,10 +317,33 @@ public class AudioTrackTranscoder extends TrackTranscoder {
                 throw new Exception("NO_FRAME_AVAILABLE");
             }
 
-            if (decoderOutputFrame.mBufferInfo.presentationTimeUs >= mSourceMediaSelection.getStart()
-                    || (decoderOutputFrame.mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                mRenderer.renderFrame(decoderOutputFrame,
-                        TimeUnit.MICROSECONDS.toNanos(decoderOutputFrame.mBufferInfo.presentationTimeUs - mSourceMediaSelection.getStart()));
+            long presentationTimeUs = decoderOutputFrame.mBufferInfo.presentationTimeUs;
+            if ((decoderOutputFrame.mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (!inputEnded) {
+                    mRenderer.renderFrame(decoderOutputFrame, getPresentationTimeNs(presentationTimeUs));
+                    inputEnded = true;
+                }
+                for (AudioTrackTranscoder follower : followers) {
+                    follower.endInput();
+                }
+            } else {
+                // renderers copy frame data, so the same frame can be rendered for every output which wants it
+                if (isSelected(presentationTimeUs)) {
+                    mRenderer.renderFrame(decoderOutputFrame, getPresentationTimeNs(presentationTimeUs));
+                }
+                for (AudioTrackTranscoder follower : followers) {
+                    if (follower.isSelected(presentationTimeUs)) {
+                        follower.mRenderer.renderFrame(decoderOutputFrame, follower.getPresentationTimeNs(presentationTimeUs));
+                    }
+                }
+                if (presentationTimeUs >= mSourceMediaSelection.getEnd()) {
+                    endInput();
+                }
+                for (AudioTrackTranscoder follower : followers) {
+                    if (presentationTimeUs >= follower.mSourceMediaSelection.getEnd()) {
+                        follower.endInput();
+                    }
+                }
             }
             mDecoder.releaseOutputFrame(tag, false);
 
@@ -190,10 +355,15 @@ public class AudioTrackTranscoder extends TrackTranscoder {
             switch (tag) {
                 case MediaCodec.INFO_TRY_AGAIN_LATER:
                     // Log.d(TAG, "Will try getting decoder output later");
+                    decodeFrameResult = RESULT_TRY_AGAIN_LATER;
                     break;
                 case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
                     sourceAudioFormat = mDecoder.getOutputFormat();
                     mRenderer.onMediaFormatChanged(sourceAudioFormat, mTargetFormat);
+                    for (AudioTrackTranscoder follower : followers) {
+                        follower.sourceAudioFormat = sourceAudioFormat;
+                        follower.mRenderer.onMediaFormatChanged(sourceAudioFormat, follower.mTargetFormat);
+                    }
                     Log.d(TAG, "Decoder output format changed: " + sourceAudioFormat);
                     break;
                 default:
@@ -205,6 +375,49 @@ public class AudioTrackTranscoder extends TrackTranscoder {
         return decodeFrameResult;
     }
 
+    /**
+     * Get time extraction stops at, end of the latest selection among this transcoder and its followers
+     */
+    private long getDecodeEnd() {
+        long decodeEnd = mSourceMediaSelection.getEnd();
+        for (AudioTrackTranscoder follower : followers) {
+            decodeEnd = Math.max(decodeEnd, follower.mSourceMediaSelection.getEnd());
+        }
+        return decodeEnd;
+    }
+
+    private boolean isSelected(long presentationTimeUs) {
+        return !inputEnded && isInSelection(presentationTimeUs);
+    }
+
+    private long getPresentationTimeNs(long presentationTimeUs) {
+        return TimeUnit.MICROSECONDS.toNanos(toTargetTime(presentationTimeUs));
+    }
+
+    /**
+     * Close encoder input before the decoder reaches its end of stream, e.g. at the end of selection
+     */
+    private void endInput() {
+        if (!inputEnded) {
+            inputEnded = true;
+            endOfStreamPending = !queueEndOfStream();
+        }
+    }
+
+    private boolean queueEndOfStream() {
+        int tag = mEncoder.dequeueInputFrame(0);
+        if (tag < 0) {
+            return false;
+        }
+        Frame frame = mEncoder.getInputFrame(tag);
+        if (frame == null) {
+            return false;
+        }
+        frame.mBufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        mEncoder.queueInputFrame(frame);
+        return true;
+    }
+
     private int writeEncodedOutputFrame() throws Exception {
         int encodeFrameResult = RESULT_FRAME_PROCESSED;
 
@@ -217,11 +430,13 @@ public class AudioTrackTranscoder extends TrackTranscoder {
 
             if ((frame.mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                 Log.d(TAG, "Encoder produced EoS, we are done");
-                mProgress = 1.0f;
+                if (!suspending) {
+                    mProgress = 1.0f;
+                }
                 encodeFrameResult = RESULT_EOS_REACHED;
             } else if (frame.mBufferInfo.size > 0
                     && (frame.mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
-                mMediaMuxer.writeSampleData(mTargetTrack, frame.mBuffer, frame.mBufferInfo);
+                writeSampleData(frame.mBuffer, frame.mBufferInfo);
                 if (mDuration > 0) {
                     mProgress = ((float) frame.mBufferInfo.presentationTimeUs) / mDuration;
                 }
@@ -232,6 +447,7 @@ public class AudioTrackTranscoder extends TrackTranscoder {
             switch (tag) {
                 case MediaCodec.INFO_TRY_AGAIN_LATER:
                     //                        Log.d(TAG, "Will try getting encoder output buffer later");
+                    encodeFrameResult = RESULT_TRY_AGAIN_LATER;
                     break;
                 case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
                     // TODO for now, we assume that we only get one media format as a first buffer
@@ -0,0 +1,42 @@
+package com.jeffmony.videolibrary.transcoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Receives decoded frames of a track which is analyzed instead of transcoded, e.g. to find scene cuts or measure
+ * loudness. Called on the thread running the job, one call at a time.
+ */
+public interface FrameAnalyzer {
+
+    /**
+     * Called when decoder output format is known and whenever it changes, before frames in that format.
+     * Video formats carry color format, stride, slice height and crop of the frames which follow.
+     * @param format decoder output format
+     */
+    default void onFormatChanged(@NonNull MediaFormat format) {
+    }
+
+    /**
+     * Analyze a decoded frame within selection
+     * @param buffer frame data, from info offset, only valid during the call
+     * @param info frame size, flags and source presentation time
+     */
+    void onFrame(@NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info);
+
+    /**
+     * Called once the last frame within selection was analyzed
+     */
+    default void onEndOfStream() {
+    }
+}
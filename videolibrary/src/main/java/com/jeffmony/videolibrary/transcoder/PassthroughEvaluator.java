@@ -0,0 +1,149 @@
+package com.jeffmony.videolibrary.transcoder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.io.MediaSource;
+import com.jeffmony.videolibrary.render.Renderer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Decides if a track can be written as is instead of being transcoded, because transcoding would not give
+ * anything the source does not already have: same mime type, resolution within tolerance, bitrate at or below
+ * target and nothing to render. Video also needs a frame rate at or below target. Audio also needs the same
+ * sample rate and channel count. A property source does not report is taken as a mismatch, except bitrate,
+ * which is then bounded by average bitrate of the whole source.
+ */
+public class PassthroughEvaluator {
+
+    public static final float DEFAULT_RESOLUTION_TOLERANCE = 0.05f;
+
+    private final float mResolutionTolerance;
+
+    public PassthroughEvaluator() {
+        this(DEFAULT_RESOLUTION_TOLERANCE);
+    }
+
+    /**
+     * Create an evaluator
+     * @param resolutionTolerance how far source width and height may be from target, as a fraction of target
+     */
+    public PassthroughEvaluator(float resolutionTolerance) {
+        if (resolutionTolerance < 0) {
+            throw new IllegalArgumentException("Resolution tolerance should not be negative");
+        }
+        mResolutionTolerance = resolutionTolerance;
+    }
+
+    /**
+     * Check if a source track already matches target format
+     * @param mediaSource source media
+     * @param sourceTrack source track
+     * @param renderer renderer the track would be transcoded with, null if none
+     * @param targetFormat requested target format
+     * @return true if track can be written as is
+     */
+    public boolean canPassThrough(@NonNull MediaSource mediaSource,
+                                  int sourceTrack,
+                                  @Nullable Renderer renderer,
+                                  @NonNull MediaFormat targetFormat) {
+        MediaFormat sourceFormat = mediaSource.getTrackFormat(sourceTrack);
+        String mimeType = sourceFormat.getString(MediaFormat.KEY_MIME);
+        if (mimeType == null || !mimeType.equals(targetFormat.getString(MediaFormat.KEY_MIME))) {
+            return false;
+        }
+        if (renderer != null && renderer.hasFilters()) {
+            return false;
+        }
+        if (!isBitrateWithinTarget(mediaSource, sourceFormat, targetFormat)) {
+            return false;
+        }
+        if (mimeType.startsWith("video")) {
+            // cut points are not sync samples, copied frames after them would miss their references
+            return mediaSource.getCutList() == null
+                    && isResolutionWithinTolerance(sourceFormat, targetFormat)
+                    && isFrameRateWithinTarget(sourceFormat, targetFormat);
+        } else if (mimeType.startsWith("audio")) {
+            return hasSameValue(sourceFormat, targetFormat, MediaFormat.KEY_SAMPLE_RATE)
+                    && hasSameValue(sourceFormat, targetFormat, MediaFormat.KEY_CHANNEL_COUNT);
+        }
+        return false;
+    }
+
+    private boolean isResolutionWithinTolerance(@NonNull MediaFormat sourceFormat, @NonNull MediaFormat targetFormat) {
+        if (!sourceFormat.containsKey(MediaFormat.KEY_WIDTH) || !sourceFormat.containsKey(MediaFormat.KEY_HEIGHT)
+                || !targetFormat.containsKey(MediaFormat.KEY_WIDTH) || !targetFormat.containsKey(MediaFormat.KEY_HEIGHT)) {
+            return false;
+        }
+        int sourceWidth = sourceFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int sourceHeight = sourceFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        int targetWidth = targetFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int targetHeight = targetFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        // target may be given in display orientation of a rotated source
+        return (isWithinTolerance(sourceWidth, targetWidth) && isWithinTolerance(sourceHeight, targetHeight))
+                || (isWithinTolerance(sourceWidth, targetHeight) && isWithinTolerance(sourceHeight, targetWidth));
+    }
+
+    private boolean isWithinTolerance(int value, int targetValue) {
+        return Math.abs(value - targetValue) <= mResolutionTolerance * targetValue;
+    }
+
+    private static boolean isFrameRateWithinTarget(@NonNull MediaFormat sourceFormat, @NonNull MediaFormat targetFormat) {
+        if (!targetFormat.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            return true;
+        }
+        return sourceFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                && getFrameRate(sourceFormat) <= getFrameRate(targetFormat);
+    }
+
+    private static float getFrameRate(@NonNull MediaFormat format) {
+        // frame rate is an integer in most containers, a float in some
+        try {
+            return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            return format.getFloat(MediaFormat.KEY_FRAME_RATE);
+        }
+    }
+
+    private static boolean isBitrateWithinTarget(@NonNull MediaSource mediaSource,
+                                                 @NonNull MediaFormat sourceFormat,
+                                                 @NonNull MediaFormat targetFormat) {
+        if (!targetFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            return true;
+        }
+        long sourceBitrate = getBitrate(mediaSource, sourceFormat);
+        return sourceBitrate > 0 && sourceBitrate <= targetFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+    }
+
+    /**
+     * Get bitrate of a source track, or average bitrate of the whole source if track does not report it
+     * @return bitrate in bits per second, -1 if unknown
+     */
+    private static long getBitrate(@NonNull MediaSource mediaSource, @NonNull MediaFormat sourceFormat) {
+        if (sourceFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            return sourceFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        }
+        long size = mediaSource.getSize();
+        long durationUs = sourceFormat.containsKey(MediaFormat.KEY_DURATION) ? sourceFormat.getLong(MediaFormat.KEY_DURATION) : -1;
+        if (size <= 0 || durationUs <= 0) {
+            return -1;
+        }
+        return size * 8 * TimeUnit.SECONDS.toMicros(1) / durationUs;
+    }
+
+    private static boolean hasSameValue(@NonNull MediaFormat sourceFormat, @NonNull MediaFormat targetFormat, @NonNull String key) {
+        if (!targetFormat.containsKey(key)) {
+            return true;
+        }
+        return sourceFormat.containsKey(key) && sourceFormat.getInteger(key) == targetFormat.getInteger(key);
+    }
+}
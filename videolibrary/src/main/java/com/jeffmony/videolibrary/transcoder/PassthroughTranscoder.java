@@ -52,6 +52,7 @@ public class PassthroughTranscoder extends TrackTranscoder {
     @Override
     public void start() throws Exception {
         mMediaSource.selectTrack(mSourceTrack);
+        seekToSelectionStart();
 
         outputBufferInfo = new MediaCodec.BufferInfo();
     }
@@ -59,17 +60,39 @@ public class PassthroughTranscoder extends TrackTranscoder {
     @Override
     public void stop() {
         if (outputBuffer != null) {
+            if (mMemoryBudget != null) {
+                mMemoryBudget.release(outputBuffer.capacity());
+            }
             outputBuffer.clear();
             outputBuffer = null;
         }
     }
 
+    @Override
+    public boolean requestSuspend() {
+        // nothing to release, any sample boundary is a safe point
+        mSuspendRequested = true;
+        return true;
+    }
+
+    @Override
+    public void resume() {
+        mSuspendRequested = false;
+        mSuspended = false;
+        lastResult = RESULT_FRAME_PROCESSED;
+    }
+
     @Override
     public int processNextFrame() {
         if (lastResult == RESULT_EOS_REACHED) {
             // we are done
             return lastResult;
         }
+        if (mSuspendRequested && mTargetTrackAdded) {
+            mSuspended = true;
+            lastResult = RESULT_SUSPENDED;
+            return lastResult;
+        }
 
         // TranscoderJob expects the first result to be RESULT_OUTPUT_MEDIA_FORMAT_CHANGED, so that it can start the mMediaMuxer
         if (!mTargetTrackAdded) {
@@ -84,6 +107,10 @@ public class PassthroughTranscoder extends TrackTranscoder {
             int bufferSize = mTargetFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
                     ? mTargetFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
                     : DEFAULT_BUFFER_SIZE;
+            if (mMemoryBudget != null) {
+                // nothing moves without this buffer, it is granted even over budget
+                mMemoryBudget.forceAcquire(bufferSize);
+            }
             outputBuffer = ByteBuffer.allocate(bufferSize);
 
             lastResult = RESULT_OUTPUT_MEDIA_FORMAT_CHANGED;
@@ -92,7 +119,8 @@ public class PassthroughTranscoder extends TrackTranscoder {
 
         int selectedTrack = mMediaSource.getSampleTrackIndex();
         if (selectedTrack != NO_SELECTED_TRACK && selectedTrack != mSourceTrack) {
-            lastResult = RESULT_FRAME_PROCESSED;
+            // current sample belongs to another track
+            lastResult = RESULT_TRY_AGAIN_LATER;
             return lastResult;
         }
 
@@ -110,13 +138,13 @@ public class PassthroughTranscoder extends TrackTranscoder {
         } else if (sampleTime >= mSourceMediaSelection.getEnd()) {
             outputBuffer.clear();
             mProgress = 1.0f;
-            outputBufferInfo.set(0, 0, sampleTime - mSourceMediaSelection.getStart(), outputBufferInfo.flags | MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-            mMediaMuxer.writeSampleData(mTargetTrack, outputBuffer, outputBufferInfo);
+            outputBufferInfo.set(0, 0, toTargetTime(sampleTime), outputBufferInfo.flags | MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            writeSampleData(outputBuffer, outputBufferInfo);
             advanceToNextTrack();
             lastResult = RESULT_EOS_REACHED;
             Log.d(TAG, "Reach selection end on input stream");
         } else {
-            if (sampleTime >= mSourceMediaSelection.getStart()) {
+            if (isInSelection(sampleTime)) {
                 int outputFlags = 0;
                 if ((inputFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -125,12 +153,12 @@ public class PassthroughTranscoder extends TrackTranscoder {
                         outputFlags = MediaCodec.BUFFER_FLAG_SYNC_FRAME;
                     }
                 }
-                sampleTime -= mSourceMediaSelection.getStart();
+                sampleTime = toTargetTime(sampleTime);
                 if (mDuration > 0) {
                     mProgress = ((float) sampleTime) / mDuration;
                 }
                 outputBufferInfo.set(0, bytesRead, sampleTime, outputFlags);
-                mMediaMuxer.writeSampleData(mTargetTrack, outputBuffer, outputBufferInfo);
+                writeSampleData(outputBuffer, outputBufferInfo);
             }
             mMediaSource.advance();
         }
@@ -0,0 +1,289 @@
+package com.jeffmony.videolibrary.transcoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+import com.jeffmony.videolibrary.codec.Decoder;
+import com.jeffmony.videolibrary.codec.Encoder;
+import com.jeffmony.videolibrary.codec.Frame;
+import com.jeffmony.videolibrary.io.DispatchedMediaSource;
+import com.jeffmony.videolibrary.io.MediaSampleQueue;
+import com.jeffmony.videolibrary.io.MediaSource;
+import com.jeffmony.videolibrary.io.MediaTarget;
+import com.jeffmony.videolibrary.io.MemoryBudget;
+import com.jeffmony.videolibrary.render.Renderer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Video transcoder which runs its stages concurrently, so that a slow muxer write or GL render does not stall
+ * feeding the decoder:
+ * <ul>
+ *     <li>extraction runs on its own thread and publishes samples into a bounded {@link MediaSampleQueue}</li>
+ *     <li>decode and render run on the caller thread in {@link #processNextFrame()}, since GL context
+ *     was made current there when the renderer was initialized</li>
+ *     <li>encoder drain and mux run on their own thread, blocking on encoder output with a timeout</li>
+ * </ul>
+ * When the sample queue is full the extraction thread blocks until decode stage recycles a sample.
+ * End of stream, either real or selection end, propagates through the stages exactly like in
+ * {@link VideoTrackTranscoder}. Extraction reads from the media source off the caller thread, so
+ * the media source must either be dedicated to this track or be a {@link DispatchedMediaSource}.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public class PipelinedVideoTrackTranscoder extends VideoTrackTranscoder {
+    private static final String TAG = PipelinedVideoTrackTranscoder.class.getSimpleName();
+
+    private static final int DEFAULT_SAMPLE_BUFFER_SIZE = 1024 * 1024;
+    private static final long STAGE_WAIT_TIMEOUT_MS = 10;
+
+    private final MediaSampleQueue mSampleQueue;
+
+    @Nullable private MediaSampleQueue.Sample mPendingSample;
+
+    private Thread mExtractThread;
+    private Thread mEncodeThread;
+
+    private volatile boolean mStopped;
+    private volatile boolean mEncodeStageFinished;
+    private volatile Exception mStageError;
+
+    PipelinedVideoTrackTranscoder(@NonNull MediaSource mediaSource,
+                                  int sourceTrack,
+                                  @NonNull MediaTarget mediaTarget,
+                                  int targetTrack,
+                                  @NonNull MediaFormat targetFormat,
+                                  @NonNull Renderer renderer,
+                                  @NonNull Decoder decoder,
+                                  @NonNull Encoder encoder,
+                                  int queueSize) throws Exception {
+        super(mediaSource, sourceTrack, mediaTarget, targetTrack, targetFormat, renderer, decoder, encoder);
+
+        MediaFormat sourceFormat = mediaSource.getTrackFormat(sourceTrack);
+        int bufferSize = sourceFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? sourceFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                : DEFAULT_SAMPLE_BUFFER_SIZE;
+        mSampleQueue = new MediaSampleQueue(queueSize, bufferSize);
+    }
+
+    @Override
+    public void start() throws Exception {
+        super.start();
+
+        mStopped = false;
+        mExtractThread = startStage("Extract-" + mSourceTrack, this::extractSamples);
+        mEncodeThread = startStage("Encode-" + mSourceTrack, this::drainEncoder);
+    }
+
+    /**
+     * Stop stage threads and wait for them to finish, before releasing sample buffers and codecs they use.
+     * Both stages check for stop every few milliseconds, so waiting is short.
+     */
+    @Override
+    public void stop() {
+        mStopped = true;
+        joinStage(mExtractThread);
+        joinStage(mEncodeThread);
+        mExtractThread = null;
+        mEncodeThread = null;
+
+        if (mPendingSample != null) {
+            mSampleQueue.recycle(mPendingSample);
+            mPendingSample = null;
+        }
+        mSampleQueue.clear();
+        mSampleQueue.releaseBuffers();
+
+        super.stop();
+    }
+
+    @Override
+    public void setMemoryBudget(@Nullable MemoryBudget memoryBudget) {
+        super.setMemoryBudget(memoryBudget);
+        mSampleQueue.setMemoryBudget(memoryBudget);
+    }
+
+    @Override
+    public boolean requestSuspend() {
+        // stage threads would have to be parked and restarted, not supported
+        return false;
+    }
+
+    @Override
+    public int processNextFrame() throws Exception {
+        Exception stageError = mStageError;
+        if (stageError != null) {
+            throw new Exception("Pipelined stage failed on track " + mSourceTrack, stageError);
+        }
+        if (!mEncoder.isRunning() || !mDecoder.isRunning()) {
+            // can't do any work
+            return ERROR_TRANSCODER_NOT_RUNNING;
+        }
+        int result = RESULT_FRAME_PROCESSED;
+        boolean progressed = false;
+
+        // take an extracted sample from the queue and send it to the decoder
+        if (lastExtractFrameResult != RESULT_EOS_REACHED) {
+            lastExtractFrameResult = enqueueExtractedSample();
+            progressed |= lastExtractFrameResult != RESULT_TRY_AGAIN_LATER;
+        }
+
+        // receive the decoded frame and send it to the encoder by rendering it on encoder's input surface
+        if (lastDecodeFrameResult != RESULT_EOS_REACHED) {
+            lastDecodeFrameResult = resizeDecodedInputFrame();
+            progressed |= lastDecodeFrameResult != RESULT_TRY_AGAIN_LATER;
+        }
+
+        // encoded frames are written by the encode stage thread
+        if (lastEncodeFrameResult != RESULT_EOS_REACHED && mEncodeStageFinished) {
+            lastEncodeFrameResult = RESULT_EOS_REACHED;
+            progressed = true;
+        }
+
+        if (lastExtractFrameResult == RESULT_EOS_REACHED
+            && lastDecodeFrameResult == RESULT_EOS_REACHED
+            && lastEncodeFrameResult == RESULT_EOS_REACHED) {
+            result = RESULT_EOS_REACHED;
+        } else if (!progressed) {
+            result = RESULT_TRY_AGAIN_LATER;
+        }
+
+        return result;
+    }
+
+    private int enqueueExtractedSample() throws Exception {
+        if (mPendingSample == null) {
+            mPendingSample = mSampleQueue.poll();
+            if (mPendingSample == null) {
+                // extraction stage is behind
+                return RESULT_TRY_AGAIN_LATER;
+            }
+        }
+
+        int tag = mDecoder.dequeueInputFrame(0);
+        if (tag < 0) {
+            if (tag != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                Log.e(TAG, "Unhandled value " + tag + " when decoding an input frame");
+            }
+            return RESULT_TRY_AGAIN_LATER;
+        }
+        Frame frame = mDecoder.getInputFrame(tag);
+        if (frame == null) {
+            throw new Exception("NO_FRAME_AVAILABLE");
+        }
+
+        int extractFrameResult = RESULT_FRAME_PROCESSED;
+        MediaSampleQueue.Sample sample = mPendingSample;
+        if (sample.isEndOfStream()) {
+            frame.mBufferInfo.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            extractFrameResult = RESULT_EOS_REACHED;
+            Log.d(TAG, "EoS reached on the input stream");
+        } else {
+            frame.mBuffer.clear();
+            frame.mBuffer.put(sample.mBuffer);
+            frame.mBufferInfo.set(0, sample.mInfo.size, sample.mInfo.presentationTimeUs, sample.mInfo.flags);
+        }
+        mDecoder.queueInputFrame(frame);
+
+        mPendingSample = null;
+        mSampleQueue.recycle(sample);
+        return extractFrameResult;
+    }
+
+    private void extractSamples() throws Exception {
+        while (!mStopped) {
+            if (mMediaSource instanceof DispatchedMediaSource
+                    && !((DispatchedMediaSource) mMediaSource).awaitSample(STAGE_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                // shared media source has not dispatched next sample of this track yet
+                continue;
+            }
+            MediaSampleQueue.Sample sample = mSampleQueue.obtain(STAGE_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (sample == null) {
+                // decode stage is behind, queue is full
+                continue;
+            }
+
+            int bytesRead = mMediaSource.readSampleData(sample.mBuffer, 0);
+            long sampleTime = mMediaSource.getSampleTime();
+            int sampleFlags = mMediaSource.getSampleFlags();
+            if (bytesRead <= 0
+                    || (sampleFlags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                    || sampleTime >= mSourceMediaSelection.getEnd()) {
+                sample.mInfo.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mSampleQueue.publish(sample);
+                Log.d(TAG, "Extraction reached EoS or selection end");
+                return;
+            }
+            if (isDroppedBeforeDecoding(sampleTime, sampleFlags, sample.mBuffer, bytesRead)) {
+                mSampleQueue.recycle(sample);
+                mMediaSource.advance();
+                continue;
+            }
+
+            sample.mBuffer.position(0);
+            sample.mBuffer.limit(bytesRead);
+            sample.mInfo.set(0, bytesRead, sampleTime, sampleFlags);
+            mSampleQueue.publish(sample);
+            mMediaSource.advance();
+        }
+    }
+
+    private void drainEncoder() throws Exception {
+        long timeoutUs = TimeUnit.MILLISECONDS.toMicros(STAGE_WAIT_TIMEOUT_MS);
+        while (!mStopped) {
+            if (writeEncodedOutputFrame(timeoutUs) == RESULT_EOS_REACHED) {
+                mEncodeStageFinished = true;
+                return;
+            }
+        }
+    }
+
+    @NonNull
+    private Thread startStage(@NonNull String name, @NonNull Stage stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (InterruptedException e) {
+                // stopped while waiting, nothing to report
+            } catch (Exception e) {
+                Log.e(TAG, "Stage " + name + " failed", e);
+                mStageError = e;
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    private void joinStage(@Nullable Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // codecs must not be released under a running stage, keep waiting
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+}
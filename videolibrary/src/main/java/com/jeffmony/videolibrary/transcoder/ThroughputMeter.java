@@ -0,0 +1,64 @@
+package com.jeffmony.videolibrary.transcoder;
+
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Counts video frames and bytes written to media targets. Meters can be chained, so that a job and the engine
+ * running it both know their throughput. Safe to update from any thread.
+ */
+public class ThroughputMeter {
+
+    @Nullable private final ThroughputMeter mParent;
+    private final AtomicLong mFrameCount = new AtomicLong();
+    private final AtomicLong mByteCount = new AtomicLong();
+
+    public ThroughputMeter() {
+        this(null);
+    }
+
+    /**
+     * Create a meter which also counts everything it gets into a parent meter, e.g. a per job meter
+     * feeding an engine wide one
+     * @param parent parent meter, null if none
+     */
+    public ThroughputMeter(@Nullable ThroughputMeter parent) {
+        mParent = parent;
+    }
+
+    /**
+     * Record a sample written to a media target
+     * @param size sample size, in bytes
+     * @param isVideoFrame true if sample is a video frame
+     */
+    public void onSampleWritten(int size, boolean isVideoFrame) {
+        mByteCount.addAndGet(size);
+        if (isVideoFrame) {
+            mFrameCount.incrementAndGet();
+        }
+        if (mParent != null) {
+            mParent.onSampleWritten(size, isVideoFrame);
+        }
+    }
+
+    /**
+     * Get number of video frames written so far
+     */
+    public long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    /**
+     * Get number of bytes written so far
+     */
+    public long getByteCount() {
+        return mByteCount.get();
+    }
+}
@@ -1,18 +1,24 @@
 package com.jeffmony.videolibrary.transcoder;
 
 import android.media.MediaCodec;
+import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.jeffmony.videolibrary.codec.Decoder;
 import com.jeffmony.videolibrary.codec.Encoder;
+import com.jeffmony.videolibrary.io.MediaCutList;
 import com.jeffmony.videolibrary.io.MediaRange;
 import com.jeffmony.videolibrary.io.MediaSource;
 import com.jeffmony.videolibrary.io.MediaTarget;
+import com.jeffmony.videolibrary.io.MemoryBudget;
 import com.jeffmony.videolibrary.render.Renderer;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author : jeffli
  * @Email  : jeffmony@163.com
@@ -20,6 +26,8 @@ import com.jeffmony.videolibrary.render.Renderer;
  */
 
 public abstract class TrackTranscoder {
+    private static final String TAG = TrackTranscoder.class.getSimpleName();
+
     public static final int NO_SELECTED_TRACK = -1;
     public static final int UNDEFINED_VALUE = -1;
 
@@ -28,14 +36,18 @@ public abstract class TrackTranscoder {
     public static final int RESULT_OUTPUT_MEDIA_FORMAT_CHANGED = 1;
     public static final int RESULT_FRAME_PROCESSED = 2;
     public static final int RESULT_EOS_REACHED = 3;
+    public static final int RESULT_TRY_AGAIN_LATER = 4;
+    public static final int RESULT_SUSPENDED = 5;
 
     @NonNull
     protected final MediaSource mMediaSource;
-    @NonNull protected final MediaTarget mMediaMuxer;
+    // null if transcoder writes nothing, e.g. an analysis pass
+    @Nullable protected final MediaTarget mMediaMuxer;
     @Nullable protected final Renderer mRenderer;
     @Nullable protected final Decoder mDecoder;
     @Nullable protected final Encoder mEncoder;
     @NonNull protected final MediaRange mSourceMediaSelection;
+    @Nullable protected final MediaCutList mCutList;
 
     protected int mSourceTrack;
     protected int mTargetTrack;
@@ -45,11 +57,20 @@ public abstract class TrackTranscoder {
     @Nullable protected MediaFormat mTargetFormat;
 
     protected long mDuration = UNDEFINED_VALUE;
-    protected float mProgress;
+    protected float mSpeed = 1;
+    protected volatile float mProgress;
+
+    protected boolean mSuspendRequested;
+    protected boolean mSuspended;
+
+    @Nullable protected MemoryBudget mMemoryBudget;
+
+    private final boolean mIsVideoTrack;
+    @Nullable private ThroughputMeter mThroughputMeter;
 
     TrackTranscoder(@NonNull MediaSource mediaSource,
                     int sourceTrack,
-                    @NonNull MediaTarget mediaTarget,
+                    @Nullable MediaTarget mediaTarget,
                     int targetTrack,
                     @Nullable MediaFormat targetFormat,
                     @Nullable Renderer renderer,
@@ -64,8 +85,11 @@ public abstract class TrackTranscoder {
         mDecoder = decoder;
         mEncoder = encoder;
         mSourceMediaSelection = mediaSource.getSelection();
+        mCutList = mediaSource.getCutList();
 
         MediaFormat sourceMedia = mediaSource.getTrackFormat(sourceTrack);
+        String mimeType = sourceMedia.getString(MediaFormat.KEY_MIME);
+        mIsVideoTrack = mimeType != null && mimeType.startsWith("video");
         if (sourceMedia.containsKey(MediaFormat.KEY_DURATION)) {
             mDuration = sourceMedia.getLong(MediaFormat.KEY_DURATION);
             if (targetFormat != null) {
@@ -79,8 +103,12 @@ public abstract class TrackTranscoder {
         }
 
         // adjust for range
-        mDuration = Math.min(mDuration, mSourceMediaSelection.getEnd());
-        mDuration -= mSourceMediaSelection.getStart();
+        if (mCutList != null) {
+            mDuration = mCutList.getDuration(mDuration);
+        } else {
+            mDuration = Math.min(mDuration, mSourceMediaSelection.getEnd());
+            mDuration -= mSourceMediaSelection.getStart();
+        }
     }
 
     public abstract void start() throws Exception;
@@ -89,6 +117,59 @@ public abstract class TrackTranscoder {
 
     public abstract void stop();
 
+    /**
+     * Ask transcoder to stop at its next safe point and release its codecs and renderer. Once it did,
+     * {@link #processNextFrame()} returns {@link #RESULT_SUSPENDED}. Source and target stay open, and
+     * {@link #resume()} continues from the point transcoder stopped at.
+     * @return true if transcoder can be suspended, false otherwise
+     */
+    public boolean requestSuspend() {
+        return false;
+    }
+
+    /**
+     * Create codecs and renderer again and continue after {@link #RESULT_SUSPENDED}. Must be called on the thread
+     * which runs the transcoder from now on.
+     */
+    public void resume() throws Exception {
+        throw new IllegalStateException(getClass().getSimpleName() + " can not be suspended");
+    }
+
+    public boolean isSuspended() {
+        return mSuspended;
+    }
+
+    /**
+     * Set meter which counts samples this transcoder writes to its target
+     * @param throughputMeter meter, null to stop counting
+     */
+    public void setThroughputMeter(@Nullable ThroughputMeter throughputMeter) {
+        mThroughputMeter = throughputMeter;
+    }
+
+    /**
+     * Set playback speed of target track, target timestamps are source timestamps divided by it. Must be set
+     * before {@link #start()}.
+     * @param speed speed factor, greater than 0, 1 for normal speed
+     */
+    public void setSpeed(float speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed should be greater than 0");
+        }
+        if (mDuration > 0) {
+            mDuration = (long) (mDuration * mSpeed / speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Set budget buffers allocated by this transcoder are charged to. Must be set before {@link #start()}.
+     * @param memoryBudget memory budget, null if memory is not accounted
+     */
+    public void setMemoryBudget(@Nullable MemoryBudget memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
     public int getSourceTrack() {
         return mSourceTrack;
     }
@@ -101,6 +182,14 @@ public abstract class TrackTranscoder {
         return mProgress;
     }
 
+    /**
+     * Get duration of selected part of the source track
+     * @return duration in microseconds, not positive if unknown
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
     @NonNull
     public String getEncoderName() {
         return mEncoder.getName();
@@ -116,6 +205,79 @@ public abstract class TrackTranscoder {
         return mTargetFormat;
     }
 
+    /**
+     * Write a sample to target track and count it
+     */
+    protected void writeSampleData(@NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info) {
+        mMediaMuxer.writeSampleData(mTargetTrack, buffer, info);
+        countSample(info.size);
+    }
+
+    /**
+     * Count a sample this transcoder produced, written or not
+     */
+    protected void countSample(int size) {
+        ThroughputMeter throughputMeter = mThroughputMeter;
+        if (throughputMeter != null && size > 0) {
+            throughputMeter.onSampleWritten(size, mIsVideoTrack);
+        }
+    }
+
+    /**
+     * Run a release step, logging its failure instead of throwing, so that a codec in error state does not
+     * keep the steps after it from freeing their resources
+     */
+    protected static void releaseQuietly(@NonNull String name, @NonNull Runnable release) {
+        try {
+            release.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to release " + name, e);
+        }
+    }
+
+    /**
+     * Seek selected source track to the sync sample at or before selection start, so that nothing before
+     * the GOP selection starts in is read. Must be called after the track is selected.
+     */
+    protected void seekToSelectionStart() {
+        if (mSourceMediaSelection.getStart() > 0) {
+            mMediaSource.seekTo(mSourceMediaSelection.getStart(), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+    }
+
+    /**
+     * Check if a source sample or frame is kept, i.e. it is within selection and not in a gap of the cut list
+     */
+    protected boolean isInSelection(long presentationTimeUs) {
+        if (mCutList != null) {
+            return mCutList.contains(presentationTimeUs);
+        }
+        return presentationTimeUs >= mSourceMediaSelection.getStart()
+                && presentationTimeUs < mSourceMediaSelection.getEnd();
+    }
+
+    /**
+     * Convert source time to target time, which starts at selection start, runs on continuously over
+     * gaps of the cut list and is scaled by speed
+     */
+    protected long toTargetTime(long presentationTimeUs) {
+        long selectedTimeUs = mCutList != null
+                ? mCutList.toTargetTime(presentationTimeUs)
+                : presentationTimeUs - mSourceMediaSelection.getStart();
+        return mSpeed == 1 ? selectedTimeUs : (long) (selectedTimeUs / mSpeed);
+    }
+
+    /**
+     * Convert target time back to source time
+     */
+    protected long toSourceTime(long presentationTimeUs) {
+        long selectedTimeUs = mSpeed == 1 ? presentationTimeUs : (long) (presentationTimeUs * (double) mSpeed);
+        if (mCutList != null) {
+            return mCutList.toSourceTime(selectedTimeUs);
+        }
+        return selectedTimeUs + mSourceMediaSelection.getStart();
+    }
+
     protected void advanceToNextTrack() {
         // done with this track, advance until track switches to let other track transcoders finish work
         while (mMediaSource.getSampleTrackIndex() == mSourceTrack) {
@@ -30,6 +30,44 @@ import com.jeffmony.videolibrary.render.Renderer;
 public class TrackTranscoderFactory {
     private static final String TAG = TrackTranscoderFactory.class.getSimpleName();
 
+    @NonNull private final PassthroughEvaluator mPassthroughEvaluator;
+
+    public TrackTranscoderFactory() {
+        this(new PassthroughEvaluator());
+    }
+
+    /**
+     * Create a factory
+     * @param passthroughEvaluator evaluator deciding which tracks are compatible enough to be written as is
+     */
+    public TrackTranscoderFactory(@NonNull PassthroughEvaluator passthroughEvaluator) {
+        mPassthroughEvaluator = passthroughEvaluator;
+    }
+
+    /**
+     * Check if a track should be written as is: no target format is given, or source already matches it
+     * and options allow passing compatible tracks through. Frame rate of options is written to target format
+     * first, so that it is checked and later transcoded with.
+     *
+     * @param sourceTrack  source track id
+     * @param mediaSource  {@link MediaSource} to read the track from
+     * @param renderer     renderer the track would be transcoded with, null if none
+     * @param targetFormat {@link MediaFormat} with target track parameters, null if writing "as is"
+     * @param options      {@link TrackTranscoderOptions} with optional transcoder behaviour
+     * @return true if track should be written with a {@link PassthroughTranscoder}
+     */
+    public boolean shouldPassThrough(int sourceTrack,
+                                     @NonNull MediaSource mediaSource,
+                                     @Nullable Renderer renderer,
+                                     @Nullable MediaFormat targetFormat,
+                                     @NonNull TrackTranscoderOptions options) {
+        applyFrameRate(targetFormat, options);
+        return targetFormat == null
+                || (options.isPassthroughIfCompatible()
+                        && options.getSpeed() == 1
+                        && mPassthroughEvaluator.canPassThrough(mediaSource, sourceTrack, renderer, targetFormat));
+    }
+
     /**
      * Create a proper transcoder for a given source track and target media format.
      *
@@ -48,7 +86,34 @@ public class TrackTranscoderFactory {
                                   @Nullable Encoder encoder,
                                   @NonNull MediaTarget mediaTarget,
                                   @Nullable MediaFormat targetFormat) throws Exception {
-        if (targetFormat == null) {
+        return create(sourceTrack, targetTrack, mediaSource, decoder, renderer, encoder, mediaTarget, targetFormat,
+                new TrackTranscoderOptions());
+    }
+
+    /**
+     * Create a proper transcoder for a given source track, target media format and transcoder options.
+     *
+     * @param sourceTrack  source track id
+     * @param mediaSource  {@link MediaExtractor} for reading data from the source
+     * @param mediaTarget  {@link MediaTarget} for writing data to the target
+     * @param targetFormat {@link MediaFormat} with target video track parameters, null if writing "as is"
+     * @param options      {@link TrackTranscoderOptions} with optional transcoder behaviour
+     * @return implementation of {@link TrackTranscoder} for a given track
+     */
+    @NonNull
+    public TrackTranscoder create(int sourceTrack,
+                                  int targetTrack,
+                                  @NonNull MediaSource mediaSource,
+                                  @Nullable Decoder decoder,
+                                  @Nullable Renderer renderer,
+                                  @Nullable Encoder encoder,
+                                  @NonNull MediaTarget mediaTarget,
+                                  @Nullable MediaFormat targetFormat,
+                                  @NonNull TrackTranscoderOptions options) throws Exception {
+        if (shouldPassThrough(sourceTrack, mediaSource, renderer, targetFormat, options)) {
+            if (targetFormat != null) {
+                Log.i(TAG, "Source track " + sourceTrack + " already matches " + targetFormat + ", will use passthrough transcoder");
+            }
             return new PassthroughTranscoder(mediaSource, sourceTrack, mediaTarget, targetTrack);
         }
 
@@ -69,6 +134,17 @@ public class TrackTranscoderFactory {
             if (renderer == null) {
                 throw new Exception("Error.DECODER_NOT_PROVIDED");
             }
+            if (options.isPipelined()) {
+                return new PipelinedVideoTrackTranscoder(mediaSource,
+                                                         sourceTrack,
+                                                         mediaTarget,
+                                                         targetTrack,
+                                                         targetFormat,
+                                                         renderer,
+                                                         decoder,
+                                                         encoder,
+                                                         options.getPipelineQueueSize());
+            }
             return new VideoTrackTranscoder(mediaSource,
                                             sourceTrack,
                                             mediaTarget,
@@ -95,4 +171,88 @@ public class TrackTranscoderFactory {
             return new PassthroughTranscoder(mediaSource, sourceTrack, mediaTarget, targetTrack);
         }
     }
+
+    /**
+     * Create a transcoder which only decodes a source track and hands decoded frames to an analyzer
+     *
+     * @param sourceTrack  source track id
+     * @param mediaSource  {@link MediaSource} to read the track from
+     * @param decoder      decoder of the track
+     * @param analyzer     {@link FrameAnalyzer} receiving decoded frames
+     * @return transcoder which writes nothing
+     */
+    @NonNull
+    public TrackTranscoder createAnalyzer(int sourceTrack,
+                                          @NonNull MediaSource mediaSource,
+                                          @Nullable Decoder decoder,
+                                          @NonNull FrameAnalyzer analyzer) throws Exception {
+        if (decoder == null) {
+            throw new Exception("Error.DECODER_NOT_PROVIDED");
+        }
+        return new AnalysisTranscoder(mediaSource, sourceTrack, decoder, analyzer);
+    }
+
+    /**
+     * Create a transcoder which shares decode pass of another transcoder of the same source track: it gets
+     * decoded frames from that transcoder and only renders and encodes them.
+     *
+     * @param leader       video or audio transcoder which decodes the source track
+     * @param mediaSource  {@link MediaSource} with selection of this output, it is not read from
+     * @param mediaTarget  {@link MediaTarget} for writing data to the target
+     * @param targetFormat {@link MediaFormat} with target track parameters
+     * @param options      {@link TrackTranscoderOptions} of this output, only its frame rate is used
+     * @return implementation of {@link TrackTranscoder} for a given track
+     */
+    @NonNull
+    public TrackTranscoder createFollower(@NonNull TrackTranscoder leader,
+                                          int targetTrack,
+                                          @NonNull MediaSource mediaSource,
+                                          @Nullable Renderer renderer,
+                                          @NonNull Encoder encoder,
+                                          @NonNull MediaTarget mediaTarget,
+                                          @NonNull MediaFormat targetFormat,
+                                          @NonNull TrackTranscoderOptions options) throws Exception {
+        applyFrameRate(targetFormat, options);
+        if (leader instanceof VideoTrackTranscoder) {
+            if (renderer == null) {
+                throw new Exception("Error.RENDERER_NOT_PROVIDED");
+            }
+            return new VideoTrackTranscoder(mediaSource,
+                                            leader.getSourceTrack(),
+                                            mediaTarget,
+                                            targetTrack,
+                                            targetFormat,
+                                            renderer,
+                                            leader.mDecoder,
+                                            encoder,
+                                            (VideoTrackTranscoder) leader);
+        } else if (leader instanceof AudioTrackTranscoder) {
+            Renderer audioRenderer = renderer == null
+                    ? new PassthroughSoftwareRenderer(encoder)
+                    : renderer;
+            return new AudioTrackTranscoder(mediaSource,
+                                            leader.getSourceTrack(),
+                                            mediaTarget,
+                                            targetTrack,
+                                            targetFormat,
+                                            audioRenderer,
+                                            leader.mDecoder,
+                                            encoder,
+                                            (AudioTrackTranscoder) leader);
+        }
+        throw new IllegalArgumentException(leader.getClass().getSimpleName() + " can not share its decoder");
+    }
+
+    /**
+     * Write frame rate of options to a video target format, video transcoder then drops frames down to it
+     */
+    private static void applyFrameRate(@Nullable MediaFormat targetFormat, @NonNull TrackTranscoderOptions options) {
+        if (targetFormat == null || options.getFrameRate() <= 0) {
+            return;
+        }
+        String mimeType = targetFormat.getString(MediaFormat.KEY_MIME);
+        if (mimeType != null && mimeType.startsWith("video")) {
+            targetFormat.setInteger(MediaFormat.KEY_FRAME_RATE, options.getFrameRate());
+        }
+    }
 }
@@ -0,0 +1,119 @@
+package com.jeffmony.videolibrary.transcoder;
+
+import androidx.annotation.NonNull;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Optional behaviour of a track transcoder. Defaults match a plain single threaded transcode.
+ */
+public class TrackTranscoderOptions {
+
+    public static final int DEFAULT_PIPELINE_QUEUE_SIZE = 8;
+
+    private boolean mPipelined;
+    private int mPipelineQueueSize = DEFAULT_PIPELINE_QUEUE_SIZE;
+    private boolean mPassthroughIfCompatible = true;
+    private float mSpeed = 1;
+    private int mFrameRate;
+
+    public TrackTranscoderOptions() {
+    }
+
+    /**
+     * Create a copy of other options
+     */
+    public TrackTranscoderOptions(@NonNull TrackTranscoderOptions options) {
+        mPipelined = options.mPipelined;
+        mPipelineQueueSize = options.mPipelineQueueSize;
+        mPassthroughIfCompatible = options.mPassthroughIfCompatible;
+        mSpeed = options.mSpeed;
+        mFrameRate = options.mFrameRate;
+    }
+
+    /**
+     * Run extraction, decode/render and encode/mux stages of a video track on separate threads.
+     * Extraction happens off the job thread, a media source shared with other tracks is read through
+     * a {@link com.jeffmony.videolibrary.io.MediaSampleDispatcher}.
+     * @param pipelined true to enable pipelining, false otherwise
+     */
+    public TrackTranscoderOptions setPipelined(boolean pipelined) {
+        mPipelined = pipelined;
+        return this;
+    }
+
+    public boolean isPipelined() {
+        return mPipelined;
+    }
+
+    /**
+     * Set how many extracted samples may wait between extraction and decode stages of a pipelined track.
+     * @param queueSize number of samples, greater than 0
+     */
+    public TrackTranscoderOptions setPipelineQueueSize(int queueSize) {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("Queue size should be greater than 0");
+        }
+        mPipelineQueueSize = queueSize;
+        return this;
+    }
+
+    public int getPipelineQueueSize() {
+        return mPipelineQueueSize;
+    }
+
+    /**
+     * Write track as is when source already matches target format and there is nothing to render, see
+     * {@link PassthroughEvaluator}. On by default.
+     * @param passthroughIfCompatible true to pass compatible tracks through, false to always transcode
+     */
+    public TrackTranscoderOptions setPassthroughIfCompatible(boolean passthroughIfCompatible) {
+        mPassthroughIfCompatible = passthroughIfCompatible;
+        return this;
+    }
+
+    public boolean isPassthroughIfCompatible() {
+        return mPassthroughIfCompatible;
+    }
+
+    /**
+     * Set playback speed of a video track, e.g. 10 for a timelapse. Target keeps its frame rate, so only
+     * every speed-th frame is shown, and frames nobody shows are dropped before decoding when they are not
+     * referenced, or when speed is so high that sync samples alone fill the target frame rate.
+     * Audio tracks can not change speed.
+     * @param speed speed factor, greater than 0, 1 for normal speed
+     */
+    public TrackTranscoderOptions setSpeed(float speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed should be greater than 0");
+        }
+        mSpeed = speed;
+        return this;
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Set frame rate of a video track. Frames are picked on a fixed grid of target frame times, all other
+     * decoded frames are released without being rendered or encoded. Frame rate is only lowered: a target
+     * frame rate above source frame rate keeps source frame rate.
+     * @param frameRate frames per second, greater than 0, or 0 to keep the frame rate of target format
+     */
+    public TrackTranscoderOptions setFrameRate(int frameRate) {
+        if (frameRate < 0) {
+            throw new IllegalArgumentException("Frame rate should not be negative");
+        }
+        mFrameRate = frameRate;
+        return this;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+}
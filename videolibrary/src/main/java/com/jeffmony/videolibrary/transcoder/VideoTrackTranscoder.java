@@ -8,10 +8,13 @@
 package com.jeffmony.videolibrary.transcoder;
 
 import android.media.MediaCodec;
+import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.VisibleForTesting;
 
@@ -22,7 +25,12 @@ import com.jeffmony.videolibrary.io.MediaSource;
 import com.jeffmony.videolibrary.io.MediaTarget;
 import com.jeffmony.videolibrary.render.GlVideoRenderer;
 import com.jeffmony.videolibrary.render.Renderer;
+import com.jeffmony.videolibrary.utils.NalUnitUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -33,11 +41,31 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Transcoder that processes video tracks.
+ * <p>
+ * Several outputs of the same source track can share one decode pass: a leader extracts and decodes for
+ * itself and its followers and draws every decoded frame once for each output which selected it, a follower
+ * has no decoder of its own and only encodes what its leader draws.
+ * <p>
+ * A codec which fails mid stream is replaced with the next ranked codec for the same format. Source is sought
+ * back to the sync sample before the last frame written to target and decoded again, frames which were
+ * already written are dropped, so target continues where the failed codec left it. If the replacement encoder
+ * has different parameter sets than the one target track was added with, they are sent in band with every
+ * key frame. Only failures of a codec call replace that codec, failures of source, renderer or target fail
+ * the job.
  */
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public class VideoTrackTranscoder extends TrackTranscoder {
     private static final String TAG = VideoTrackTranscoder.class.getSimpleName();
 
+    private static final int MAX_CODEC_FALLBACKS = 2;
+    private static final String[] CODEC_CONFIG_KEYS = {"csd-0", "csd-1", "csd-2"};
+    private static final int DEFAULT_FRAME_RATE = 30;
+
+    // codec a failure can be blamed on, none while source, renderer or target are called
+    private static final int CODEC_NONE = 0;
+    private static final int CODEC_DECODER = 1;
+    private static final int CODEC_ENCODER = 2;
+
     @VisibleForTesting int lastExtractFrameResult;
     @VisibleForTesting int lastDecodeFrameResult;
     @VisibleForTesting int lastEncodeFrameResult;
@@ -46,7 +74,36 @@ public class VideoTrackTranscoder extends TrackTranscoder {
     GlVideoRenderer renderer;
 
     @NonNull private MediaFormat sourceVideoFormat;
+    // source track mime type, source format is replaced by decoder output format later
+    @Nullable private final String sourceMimeType;
     @NonNull private MediaFormat targetVideoFormat;
+    // format encoder is configured with, target format is replaced by encoder output format later
+    @NonNull private final MediaFormat encoderFormat;
+
+    private boolean suspending;
+    // encoder input is closed, either at the end of selection or at the end of stream
+    private boolean inputEnded;
+
+    @Nullable private final VideoTrackTranscoder leader;
+    @NonNull private final List<VideoTrackTranscoder> followers = new ArrayList<>();
+
+    // codec fallback state: which codec was called last, how far target got and where decoding resumes after it
+    private int codecInUse = CODEC_NONE;
+    private int codecFallbackCount;
+    private long lastWrittenPresentationTimeUs = Long.MIN_VALUE;
+    private long resumeAfterUs = Long.MIN_VALUE;
+    @Nullable private byte[] inBandCodecConfig;
+    @Nullable private ByteBuffer inBandSample;
+    @NonNull private final MediaCodec.BufferInfo inBandSampleInfo = new MediaCodec.BufferInfo();
+
+    // frame dropping state: source and target frame intervals, sync sample spacing seen so far, and decoder
+    // input frame kept for the next sample after the one read into it was dropped
+    private long sourceFrameIntervalUs;
+    private long frameIntervalUs;
+    private long lastSyncSampleTimeUs = Long.MIN_VALUE;
+    private volatile long syncSampleIntervalUs;
+    private int maxTemporalId;
+    private int heldInputTag = -1;
 
     VideoTrackTranscoder(@NonNull MediaSource mediaSource,
                          int sourceTrack,
@@ -56,73 +113,183 @@ public class VideoTrackTranscoder extends TrackTranscoder {
                          @NonNull Renderer renderer,
                          @NonNull Decoder decoder,
                          @NonNull Encoder encoder) throws Exception {
+        this(mediaSource, sourceTrack, mediaTarget, targetTrack, targetFormat, renderer, decoder, encoder, null);
+    }
+
+    /**
+     * Create a transcoder, or a follower of a transcoder which decodes the same source track
+     * @param leader transcoder to get decoded frames from, null to decode on its own
+     */
+    VideoTrackTranscoder(@NonNull MediaSource mediaSource,
+                         int sourceTrack,
+                         @NonNull MediaTarget mediaTarget,
+                         int targetTrack,
+                         @NonNull MediaFormat targetFormat,
+                         @NonNull Renderer renderer,
+                         @NonNull Decoder decoder,
+                         @NonNull Encoder encoder,
+                         @Nullable VideoTrackTranscoder leader) throws Exception {
         super(mediaSource, sourceTrack, mediaTarget, targetTrack, targetFormat, renderer, decoder, encoder);
 
-        lastExtractFrameResult = RESULT_FRAME_PROCESSED;
-        lastDecodeFrameResult = RESULT_FRAME_PROCESSED;
+        this.leader = leader;
+        if (leader != null) {
+            // leader extracts and decodes for its followers
+            lastExtractFrameResult = RESULT_EOS_REACHED;
+            lastDecodeFrameResult = RESULT_EOS_REACHED;
+            leader.followers.add(this);
+        } else {
+            lastExtractFrameResult = RESULT_FRAME_PROCESSED;
+            lastDecodeFrameResult = RESULT_FRAME_PROCESSED;
+        }
         lastEncodeFrameResult = RESULT_FRAME_PROCESSED;
 
         targetVideoFormat = targetFormat;
+        encoderFormat = targetFormat;
 
         if (!(renderer instanceof GlVideoRenderer)) {
             throw new IllegalArgumentException("Cannot use non-OpenGL video renderer in " + VideoTrackTranscoder.class.getSimpleName());
         }
         this.renderer = (GlVideoRenderer) renderer;
+        sourceMimeType = mMediaSource.getTrackFormat(mSourceTrack).getString(MediaFormat.KEY_MIME);
 
         initCodecs();
     }
 
     private void initCodecs() throws Exception {
         sourceVideoFormat = mMediaSource.getTrackFormat(mSourceTrack);
-        if (sourceVideoFormat.containsKey(MediaFormat.KEY_FRAME_RATE)) {
-            int sourceFrameRate = sourceVideoFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
-            targetVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, sourceFrameRate);
+        float sourceFrameRate = sourceVideoFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                ? getFrameRate(sourceVideoFormat)
+                : DEFAULT_FRAME_RATE;
+        // target frame rate may only lower source frame rate, frames are dropped but never repeated
+        float frameRate = encoderFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                ? Math.min(getFrameRate(encoderFormat), sourceFrameRate)
+                : sourceFrameRate;
+        if (frameRate < sourceFrameRate || sourceVideoFormat.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            encoderFormat.setInteger(MediaFormat.KEY_FRAME_RATE, Math.max(1, Math.round(frameRate)));
         }
-
-        mEncoder.init(mTargetFormat);
-        renderer.init(mEncoder.createInputSurface(), sourceVideoFormat, targetVideoFormat);
+        sourceFrameIntervalUs = (long) (TimeUnit.SECONDS.toMicros(1) / Math.max(1, sourceFrameRate));
+        frameIntervalUs = (long) (TimeUnit.SECONDS.toMicros(1) / Math.max(1, frameRate));
+
+        mEncoder.init(encoderFormat);
+        if (leader != null) {
+            renderer.setInputRenderer(leader.renderer);
+            renderer.init(mEncoder.createInputSurface(), sourceVideoFormat, encoderFormat);
+            return;
+        }
+        renderer.init(mEncoder.createInputSurface(), sourceVideoFormat, encoderFormat);
         mDecoder.init(sourceVideoFormat, renderer.getInputSurface());
     }
 
     @Override
     public void start() throws Exception {
+        if (leader != null) {
+            mEncoder.start();
+            return;
+        }
         mMediaSource.selectTrack(mSourceTrack);
+        seekToSelectionStart();
         mEncoder.start();
         mDecoder.start();
     }
 
     @Override
     public void stop() {
-        mEncoder.stop();
-        mEncoder.release();
+        if (mSuspended) {
+            // codecs and renderer are already released
+            return;
+        }
+        releaseCodecs();
+    }
+
+    /**
+     * Suspend at next sync sample of the source, so that decoding can restart there without seeking.
+     * Decoder and encoder get end of stream and are drained, so everything before that sample is written.
+     */
+    @Override
+    public boolean requestSuspend() {
+        if (leader != null || !followers.isEmpty()) {
+            // outputs sharing a decode pass would have to stop at the same sync sample
+            return false;
+        }
+        if (lastExtractFrameResult != RESULT_EOS_REACHED) {
+            mSuspendRequested = true;
+        }
+        return true;
+    }
+
+    @Override
+    public void resume() throws Exception {
+        if (!mSuspended) {
+            return;
+        }
+        initCodecs();
+        mEncoder.start();
+        mDecoder.start();
+
+        lastExtractFrameResult = RESULT_FRAME_PROCESSED;
+        lastDecodeFrameResult = RESULT_FRAME_PROCESSED;
+        lastEncodeFrameResult = RESULT_FRAME_PROCESSED;
+        inputEnded = false;
+        mSuspended = false;
+        Log.d(TAG, "Resumed at " + mMediaSource.getSampleTime());
+    }
 
-        mDecoder.stop();
-        mDecoder.release();
+    private void releaseCodecs() {
+        heldInputTag = -1;
+        // tear down in data flow order: decoder renders into renderer input surface, renderer draws into
+        // encoder input surface, so nothing is left writing into a surface which is gone. Decoder of a follower
+        // belongs to its leader
+        if (leader == null) {
+            releaseQuietly("decoder", mDecoder::stop);
+            releaseQuietly("decoder", mDecoder::release);
+        }
 
-        renderer.release();
+        releaseQuietly("renderer", renderer::release);
+
+        releaseQuietly("encoder", mEncoder::stop);
+        releaseQuietly("encoder", mEncoder::release);
     }
 
     @Override
     public int processNextFrame() throws Exception {
-        if (!mEncoder.isRunning() || !mDecoder.isRunning()) {
+        if (mSuspended) {
+            return RESULT_SUSPENDED;
+        }
+        if (!mEncoder.isRunning() || (leader == null && !mDecoder.isRunning())) {
             // can't do any work
             return ERROR_TRANSCODER_NOT_RUNNING;
         }
+        try {
+            return processStages();
+        } catch (IllegalStateException e) {
+            // codecs report failures, CodecException included, as IllegalStateException
+            if (!fallBackToNextCodec(e)) {
+                throw e;
+            }
+            return RESULT_FRAME_PROCESSED;
+        }
+    }
+
+    private int processStages() throws Exception {
         int result = RESULT_FRAME_PROCESSED;
+        boolean progressed = false;
 
         // extract the frame from the incoming stream and send it to the decoder
         if (lastExtractFrameResult != RESULT_EOS_REACHED) {
             lastExtractFrameResult = extractAndEnqueueInputFrame();
+            progressed |= lastExtractFrameResult != RESULT_TRY_AGAIN_LATER;
         }
 
         // receive the decoded frame and send it to the encoder by rendering it on encoder's input surface
         if (lastDecodeFrameResult != RESULT_EOS_REACHED) {
             lastDecodeFrameResult = resizeDecodedInputFrame();
+            progressed |= lastDecodeFrameResult != RESULT_TRY_AGAIN_LATER;
         }
 
         // get the encoded frame and write it into the target file
         if (lastEncodeFrameResult != RESULT_EOS_REACHED) {
-            lastEncodeFrameResult = writeEncodedOutputFrame();
+            lastEncodeFrameResult = writeEncodedOutputFrame(0);
+            progressed |= lastEncodeFrameResult != RESULT_TRY_AGAIN_LATER;
         }
 
         if (lastEncodeFrameResult == RESULT_OUTPUT_MEDIA_FORMAT_CHANGED) {
@@ -133,39 +300,117 @@ public class VideoTrackTranscoder extends TrackTranscoder {
             && lastDecodeFrameResult == RESULT_EOS_REACHED
             && lastEncodeFrameResult == RESULT_EOS_REACHED) {
             result = RESULT_EOS_REACHED;
+            if (suspending) {
+                // drained up to the sync sample source is left at
+                releaseCodecs();
+                suspending = false;
+                mSuspendRequested = false;
+                mSuspended = true;
+                result = RESULT_SUSPENDED;
+                Log.d(TAG, "Suspended at " + mMediaSource.getSampleTime());
+            }
+        } else if (!progressed) {
+            // every running stage is waiting on a codec buffer
+            result = RESULT_TRY_AGAIN_LATER;
         }
 
         return result;
     }
 
+    /**
+     * Replace the codec which failed with the next ranked one and decode again from the sync sample before
+     * the last frame written to target
+     * @return true if transcoding continues with a new codec, false if error should fail the job
+     */
+    private boolean fallBackToNextCodec(@NonNull IllegalStateException error) throws Exception {
+        if (leader != null || !followers.isEmpty() || suspending || mSuspendRequested
+                || codecFallbackCount >= MAX_CODEC_FALLBACKS) {
+            return false;
+        }
+        if (codecInUse == CODEC_NONE) {
+            // failure did not come from a codec call, replacing a healthy codec would not help
+            return false;
+        }
+        boolean encoderFailed = codecInUse == CODEC_ENCODER;
+        boolean excluded = encoderFailed ? mEncoder.excludeCurrentCodec() : mDecoder.excludeCurrentCodec();
+        if (!excluded) {
+            return false;
+        }
+        long resumePositionUs = lastWrittenPresentationTimeUs != Long.MIN_VALUE
+                ? toSourceTime(lastWrittenPresentationTimeUs)
+                : mSourceMediaSelection.getStart();
+        try {
+            mMediaSource.seekTo(resumePositionUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Source can not seek back, failed codec can not be replaced", e);
+            return false;
+        }
+        String failedCodec = encoderFailed ? mEncoder.getName() : mDecoder.getName();
+        Log.w(TAG, "Codec " + failedCodec + " failed, resuming after " + resumePositionUs + " with the next one", error);
+
+        codecInUse = CODEC_NONE;
+        releaseCodecs();
+        initCodecs();
+        mEncoder.start();
+        mDecoder.start();
+
+        resumeAfterUs = lastWrittenPresentationTimeUs != Long.MIN_VALUE ? resumePositionUs : Long.MIN_VALUE;
+        lastExtractFrameResult = RESULT_FRAME_PROCESSED;
+        lastDecodeFrameResult = RESULT_FRAME_PROCESSED;
+        lastEncodeFrameResult = RESULT_FRAME_PROCESSED;
+        inputEnded = false;
+        codecFallbackCount++;
+        return true;
+    }
+
     private int extractAndEnqueueInputFrame() throws Exception {
         int extractFrameResult = RESULT_FRAME_PROCESSED;
 
         int selectedTrack = mMediaSource.getSampleTrackIndex();
         if (selectedTrack == mSourceTrack || selectedTrack == NO_SELECTED_TRACK) {
-            int tag = mDecoder.dequeueInputFrame(0);
+            codecInUse = CODEC_DECODER;
+            int tag = heldInputTag >= 0 ? heldInputTag : mDecoder.dequeueInputFrame(0);
+            heldInputTag = -1;
             if (tag >= 0) {
                 Frame frame = mDecoder.getInputFrame(tag);
                 if (frame == null) {
                     throw new Exception("NO_FRAME_AVAILABLE");
                 }
+                codecInUse = CODEC_NONE;
                 int bytesRead = mMediaSource.readSampleData(frame.mBuffer, 0);
                 long sampleTime = mMediaSource.getSampleTime();
                 int sampleFlags = mMediaSource.getSampleFlags();
                 if (bytesRead <= 0 || (sampleFlags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     frame.mBufferInfo.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    codecInUse = CODEC_DECODER;
                     mDecoder.queueInputFrame(frame);
                     extractFrameResult = RESULT_EOS_REACHED;
                     Log.d(TAG, "EoS reached on the input stream");
-                } else if (sampleTime >= mSourceMediaSelection.getEnd()) {
+                } else if (sampleTime >= getDecodeEnd()) {
                     frame.mBufferInfo.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    codecInUse = CODEC_DECODER;
                     mDecoder.queueInputFrame(frame);
+                    codecInUse = CODEC_NONE;
                     advanceToNextTrack();
                     extractFrameResult = RESULT_EOS_REACHED;
                     Log.d(TAG, "EoS reached on the input stream");
+                } else if (mSuspendRequested && (sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                    // leave the sync sample in the source, it is the first one fed after resume
+                    frame.mBufferInfo.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    codecInUse = CODEC_DECODER;
+                    mDecoder.queueInputFrame(frame);
+                    suspending = true;
+                    extractFrameResult = RESULT_EOS_REACHED;
+                    Log.d(TAG, "Suspending at sync sample " + sampleTime);
+                } else if (isDroppedBeforeDecoding(sampleTime, sampleFlags, frame.mBuffer, bytesRead)) {
+                    // decoder input frame is kept for the next sample
+                    heldInputTag = tag;
+                    mMediaSource.advance();
                 } else {
                     frame.mBufferInfo.set(0, bytesRead, sampleTime, sampleFlags);
+                    codecInUse = CODEC_DECODER;
                     mDecoder.queueInputFrame(frame);
+                    codecInUse = CODEC_NONE;
                     mMediaSource.advance();
                     //Log.d(TAG, "Sample time: " + sampleTime + ", source bytes read: " + bytesRead);
                 }
@@ -173,20 +418,25 @@ public class VideoTrackTranscoder extends TrackTranscoder {
                 switch (tag) {
                     case MediaCodec.INFO_TRY_AGAIN_LATER:
                         //Log.d(TAG, "Will try getting decoder input buffer later");
+                        extractFrameResult = RESULT_TRY_AGAIN_LATER;
                         break;
                     default:
                         Log.e(TAG, "Unhandled value " + tag + " when decoding an input frame");
                         break;
                 }
             }
+        } else {
+            // current sample belongs to another track
+            extractFrameResult = RESULT_TRY_AGAIN_LATER;
         }
 
         return extractFrameResult;
     }
 
-    private int resizeDecodedInputFrame() throws Exception {
+    int resizeDecodedInputFrame() throws Exception {
         int decodeFrameResult = RESULT_FRAME_PROCESSED;
 
+        codecInUse = CODEC_DECODER;
         int tag = mDecoder.dequeueOutputFrame(0);
         if (tag >= 0) {
             Frame frame = mDecoder.getOutputFrame(tag);
@@ -196,24 +446,58 @@ public class VideoTrackTranscoder extends TrackTranscoder {
             if ((frame.mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                 Log.d(TAG, "EoS on mDecoder output stream");
                 mDecoder.releaseOutputFrame(tag, false);
-                mEncoder.signalEndOfInputStream();
+                codecInUse = CODEC_NONE;
+                endInput();
+                for (VideoTrackTranscoder follower : followers) {
+                    follower.endInput();
+                }
                 decodeFrameResult = RESULT_EOS_REACHED;
             } else {
-                boolean isFrameAfterSelectionStart = frame.mBufferInfo.presentationTimeUs >= mSourceMediaSelection.getStart();
-                mDecoder.releaseOutputFrame(tag, isFrameAfterSelectionStart);
-                if (isFrameAfterSelectionStart) {
-                    renderer.renderFrame(null,
-                            TimeUnit.MICROSECONDS.toNanos(frame.mBufferInfo.presentationTimeUs - mSourceMediaSelection.getStart()));
+                long presentationTimeUs = frame.mBufferInfo.presentationTimeUs;
+                boolean isFrameSelected = isSelected(presentationTimeUs);
+                boolean isFrameSelectedByFollower = false;
+                for (VideoTrackTranscoder follower : followers) {
+                    isFrameSelectedByFollower |= follower.isSelected(presentationTimeUs);
+                }
+                mDecoder.releaseOutputFrame(tag, isFrameSelected || isFrameSelectedByFollower);
+                // renderer draws into encoder input surface, its failures are not blamed on either codec
+                codecInUse = CODEC_NONE;
+                if (isFrameSelected || isFrameSelectedByFollower) {
+                    // latch once, draw for every output which wants the frame
+                    renderer.awaitInputFrame();
+                    if (isFrameSelected) {
+                        renderer.drawInputFrame(getPresentationTimeNs(presentationTimeUs));
+                    }
+                    for (VideoTrackTranscoder follower : followers) {
+                        if (follower.isSelected(presentationTimeUs)) {
+                            follower.renderer.drawInputFrame(follower.getPresentationTimeNs(presentationTimeUs));
+                        }
+                    }
+                }
+                // decoder outputs frames in presentation order, outputs past their selection are done
+                if (presentationTimeUs >= mSourceMediaSelection.getEnd()) {
+                    endInput();
+                }
+                for (VideoTrackTranscoder follower : followers) {
+                    if (presentationTimeUs >= follower.mSourceMediaSelection.getEnd()) {
+                        follower.endInput();
+                    }
                 }
             }
         } else {
             switch (tag) {
                 case MediaCodec.INFO_TRY_AGAIN_LATER:
                     // Log.d(TAG, "Will try getting decoder output later");
+                    decodeFrameResult = RESULT_TRY_AGAIN_LATER;
                     break;
                 case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
                     sourceVideoFormat = mDecoder.getOutputFormat();
+                    codecInUse = CODEC_NONE;
                     renderer.onMediaFormatChanged(sourceVideoFormat, targetVideoFormat);
+                    for (VideoTrackTranscoder follower : followers) {
+                        follower.sourceVideoFormat = sourceVideoFormat;
+                        follower.renderer.onMediaFormatChanged(sourceVideoFormat, follower.targetVideoFormat);
+                    }
                     Log.d(TAG, "Decoder output format changed: " + sourceVideoFormat);
                     break;
                 default:
@@ -225,10 +509,114 @@ public class VideoTrackTranscoder extends TrackTranscoder {
         return decodeFrameResult;
     }
 
-    private int writeEncodedOutputFrame() throws Exception {
+    /**
+     * Get time extraction stops at, end of the latest selection among this transcoder and its followers
+     */
+    private long getDecodeEnd() {
+        long decodeEnd = mSourceMediaSelection.getEnd();
+        for (VideoTrackTranscoder follower : followers) {
+            decodeEnd = Math.max(decodeEnd, follower.mSourceMediaSelection.getEnd());
+        }
+        return decodeEnd;
+    }
+
+    private boolean isSelected(long presentationTimeUs) {
+        return !inputEnded
+                && presentationTimeUs > resumeAfterUs
+                && isShown(presentationTimeUs);
+    }
+
+    /**
+     * Check if a frame is shown, regardless of where encoding currently is. Reads only state which is set
+     * before transcoder starts or by extraction itself, so extraction may call it from its own thread.
+     */
+    private boolean isShown(long presentationTimeUs) {
+        return isInSelection(presentationTimeUs) && isOnFrameGrid(presentationTimeUs);
+    }
+
+    /**
+     * Check if a frame is shown at target frame rate. When source frames, scaled by speed, come more often than
+     * target frames, a frame is shown if it is the first one within its target frame interval, assuming source
+     * frames are evenly spaced. Frames which are not shown are released unrendered. Once only sync samples are
+     * decoded, every decoded frame is shown.
+     */
+    private boolean isOnFrameGrid(long presentationTimeUs) {
+        if (!isDroppingFrames() || isDecodingSyncSamplesOnly()) {
+            return true;
+        }
+        long targetTimeUs = toTargetTime(presentationTimeUs);
+        return targetTimeUs % frameIntervalUs < sourceFrameIntervalUs / mSpeed;
+    }
+
+    /**
+     * Check if source frames, scaled by speed, are closer to each other than target frames
+     */
+    private boolean isDroppingFrames() {
+        return sourceFrameIntervalUs / mSpeed < frameIntervalUs;
+    }
+
+    /**
+     * Check if sync samples alone, scaled by speed, are at least a target frame interval apart
+     */
+    private boolean isDecodingSyncSamplesOnly() {
+        return isDroppingFrames() && syncSampleIntervalUs > 0 && syncSampleIntervalUs / mSpeed >= frameIntervalUs;
+    }
+
+    /**
+     * Decide if a sample can be skipped before decoding when frames are dropped: it is not shown and either
+     * only sync samples are decoded, or no other frame references it. Only reads and writes state owned by
+     * extraction, so pipelined transcoder may call it from its extraction thread.
+     * @param sample sample data, from position 0
+     * @param size sample size
+     */
+    boolean isDroppedBeforeDecoding(long sampleTime, int sampleFlags, @NonNull ByteBuffer sample, int size) {
+        if (!isDroppingFrames() || !followers.isEmpty()) {
+            // followers may show frames at another speed or frame rate
+            return false;
+        }
+        if ((sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+            if (lastSyncSampleTimeUs != Long.MIN_VALUE && sampleTime > lastSyncSampleTimeUs) {
+                syncSampleIntervalUs = sampleTime - lastSyncSampleTimeUs;
+            }
+            lastSyncSampleTimeUs = sampleTime;
+            return false;
+        }
+        if (isDecodingSyncSamplesOnly()) {
+            return true;
+        }
+        if (isShown(sampleTime) || sourceMimeType == null || !NalUnitUtils.isSupported(sourceMimeType)) {
+            return false;
+        }
+        if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(sourceMimeType)) {
+            // sub-layer non-reference pictures are only disposable in the highest sub-layer, wait for a whole
+            // GOP to know which one that is
+            int temporalId = NalUnitUtils.getHevcTemporalId(sample, size);
+            maxTemporalId = Math.max(maxTemporalId, temporalId);
+            if (syncSampleIntervalUs == 0 || temporalId < maxTemporalId) {
+                return false;
+            }
+        }
+        return NalUnitUtils.isNonReferenceFrame(sample, size, sourceMimeType);
+    }
+
+    private long getPresentationTimeNs(long presentationTimeUs) {
+        return TimeUnit.MICROSECONDS.toNanos(toTargetTime(presentationTimeUs));
+    }
+
+    private void endInput() {
+        if (!inputEnded) {
+            codecInUse = CODEC_ENCODER;
+            mEncoder.signalEndOfInputStream();
+            codecInUse = CODEC_NONE;
+            inputEnded = true;
+        }
+    }
+
+    int writeEncodedOutputFrame(long timeoutUs) throws Exception {
         int encodeFrameResult = RESULT_FRAME_PROCESSED;
 
-        int index = mEncoder.dequeueOutputFrame(0);
+        codecInUse = CODEC_ENCODER;
+        int index = mEncoder.dequeueOutputFrame(timeoutUs);
         if (index >= 0) {
             Frame frame = mEncoder.getOutputFrame(index);
             if (frame == null) {
@@ -237,30 +625,46 @@ public class VideoTrackTranscoder extends TrackTranscoder {
 
             if ((frame.mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                 Log.d(TAG, "Encoder produced EoS, we are done");
-                mProgress = 1.0f;
+                if (!suspending) {
+                    mProgress = 1.0f;
+                }
                 encodeFrameResult = RESULT_EOS_REACHED;
             } else if (frame.mBufferInfo.size > 0
                 && (frame.mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
-                mMediaMuxer.writeSampleData(mTargetTrack, frame.mBuffer, frame.mBufferInfo);
+                codecInUse = CODEC_NONE;
+                if (inBandCodecConfig != null && isKeyFrame(frame.mBufferInfo)) {
+                    writeSampleWithCodecConfig(frame.mBuffer, frame.mBufferInfo);
+                } else {
+                    writeSampleData(frame.mBuffer, frame.mBufferInfo);
+                }
+                lastWrittenPresentationTimeUs = Math.max(lastWrittenPresentationTimeUs, frame.mBufferInfo.presentationTimeUs);
                 if (mDuration > 0) {
                     mProgress = ((float) frame.mBufferInfo.presentationTimeUs) / mDuration;
                 }
             }
 
+            codecInUse = CODEC_ENCODER;
             mEncoder.releaseOutputFrame(index);
+            codecInUse = CODEC_NONE;
         } else {
             switch (index) {
                 case MediaCodec.INFO_TRY_AGAIN_LATER:
                     // Log.d(TAG, "Will try getting encoder output buffer later");
+                    encodeFrameResult = RESULT_TRY_AGAIN_LATER;
                     break;
                 case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
                     // TODO for now, we assume that we only get one media format as a first buffer
                     MediaFormat outputMediaFormat = mEncoder.getOutputFormat();
+                    codecInUse = CODEC_NONE;
                     if (!mTargetTrackAdded) {
                         targetVideoFormat = mTargetFormat = outputMediaFormat;
                         mTargetTrack = mMediaMuxer.addTrack(outputMediaFormat, mTargetTrack);
                         mTargetTrackAdded = true;
                         renderer.onMediaFormatChanged(sourceVideoFormat, targetVideoFormat);
+                    } else if (!hasSameCodecConfig(mTargetFormat, outputMediaFormat)) {
+                        // target track keeps parameter sets of the first encoder, a replacement sends its own in band
+                        inBandCodecConfig = getCodecConfig(outputMediaFormat);
+                        Log.d(TAG, "Replacement encoder has different codec config, sending it in band");
                     }
                     encodeFrameResult = RESULT_OUTPUT_MEDIA_FORMAT_CHANGED;
                     Log.d(TAG, "Encoder output format received " + outputMediaFormat);
@@ -273,4 +677,67 @@ public class VideoTrackTranscoder extends TrackTranscoder {
 
         return encodeFrameResult;
     }
+
+    private void writeSampleWithCodecConfig(@NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info) {
+        int size = inBandCodecConfig.length + info.size;
+        if (inBandSample == null || inBandSample.capacity() < size) {
+            inBandSample = ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.limit(info.offset + info.size);
+        data.position(info.offset);
+        inBandSample.clear();
+        inBandSample.put(inBandCodecConfig);
+        inBandSample.put(data);
+        inBandSample.flip();
+        inBandSampleInfo.set(0, size, info.presentationTimeUs, info.flags);
+        writeSampleData(inBandSample, inBandSampleInfo);
+    }
+
+    private static boolean isKeyFrame(@NonNull MediaCodec.BufferInfo info) {
+        int keyFrameFlag = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                ? MediaCodec.BUFFER_FLAG_KEY_FRAME
+                : MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+        return (info.flags & keyFrameFlag) != 0;
+    }
+
+    private static float getFrameRate(@NonNull MediaFormat format) {
+        // frame rate is an integer in most containers, a float in some
+        try {
+            return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            return format.getFloat(MediaFormat.KEY_FRAME_RATE);
+        }
+    }
+
+    private static boolean hasSameCodecConfig(@Nullable MediaFormat format, @NonNull MediaFormat otherFormat) {
+        if (format == null) {
+            return false;
+        }
+        for (String key : CODEC_CONFIG_KEYS) {
+            ByteBuffer config = format.containsKey(key) ? format.getByteBuffer(key) : null;
+            ByteBuffer otherConfig = otherFormat.containsKey(key) ? otherFormat.getByteBuffer(key) : null;
+            if (config == null ? otherConfig != null : !config.equals(otherConfig)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get parameter sets of a format, e.g. SPS and PPS, as one Annex B buffer
+     */
+    @NonNull
+    private static byte[] getCodecConfig(@NonNull MediaFormat format) {
+        ByteArrayOutputStream codecConfig = new ByteArrayOutputStream();
+        for (String key : CODEC_CONFIG_KEYS) {
+            if (format.containsKey(key)) {
+                ByteBuffer config = format.getByteBuffer(key).duplicate();
+                byte[] bytes = new byte[config.remaining()];
+                config.get(bytes);
+                codecConfig.write(bytes, 0, bytes.length);
+            }
+        }
+        return codecConfig.toByteArray();
+    }
 }
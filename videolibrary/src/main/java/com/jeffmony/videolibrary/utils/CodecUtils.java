@@ -5,6 +5,7 @@ import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Handler;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
@@ -12,6 +13,8 @@ import androidx.annotation.Nullable;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -28,12 +31,43 @@ public class CodecUtils {
     public static MediaCodec getAndConfigureCodec(@NonNull MediaFormat mediaFormat,
                                                   @Nullable Surface surface,
                                                   boolean isEncoder) throws Exception {
+        return getAndConfigureCodec(mediaFormat, surface, isEncoder, null, null);
+    }
+
+    /**
+     * Find, create and configure a codec. If callback is provided, codec is put in asynchronous mode
+     * before it is configured.
+     * @param callback optional {@link MediaCodec.Callback}
+     * @param callbackHandler handler to deliver callbacks on, requires API 23, ignored when callback is null
+     */
+    public static MediaCodec getAndConfigureCodec(@NonNull MediaFormat mediaFormat,
+                                                  @Nullable Surface surface,
+                                                  boolean isEncoder,
+                                                  @Nullable MediaCodec.Callback callback,
+                                                  @Nullable Handler callbackHandler) throws Exception {
+        return getAndConfigureCodec(mediaFormat, surface, isEncoder, callback, callbackHandler,
+                Collections.<String>emptySet());
+    }
+
+    /**
+     * Find, create and configure a codec, skipping codecs which failed before. Codecs are tried in the order
+     * platform ranks them, a codec which fails to be created or configured is skipped for the next one.
+     * @param excludedCodecNames names of codecs not to use, requires API 21, ignored before
+     */
+    public static MediaCodec getAndConfigureCodec(@NonNull MediaFormat mediaFormat,
+                                                  @Nullable Surface surface,
+                                                  boolean isEncoder,
+                                                  @Nullable MediaCodec.Callback callback,
+                                                  @Nullable Handler callbackHandler,
+                                                  @NonNull Collection<String> excludedCodecNames) throws Exception {
         MediaCodec mediaCodec = null;
         try {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                mediaCodec = getAndConfigureCodecByConfig(mediaFormat, surface, isEncoder);
+                mediaCodec = getAndConfigureCodecByConfig(mediaFormat, surface, isEncoder, callback, callbackHandler,
+                        excludedCodecNames);
             } else {
-                mediaCodec = getAndConfigureCodecByType(mediaFormat, surface, isEncoder);
+                mediaCodec = getAndConfigureCodecByType(mediaFormat, surface, isEncoder, callback, callbackHandler,
+                        excludedCodecNames);
             }
             if (mediaCodec == null) {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -46,7 +80,8 @@ public class CodecUtils {
         } catch (Exception e) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
                 try {
-                    mediaCodec = getAndConfigureCodecByType(mediaFormat, surface, isEncoder);
+                    mediaCodec = getAndConfigureCodecByType(mediaFormat, surface, isEncoder, callback, callbackHandler,
+                            excludedCodecNames);
                     if (mediaCodec == null) {
                         throw new IllegalStateException("MediaFormat=[" + mediaFormat.toString() +"] codec not found");
                     }
@@ -59,26 +94,78 @@ public class CodecUtils {
         }
     }
 
+    /**
+     * Get the number of codec instances that can run concurrently for a mime type and direction.
+     * Hardware codecs are preferred, software codecs are only counted when no hardware codec exists.
+     * @param mimeType mime type, e.g. video/avc
+     * @param isEncoder true for encoders, false for decoders
+     * @param defaultInstances value to return when the platform does not report a limit
+     * @return max number of concurrent instances, 0 if the mime type is not supported at all
+     */
+    public static int getMaxSupportedInstances(@NonNull String mimeType, boolean isEncoder, int defaultInstances) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return defaultInstances;
+        }
+        int hardwareInstances = 0;
+        int softwareInstances = 0;
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (info.isEncoder() != isEncoder) {
+                continue;
+            }
+            try {
+                MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(mimeType);
+                if (caps == null) {
+                    continue;
+                }
+                if (isSoftwareCodec(info)) {
+                    softwareInstances = Math.max(softwareInstances, caps.getMaxSupportedInstances());
+                } else {
+                    hardwareInstances = Math.max(hardwareInstances, caps.getMaxSupportedInstances());
+                }
+            } catch (Exception e) {
+                // codec does not support this mime type
+            }
+        }
+        return hardwareInstances > 0 ? hardwareInstances : softwareInstances;
+    }
+
+    private static boolean isSoftwareCodec(@NonNull MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isSoftwareOnly();
+        }
+        String name = info.getName();
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
+
     private static MediaCodec getAndConfigureCodecByConfig(@NonNull MediaFormat format,
                                                            @Nullable Surface surface,
-                                                           boolean isEncoder) throws Exception {
+                                                           boolean isEncoder,
+                                                           @Nullable MediaCodec.Callback callback,
+                                                           @Nullable Handler callbackHandler,
+                                                           @NonNull Collection<String> excludedCodecNames) throws Exception {
         MediaCodec codec = null;
         String mimeType = format.getString(MediaFormat.KEY_MIME);
-        List<Callable<MediaCodec>> supportedMediaCodecs = findCodecForFormatOrType(isEncoder, mimeType, null);
+        List<Callable<MediaCodec>> supportedMediaCodecs = findCodecForFormatOrType(isEncoder, mimeType, null,
+                excludedCodecNames);
         if (!supportedMediaCodecs.isEmpty()) {
-            codec = createAndConfigureCodec(format, surface, isEncoder, supportedMediaCodecs);
+            codec = createAndConfigureCodec(format, surface, isEncoder, callback, callbackHandler, supportedMediaCodecs);
         }
         return codec;
     }
 
     private static MediaCodec getAndConfigureCodecByType(@NonNull MediaFormat mediaFormat,
                                                          @Nullable Surface surface,
-                                                         boolean isEncoder) throws Exception {
+                                                         boolean isEncoder,
+                                                         @Nullable MediaCodec.Callback callback,
+                                                         @Nullable Handler callbackHandler,
+                                                         @NonNull Collection<String> excludedCodecNames) throws Exception {
         String mimeType = mediaFormat.getString(MediaFormat.KEY_MIME);
         MediaCodec mediaCodec = null;
-        List<Callable<MediaCodec>> supportedMediaCodecs = findCodecForFormatOrType(isEncoder, mimeType, null);
+        List<Callable<MediaCodec>> supportedMediaCodecs = findCodecForFormatOrType(isEncoder, mimeType, null,
+                excludedCodecNames);
         if (!supportedMediaCodecs.isEmpty()) {
-            mediaCodec = createAndConfigureCodec(mediaFormat, surface, isEncoder, supportedMediaCodecs);
+            mediaCodec = createAndConfigureCodec(mediaFormat, surface, isEncoder, callback, callbackHandler, supportedMediaCodecs);
         }
 
         return mediaCodec;
@@ -86,12 +173,13 @@ public class CodecUtils {
 
     private static List<Callable<MediaCodec>> findCodecForFormatOrType(boolean encoder,
                                                                        @NonNull String mimeType,
-                                                                       @Nullable MediaFormat format) {
+                                                                       @Nullable MediaFormat format,
+                                                                       @NonNull Collection<String> excludedCodecNames) {
         List<Callable<MediaCodec>> supportedMediaCodecs = new ArrayList<>();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             MediaCodecList codecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
             for (MediaCodecInfo info : codecList.getCodecInfos()) {
-                if (info.isEncoder() != encoder) {
+                if (info.isEncoder() != encoder || excludedCodecNames.contains(info.getName())) {
                     continue;
                 }
                 try {
@@ -110,26 +198,47 @@ public class CodecUtils {
     }
 
     private static MediaCodec createAndConfigureCodec(@NonNull MediaFormat format, @Nullable Surface surface, boolean isEncoder,
+                                                      @Nullable MediaCodec.Callback callback,
+                                                      @Nullable Handler callbackHandler,
                                                       @NonNull List<Callable<MediaCodec>> supportedMediaCodecs) throws Exception {
         MediaCodec codec = null;
+        Exception error = null;
         for (Callable<MediaCodec> callable : supportedMediaCodecs) {
             try {
                 codec = callable.call();
                 if (codec != null) {
+                    if (callback != null) {
+                        setCallback(codec, callback, callbackHandler);
+                    }
                     configureMediaFormat(codec, format, surface, isEncoder);
                     break;
                 }
             } catch (Exception e) {
+                // try the next ranked codec
+                LogUtils.w(TAG, "Failed to create codec for " + format + ", exception = " + e);
                 if (codec != null) {
                     codec.release();
                     codec = null;
                 }
-                throw e;
+                error = e;
             }
         }
+        if (codec == null && error != null) {
+            throw error;
+        }
         return codec;
     }
 
+    private static void setCallback(@NonNull MediaCodec mediaCodec,
+                                    @NonNull MediaCodec.Callback callback,
+                                    @Nullable Handler callbackHandler) {
+        if (callbackHandler != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mediaCodec.setCallback(callback, callbackHandler);
+        } else {
+            mediaCodec.setCallback(callback);
+        }
+    }
+
     private static void configureMediaFormat(@NonNull MediaCodec mediaCodec,
                                              @NonNull MediaFormat mediaFormat,
                                              @Nullable Surface surface,
@@ -0,0 +1,95 @@
+package com.jeffmony.videolibrary.utils;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Reads NAL unit headers of H.264 and H.265 samples in Annex B format, as {@link android.media.MediaExtractor}
+ * returns them.
+ */
+public class NalUnitUtils {
+
+    private static final int AVC_NAL_TYPE_SLICE = 1;
+    private static final int AVC_NAL_TYPE_IDR_SLICE = 5;
+    private static final int HEVC_NAL_TYPE_FIRST_NON_VCL = 32;
+    private static final int HEVC_NAL_TYPE_LAST_SUB_LAYER_NON_REFERENCE = 14;
+
+    /**
+     * Check if NAL unit headers of a mime type can be read
+     */
+    public static boolean isSupported(@NonNull String mimeType) {
+        return MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType) || MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType);
+    }
+
+    /**
+     * Check if no other frame references a frame, so it can be dropped before decoding. H.264 frames are
+     * checked by nal_ref_idc of their slices, H.265 frames by sub-layer non-reference slice types, which are
+     * only safe to drop when their TemporalId is the highest one in the stream, see {@link #getHevcTemporalId}.
+     * @param sample sample data, from position 0
+     * @param size sample size
+     * @param mimeType sample mime type, one of supported ones
+     * @return true if every slice of the frame is non-reference, false if any is or if sample has no slices
+     */
+    public static boolean isNonReferenceFrame(@NonNull ByteBuffer sample, int size, @NonNull String mimeType) {
+        boolean isHevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType);
+        boolean hasSlice = false;
+        int index = 0;
+        while (index + 3 < size) {
+            if (sample.get(index) != 0 || sample.get(index + 1) != 0 || sample.get(index + 2) != 1) {
+                index++;
+                continue;
+            }
+            int header = sample.get(index + 3) & 0xff;
+            if (isHevc) {
+                int type = (header >> 1) & 0x3f;
+                if (type < HEVC_NAL_TYPE_FIRST_NON_VCL) {
+                    // even types up to RSV_VCL_N14 are sub-layer non-reference pictures
+                    if (type > HEVC_NAL_TYPE_LAST_SUB_LAYER_NON_REFERENCE || type % 2 != 0) {
+                        return false;
+                    }
+                    hasSlice = true;
+                }
+            } else {
+                int type = header & 0x1f;
+                if (type >= AVC_NAL_TYPE_SLICE && type <= AVC_NAL_TYPE_IDR_SLICE) {
+                    if ((header & 0x60) != 0) {
+                        // nal_ref_idc is set, slice is a reference
+                        return false;
+                    }
+                    hasSlice = true;
+                }
+            }
+            index += 3;
+        }
+        return hasSlice;
+    }
+
+    /**
+     * Get TemporalId of the first H.265 slice of a sample
+     * @return TemporalId, -1 if sample has no slices
+     */
+    public static int getHevcTemporalId(@NonNull ByteBuffer sample, int size) {
+        int index = 0;
+        while (index + 4 < size) {
+            if (sample.get(index) != 0 || sample.get(index + 1) != 0 || sample.get(index + 2) != 1) {
+                index++;
+                continue;
+            }
+            int type = ((sample.get(index + 3) & 0xff) >> 1) & 0x3f;
+            if (type < HEVC_NAL_TYPE_FIRST_NON_VCL) {
+                return (sample.get(index + 4) & 0x07) - 1;
+            }
+            index += 3;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,141 @@
+package com.jeffmony.videolibrary;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Feeds {@link ConcurrencyController} with simulated time and throughput, given as frame rate for every job
+ * limit, and checks the limits it picks window by window
+ */
+public class ConcurrencyControllerTest {
+
+    private static final long WINDOW_MS = 1000;
+    private static final float THRESHOLD = 0.05f;
+    private static final int HOLD_WINDOWS = 3;
+    private static final int BYTES_PER_FRAME = 1000;
+
+    // frame rate by job limit, peaks at 4 jobs
+    private static final double[] PEAK_AT_FOUR = {0, 100, 180, 250, 300, 240, 200, 180, 160};
+    // frame rate by job limit, a fifth job adds nothing
+    private static final double[] FLAT_AFTER_FOUR = {0, 100, 180, 250, 300, 302, 302, 302, 302};
+
+    private long mNowMs;
+    private long mFrameCount;
+    private long mByteCount;
+
+    @Before
+    public void setUp() {
+        mNowMs = 0;
+        mFrameCount = 0;
+        mByteCount = 0;
+    }
+
+    @Test
+    public void climbsWhileThroughputGrowsAndUndoesMoveWhichHurts() {
+        ConcurrencyController controller = createController(2, 8);
+
+        // probe up, drop settling window, keep climbing while throughput grows, undo the fifth job
+        assertArrayEquals(new int[] {3, 3, 4, 4, 5, 5, 4, 4},
+                runWindows(controller, PEAK_AT_FOUR, 8, true));
+    }
+
+    @Test
+    public void givesBackExtraJobWhichDoesNotHelp() {
+        ConcurrencyController controller = createController(4, 8);
+
+        assertArrayEquals(new int[] {5, 5, 4, 4},
+                runWindows(controller, FLAT_AFTER_FOUR, 4, true));
+    }
+
+    @Test
+    public void holdsSettledLimitThenProbesAgain() {
+        ConcurrencyController controller = createController(2, 8);
+        runWindows(controller, PEAK_AT_FOUR, 8, true);
+        assertEquals(4, controller.getLimit());
+
+        // held for hold windows, then one step up again, which is undone once more
+        assertArrayEquals(new int[] {4, 4, 5, 5, 4},
+                runWindows(controller, PEAK_AT_FOUR, 5, true));
+    }
+
+    @Test
+    public void probesDownAtMaxAndUndoesCostlyStep() {
+        ConcurrencyController controller = createController(4, 4);
+
+        assertArrayEquals(new int[] {3, 3, 4, 4},
+                runWindows(controller, PEAK_AT_FOUR, 4, true));
+    }
+
+    @Test
+    public void keepsGivingBackJobsWhichCostNothing() {
+        double[] flat = {0, 300, 300, 300, 300};
+        ConcurrencyController controller = createController(4, 4);
+
+        assertArrayEquals(new int[] {3, 3, 2, 2, 1, 1, 1},
+                runWindows(controller, flat, 7, true));
+    }
+
+    @Test
+    public void ignoresUnsaturatedWindows() {
+        ConcurrencyController controller = createController(2, 8);
+        assertArrayEquals(new int[] {3, 3},
+                runWindows(controller, PEAK_AT_FOUR, 2, true));
+
+        // throughput collapses because there is nothing to run, the move is neither kept nor undone
+        double[] idle = {0, 10, 10, 10, 10, 10, 10, 10, 10};
+        assertArrayEquals(new int[] {3, 3, 3},
+                runWindows(controller, idle, 3, false));
+
+        // first saturated window after idle ones measures a new baseline instead of comparing with old one
+        assertArrayEquals(new int[] {4, 4, 5, 5, 4},
+                runWindows(controller, PEAK_AT_FOUR, 5, true));
+    }
+
+    @Test
+    public void decidesOnlyOnceWindowIsComplete() {
+        ConcurrencyController controller = createController(2, 8);
+        for (int sample = 1; sample < 10; sample++) {
+            assertEquals(2, controller.onSample(mNowMs + sample * WINDOW_MS / 10, sample, sample, true));
+        }
+        assertEquals(3, controller.onSample(mNowMs + WINDOW_MS, 180, 180 * BYTES_PER_FRAME, true));
+    }
+
+    @Test
+    public void sameSamplesGiveSameDecisions() {
+        int[] limits = runWindows(createController(2, 8), PEAK_AT_FOUR, 20, true);
+        setUp();
+        assertArrayEquals(limits, runWindows(createController(2, 8), PEAK_AT_FOUR, 20, true));
+    }
+
+    private ConcurrencyController createController(int initialJobs, int maxJobs) {
+        ConcurrencyController controller =
+                new ConcurrencyController(1, maxJobs, initialJobs, WINDOW_MS, THRESHOLD, HOLD_WINDOWS);
+        // first sample only starts a window
+        controller.onSample(mNowMs, mFrameCount, mByteCount, true);
+        return controller;
+    }
+
+    /**
+     * Run windows at frame rate of current limit and collect the limit picked after each of them
+     */
+    private int[] runWindows(ConcurrencyController controller, double[] fpsByLimit, int windowCount, boolean saturated) {
+        int[] limits = new int[windowCount];
+        for (int window = 0; window < windowCount; window++) {
+            long frames = Math.round(fpsByLimit[controller.getLimit()] * WINDOW_MS / 1000);
+            mNowMs += WINDOW_MS;
+            mFrameCount += frames;
+            mByteCount += frames * BYTES_PER_FRAME;
+            limits[window] = controller.onSample(mNowMs, mFrameCount, mByteCount, saturated);
+        }
+        return limits;
+    }
+}
@@ -0,0 +1,250 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.codec.Decoder;
+import com.jeffmony.videolibrary.codec.Encoder;
+import com.jeffmony.videolibrary.codec.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Codec which outputs its input as is, usable as a decoder or an encoder. An encoder reports its output format
+ * before its first output frame, and takes frames drawn by a {@link FakeVideoRenderer} in place of a surface.
+ * Live instances, from init to release, are counted in a counter shared by codecs of the same kind, so that
+ * a test can tell how many of them existed at once.
+ */
+class FakeCodec implements Decoder, Encoder {
+
+    static final int NO_FAILURE = -1;
+
+    private static final int INPUT_FRAME_COUNT = 4;
+    private static final int BUFFER_SIZE = 1024;
+
+    private final AtomicInteger mLiveInstances;
+    private final AtomicInteger mMaxLiveInstances;
+    private final long mLatencyMs;
+    private final int mFailAfterFrames;
+
+    private final Frame[] mInputFrames = new Frame[INPUT_FRAME_COUNT];
+    private final BlockingQueue<Integer> mFreeInputFrames = new ArrayBlockingQueue<>(INPUT_FRAME_COUNT);
+    private final Map<Integer, Frame> mOutputFrames = new ConcurrentHashMap<>();
+    private final LinkedBlockingDeque<Integer> mQueuedOutputFrames = new LinkedBlockingDeque<>();
+    private final AtomicInteger mNextOutputTag = new AtomicInteger();
+
+    @Nullable private MediaFormat mFormat;
+    private boolean mEncoder;
+    private boolean mInitialized;
+    private volatile boolean mRunning;
+    private volatile boolean mFormatReported;
+    private int mQueuedFrameCount;
+
+    /**
+     * Create a codec
+     * @param liveInstances counter of live codecs of the same kind
+     * @param maxLiveInstances max value the counter ever had
+     * @param latencyMs time it takes to output a frame
+     * @param failAfterFrames number of frames queued before the codec fails, NO_FAILURE to never fail
+     */
+    FakeCodec(@NonNull AtomicInteger liveInstances,
+              @NonNull AtomicInteger maxLiveInstances,
+              long latencyMs,
+              int failAfterFrames) {
+        mLiveInstances = liveInstances;
+        mMaxLiveInstances = maxLiveInstances;
+        mLatencyMs = latencyMs;
+        mFailAfterFrames = failAfterFrames;
+    }
+
+    @Override
+    public void init(@NonNull MediaFormat format, @Nullable Surface surface) {
+        init(format, false);
+    }
+
+    @Override
+    public void init(@NonNull MediaFormat format) {
+        init(format, true);
+    }
+
+    private synchronized void init(@NonNull MediaFormat format, boolean encoder) {
+        mFormat = format;
+        mEncoder = encoder;
+        mFormatReported = !encoder;
+        mFreeInputFrames.clear();
+        for (int tag = 0; tag < INPUT_FRAME_COUNT; tag++) {
+            mInputFrames[tag] = new Frame(tag, ByteBuffer.allocate(BUFFER_SIZE), null);
+            mFreeInputFrames.add(tag);
+        }
+        mOutputFrames.clear();
+        mQueuedOutputFrames.clear();
+        if (!mInitialized) {
+            mInitialized = true;
+            int liveInstances = mLiveInstances.incrementAndGet();
+            int maxLiveInstances;
+            do {
+                maxLiveInstances = mMaxLiveInstances.get();
+            } while (liveInstances > maxLiveInstances && !mMaxLiveInstances.compareAndSet(maxLiveInstances, liveInstances));
+        }
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return null;
+    }
+
+    @Override
+    public void start() {
+        mRunning = true;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        queueOutputFrame(ByteBuffer.allocate(0), 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    @Override
+    public int dequeueInputFrame(long timeout) {
+        Integer tag = mFreeInputFrames.poll();
+        return tag != null ? tag : MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public Frame getInputFrame(int tag) {
+        Frame frame = mInputFrames[tag];
+        frame.mBuffer.clear();
+        return frame;
+    }
+
+    @Override
+    public void queueInputFrame(Frame frame) {
+        if (mFailAfterFrames != NO_FAILURE && ++mQueuedFrameCount > mFailAfterFrames) {
+            throw new IllegalStateException("Fake codec failed");
+        }
+        ByteBuffer data = frame.mBuffer.duplicate();
+        data.position(frame.mBufferInfo.offset);
+        data.limit(frame.mBufferInfo.offset + frame.mBufferInfo.size);
+        ByteBuffer buffer = ByteBuffer.allocate(data.remaining());
+        buffer.put(data);
+        buffer.flip();
+        queueOutputFrame(buffer, frame.mBufferInfo.presentationTimeUs, frame.mBufferInfo.flags);
+        mFreeInputFrames.add(frame.mTag);
+    }
+
+    /**
+     * Take a frame drawn onto the input surface of an encoder
+     */
+    void queueDrawnFrame(long presentationTimeUs) {
+        queueOutputFrame(ByteBuffer.allocate(16), presentationTimeUs, 0);
+    }
+
+    private void queueOutputFrame(@NonNull ByteBuffer buffer, long presentationTimeUs, int flags) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, buffer.remaining(), presentationTimeUs, flags);
+        int tag = mNextOutputTag.getAndIncrement();
+        mOutputFrames.put(tag, new Frame(tag, buffer, info));
+        mQueuedOutputFrames.add(tag);
+    }
+
+    @Override
+    public int dequeueOutputFrame(long timeout) {
+        Integer tag;
+        try {
+            if (timeout < 0) {
+                tag = mQueuedOutputFrames.take();
+            } else {
+                tag = mQueuedOutputFrames.poll(timeout, TimeUnit.MICROSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        if (tag == null) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        if (!mFormatReported) {
+            // encoder reports its format once, right before its first frame
+            mFormatReported = true;
+            mQueuedOutputFrames.addFirst(tag);
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        if (mLatencyMs > 0) {
+            sleep(mLatencyMs);
+        }
+        return tag;
+    }
+
+    @Override
+    public Frame getOutputFrame(int tag) {
+        return mOutputFrames.get(tag);
+    }
+
+    @Override
+    public void releaseOutputFrame(int tag, boolean render) {
+        mOutputFrames.remove(tag);
+    }
+
+    @Override
+    public void releaseOutputFrame(int tag) {
+        mOutputFrames.remove(tag);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public void stop() {
+        mRunning = false;
+    }
+
+    @Override
+    public synchronized void release() {
+        mRunning = false;
+        if (mInitialized) {
+            mInitialized = false;
+            mLiveInstances.decrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean excludeCurrentCodec() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return mEncoder ? "fake.encoder" : "fake.decoder";
+    }
+
+    static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.io.MediaSource;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Source with a single track of evenly spaced samples, every {@link #SYNC_SAMPLE_INTERVAL}th of them a sync sample
+ */
+class FakeMediaSource implements MediaSource {
+
+    static final int SAMPLE_SIZE = 16;
+    static final int SYNC_SAMPLE_INTERVAL = 10;
+
+    private final MediaFormat mFormat;
+    private final int mSampleCount;
+    private final long mSampleIntervalUs;
+    private final long mReadLatencyMs;
+
+    @Nullable private StageOverlap mStageOverlap;
+    private int mSampleIndex;
+
+    /**
+     * Create a source
+     * @param format track format, duration is set from sample count
+     * @param sampleCount number of samples
+     * @param sampleIntervalUs time between two samples
+     * @param readLatencyMs time it takes to read a sample
+     */
+    FakeMediaSource(@NonNull MediaFormat format, int sampleCount, long sampleIntervalUs, long readLatencyMs) {
+        mFormat = format;
+        mSampleCount = sampleCount;
+        mSampleIntervalUs = sampleIntervalUs;
+        mReadLatencyMs = readLatencyMs;
+        mFormat.setLong(MediaFormat.KEY_DURATION, sampleCount * sampleIntervalUs);
+    }
+
+    /**
+     * Report sample reads as busy stage
+     */
+    void setStageOverlap(@Nullable StageOverlap stageOverlap) {
+        mStageOverlap = stageOverlap;
+    }
+
+    @Override
+    public int getOrientationHint() {
+        return 0;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return 1;
+    }
+
+    @NonNull
+    @Override
+    public MediaFormat getTrackFormat(int track) {
+        return mFormat;
+    }
+
+    @Override
+    public void selectTrack(int track) {
+    }
+
+    @Override
+    public void seekTo(long position, int mode) {
+        int sampleIndex = (int) Math.min(mSampleCount, position / mSampleIntervalUs);
+        mSampleIndex = sampleIndex - sampleIndex % SYNC_SAMPLE_INTERVAL;
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mSampleIndex < mSampleCount ? 0 : -1;
+    }
+
+    @Override
+    public int readSampleData(@NonNull ByteBuffer buffer, int offset) {
+        if (mSampleIndex >= mSampleCount) {
+            return -1;
+        }
+        if (mStageOverlap != null) {
+            mStageOverlap.enter();
+        }
+        if (mReadLatencyMs > 0) {
+            FakeCodec.sleep(mReadLatencyMs);
+        }
+        if (mStageOverlap != null) {
+            mStageOverlap.exit();
+        }
+        buffer.position(offset);
+        for (int index = 0; index < SAMPLE_SIZE; index++) {
+            buffer.put((byte) mSampleIndex);
+        }
+        return SAMPLE_SIZE;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mSampleIndex < mSampleCount ? mSampleIndex * mSampleIntervalUs : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mSampleIndex % SYNC_SAMPLE_INTERVAL == 0 ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public void advance() {
+        mSampleIndex++;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    @Override
+    public long getSize() {
+        return -1;
+    }
+}
@@ -0,0 +1,78 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.io.MediaTarget;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Target which only counts samples written to it
+ */
+class FakeMediaTarget implements MediaTarget {
+
+    private final long mWriteLatencyMs;
+    private final AtomicInteger mSampleCount = new AtomicInteger();
+
+    @Nullable private StageOverlap mStageOverlap;
+
+    /**
+     * Create a target
+     * @param writeLatencyMs time it takes to write a sample
+     */
+    FakeMediaTarget(long writeLatencyMs) {
+        mWriteLatencyMs = writeLatencyMs;
+    }
+
+    /**
+     * Report sample writes as busy stage
+     */
+    void setStageOverlap(@Nullable StageOverlap stageOverlap) {
+        mStageOverlap = stageOverlap;
+    }
+
+    @Override
+    public int addTrack(@NonNull MediaFormat mediaFormat, @IntRange(from = 0) int targetTrack) {
+        return targetTrack;
+    }
+
+    @Override
+    public void writeSampleData(int targetTrack, @NonNull ByteBuffer buffer, @NonNull MediaCodec.BufferInfo info) {
+        if (mStageOverlap != null) {
+            mStageOverlap.enter();
+        }
+        if (mWriteLatencyMs > 0) {
+            FakeCodec.sleep(mWriteLatencyMs);
+        }
+        if (mStageOverlap != null) {
+            mStageOverlap.exit();
+        }
+        mSampleCount.incrementAndGet();
+    }
+
+    @Override
+    public void release() {
+    }
+
+    @NonNull
+    @Override
+    public String getOutputFilePath() {
+        return "";
+    }
+
+    int getSampleCount() {
+        return mSampleCount.get();
+    }
+}
@@ -0,0 +1,62 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jeffmony.videolibrary.render.GlVideoRenderer;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Video renderer without GL, which hands every drawn frame straight to a {@link FakeCodec} encoder
+ */
+class FakeVideoRenderer extends GlVideoRenderer {
+
+    private final FakeCodec mEncoder;
+    private final long mDrawLatencyMs;
+
+    /**
+     * Create a renderer
+     * @param encoder encoder frames are drawn into
+     * @param drawLatencyMs time it takes to draw a frame
+     */
+    FakeVideoRenderer(@NonNull FakeCodec encoder, long drawLatencyMs) {
+        super(null);
+        mEncoder = encoder;
+        mDrawLatencyMs = drawLatencyMs;
+    }
+
+    @Override
+    public void init(@Nullable Surface outputSurface,
+                     @Nullable MediaFormat sourceMediaFormat,
+                     @Nullable MediaFormat targetMediaFormat) {
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return null;
+    }
+
+    @Override
+    public void awaitInputFrame() {
+    }
+
+    @Override
+    public void drawInputFrame(long presentationTimeNs) {
+        if (mDrawLatencyMs > 0) {
+            FakeCodec.sleep(mDrawLatencyMs);
+        }
+        mEncoder.queueDrawnFrame(presentationTimeNs / 1000);
+    }
+
+    @Override
+    public void release() {
+    }
+}
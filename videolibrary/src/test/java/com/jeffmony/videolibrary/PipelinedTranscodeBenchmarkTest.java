@@ -0,0 +1,126 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.jeffmony.videolibrary.transcoder.TrackTranscoderOptions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Transcodes the same fake video track with the serial and the pipelined loop, with source reads, decoding,
+ * drawing and target writes each taking a different time. Checks that the pipelined loop reads source while
+ * it writes target and the serial loop never does, and logs frame rates of both loops.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PipelinedTranscodeBenchmarkTest {
+    private static final String TAG = PipelinedTranscodeBenchmarkTest.class.getSimpleName();
+
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+
+    private static final int FRAME_COUNT = 60;
+    private static final long FRAME_INTERVAL_US = 33333;
+    private static final long READ_LATENCY_MS = 2;
+    private static final long DECODE_LATENCY_MS = 1;
+    private static final long DRAW_LATENCY_MS = 1;
+    private static final long WRITE_LATENCY_MS = 3;
+    private static final long TIMEOUT_MS = 30000;
+
+    private final AtomicInteger mCodecs = new AtomicInteger();
+    private final AtomicInteger mMaxCodecs = new AtomicInteger();
+
+    private Transformer mTransformer;
+    private int mJobIndex;
+
+    @Before
+    public void setUp() {
+        CodecCapacity codecCapacity = new CodecCapacity();
+        codecCapacity.setCapacity(MIME_TYPE, false, 1);
+        codecCapacity.setCapacity(MIME_TYPE, true, 1);
+        mTransformer = new Transformer(1, codecCapacity);
+    }
+
+    @After
+    public void tearDown() {
+        mTransformer.release();
+    }
+
+    @Test
+    public void pipelinedLoopOverlapsStages() throws Exception {
+        // warm up both loops before timing them
+        transcode(false, new StageOverlap());
+        transcode(true, new StageOverlap());
+
+        StageOverlap serialOverlap = new StageOverlap();
+        long serialTimeMs = transcode(false, serialOverlap);
+        StageOverlap pipelinedOverlap = new StageOverlap();
+        long pipelinedTimeMs = transcode(true, pipelinedOverlap);
+        // timing depends on the machine, it is reported, not checked
+        Log.i(TAG, "Serial loop: " + getFramesPerSecond(serialTimeMs) + " fps, "
+                + "pipelined loop: " + getFramesPerSecond(pipelinedTimeMs) + " fps");
+
+        assertEquals(1, serialOverlap.getMaxBusyStages());
+        assertTrue("Stages busy at once: " + pipelinedOverlap.getMaxBusyStages(),
+                pipelinedOverlap.getMaxBusyStages() > 1);
+    }
+
+    private long transcode(boolean pipelined, @NonNull StageOverlap stageOverlap) throws Exception {
+        MediaFormat sourceFormat = createVideoFormat();
+        sourceFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 1024);
+        FakeMediaSource mediaSource = new FakeMediaSource(sourceFormat, FRAME_COUNT, FRAME_INTERVAL_US, READ_LATENCY_MS);
+        FakeMediaTarget mediaTarget = new FakeMediaTarget(WRITE_LATENCY_MS);
+        mediaSource.setStageOverlap(stageOverlap);
+        mediaTarget.setStageOverlap(stageOverlap);
+        FakeCodec decoder = new FakeCodec(mCodecs, mMaxCodecs, DECODE_LATENCY_MS, FakeCodec.NO_FAILURE);
+        FakeCodec encoder = new FakeCodec(mCodecs, mMaxCodecs, 0, FakeCodec.NO_FAILURE);
+        TrackTransform trackTransform = new TrackTransform.Builder(mediaSource, 0, mediaTarget)
+                .setDecoder(decoder)
+                .setRenderer(new FakeVideoRenderer(encoder, DRAW_LATENCY_MS))
+                .setEncoder(encoder)
+                .setTargetFormat(createVideoFormat())
+                .setOptions(new TrackTranscoderOptions()
+                        .setPassthroughIfCompatible(false)
+                        .setPipelined(pipelined))
+                .build();
+
+        long startTimeMs = System.currentTimeMillis();
+        mTransformer.transform("benchmark-" + mJobIndex++,
+                Collections.singletonList(trackTransform),
+                Transformer.PRIORITY_NORMAL).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        long elapsedTimeMs = System.currentTimeMillis() - startTimeMs;
+
+        assertEquals(FRAME_COUNT, mediaTarget.getSampleCount());
+        return elapsedTimeMs;
+    }
+
+    private static MediaFormat createVideoFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, 320, 240);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+        return format;
+    }
+
+    private static long getFramesPerSecond(long timeMs) {
+        return FRAME_COUNT * 1000L / Math.max(1, timeMs);
+    }
+}
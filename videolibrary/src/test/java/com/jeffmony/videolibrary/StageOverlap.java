@@ -0,0 +1,35 @@
+package com.jeffmony.videolibrary;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Counts fake pipeline stages which are busy at the same time, so a test can tell whether they overlapped
+ * without measuring how long they took
+ */
+class StageOverlap {
+
+    private final AtomicInteger mBusyStages = new AtomicInteger();
+    private final AtomicInteger mMaxBusyStages = new AtomicInteger();
+
+    void enter() {
+        int busyStages = mBusyStages.incrementAndGet();
+        int maxBusyStages;
+        do {
+            maxBusyStages = mMaxBusyStages.get();
+        } while (busyStages > maxBusyStages && !mMaxBusyStages.compareAndSet(maxBusyStages, busyStages));
+    }
+
+    void exit() {
+        mBusyStages.decrementAndGet();
+    }
+
+    int getMaxBusyStages() {
+        return mMaxBusyStages.get();
+    }
+}
@@ -0,0 +1,143 @@
+package com.jeffmony.videolibrary;
+
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Floods a {@link Transformer} with more jobs than codec capacity admits at once, some of them failing and some
+ * cancelled, and checks that admission never lets more codecs live than capacity allows, that every job ends,
+ * and that every codec comes back.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TransformerStressTest {
+
+    private static final String SOURCE_MIME_TYPE = "audio/raw";
+    private static final String TARGET_MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_AAC;
+
+    private static final int WORKER_COUNT = 4;
+    private static final int CODEC_CAPACITY = 2;
+    private static final int JOB_COUNT = 30;
+    private static final int SAMPLE_COUNT = 40;
+    private static final long SAMPLE_INTERVAL_US = 20000;
+    private static final long READ_LATENCY_MS = 1;
+    private static final int FAIL_AFTER_FRAMES = 10;
+    private static final long TIMEOUT_MS = 30000;
+
+    private final AtomicInteger mDecoders = new AtomicInteger();
+    private final AtomicInteger mMaxDecoders = new AtomicInteger();
+    private final AtomicInteger mEncoders = new AtomicInteger();
+    private final AtomicInteger mMaxEncoders = new AtomicInteger();
+
+    private CodecCapacity mCodecCapacity;
+    private Transformer mTransformer;
+
+    @Before
+    public void setUp() {
+        mCodecCapacity = new CodecCapacity();
+        mCodecCapacity.setCapacity(SOURCE_MIME_TYPE, false, CODEC_CAPACITY);
+        mCodecCapacity.setCapacity(TARGET_MIME_TYPE, true, CODEC_CAPACITY);
+        mTransformer = new Transformer(WORKER_COUNT, mCodecCapacity);
+    }
+
+    @After
+    public void tearDown() {
+        mTransformer.release();
+    }
+
+    @Test
+    public void admissionKeepsCodecsWithinCapacity() throws Exception {
+        List<Future<Void>> futures = new ArrayList<>();
+        int failingJobCount = 0;
+        for (int index = 0; index < JOB_COUNT; index++) {
+            boolean failing = index % 5 == 4;
+            failingJobCount += failing ? 1 : 0;
+            futures.add(mTransformer.transform(getJobId(index),
+                    Collections.singletonList(createTrackTransform(failing)),
+                    Transformer.PRIORITY_NORMAL));
+        }
+        // cancel jobs while some of them run and others wait for codecs
+        int cancelledJobCount = 0;
+        for (int index = 2; index < JOB_COUNT; index += 5) {
+            Thread.sleep(10);
+            cancelledJobCount += mTransformer.cancel(getJobId(index)) ? 1 : 0;
+        }
+
+        int completedJobCount = 0;
+        int failedJobCount = 0;
+        int cancelledFutureCount = 0;
+        for (Future<Void> future : futures) {
+            try {
+                future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                completedJobCount++;
+            } catch (ExecutionException e) {
+                failedJobCount++;
+            } catch (CancellationException e) {
+                cancelledFutureCount++;
+            }
+        }
+        assertEquals(cancelledJobCount, cancelledFutureCount);
+        assertEquals(failingJobCount, failedJobCount);
+        assertEquals(JOB_COUNT - failingJobCount - cancelledJobCount, completedJobCount);
+
+        // a cancelled job completes its future right away and returns codecs once its worker stopped it
+        long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!areCodecsReturned() && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mCodecCapacity.getInUse(SOURCE_MIME_TYPE, false));
+        assertEquals(0, mCodecCapacity.getInUse(TARGET_MIME_TYPE, true));
+        assertEquals(0, mDecoders.get());
+        assertEquals(0, mEncoders.get());
+
+        assertTrue("Decoders alive at once: " + mMaxDecoders.get(), mMaxDecoders.get() <= CODEC_CAPACITY);
+        assertTrue("Encoders alive at once: " + mMaxEncoders.get(), mMaxEncoders.get() <= CODEC_CAPACITY);
+        assertTrue(mMaxDecoders.get() > 0);
+    }
+
+    private boolean areCodecsReturned() {
+        return mCodecCapacity.getInUse(SOURCE_MIME_TYPE, false) == 0
+                && mCodecCapacity.getInUse(TARGET_MIME_TYPE, true) == 0
+                && mDecoders.get() == 0
+                && mEncoders.get() == 0;
+    }
+
+    private TrackTransform createTrackTransform(boolean failing) {
+        MediaFormat sourceFormat = MediaFormat.createAudioFormat(SOURCE_MIME_TYPE, 44100, 1);
+        MediaFormat targetFormat = MediaFormat.createAudioFormat(TARGET_MIME_TYPE, 44100, 1);
+        FakeMediaSource mediaSource = new FakeMediaSource(sourceFormat, SAMPLE_COUNT, SAMPLE_INTERVAL_US, READ_LATENCY_MS);
+        return new TrackTransform.Builder(mediaSource, 0, new FakeMediaTarget(0))
+                .setDecoder(new FakeCodec(mDecoders, mMaxDecoders, 0, failing ? FAIL_AFTER_FRAMES : FakeCodec.NO_FAILURE))
+                .setEncoder(new FakeCodec(mEncoders, mMaxEncoders, 0, FakeCodec.NO_FAILURE))
+                .setTargetFormat(targetFormat)
+                .build();
+    }
+
+    private static String getJobId(int index) {
+        return "job-" + index;
+    }
+}
@@ -0,0 +1,159 @@
+package com.jeffmony.videolibrary.codec;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author : jeffli
+ * @Email  : jeffmony@163.com
+ * @Date   : 2021-08-27
+ */
+
+/**
+ * Plain JVM test of {@link CodecBufferQueue}, no Android runtime needed
+ */
+public class CodecBufferQueueTest {
+
+    private static final int FORMAT_CHANGED = -2;
+    private static final long TIMEOUT_US = TimeUnit.SECONDS.toMicros(10);
+
+    @Test
+    public void pollReturnsEntriesInOfferOrder() {
+        CodecBufferQueue queue = new CodecBufferQueue(4);
+        assertTrue(queue.offer(3, 10, 100, 1000L, 1));
+        assertTrue(queue.offer(FORMAT_CHANGED));
+        assertTrue(queue.offer(1, 20, 200, 2000L, 4));
+        assertEquals(3, queue.size());
+
+        assertEquals(3, queue.poll());
+        assertBufferInfo(queue, 10, 100, 1000L, 1);
+        assertEquals(FORMAT_CHANGED, queue.poll());
+        assertBufferInfo(queue, 0, 0, 0L, 0);
+        assertEquals(1, queue.poll());
+        assertBufferInfo(queue, 20, 200, 2000L, 4);
+
+        assertEquals(CodecBufferQueue.NO_ENTRY, queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        CodecBufferQueue queue = new CodecBufferQueue(3);
+        for (int index = 0; index < 4; index++) {
+            assertTrue(queue.offer(index));
+        }
+        assertFalse(queue.offer(4));
+    }
+
+    @Test
+    public void fullQueueRejectsOfferUntilPolled() {
+        CodecBufferQueue queue = new CodecBufferQueue(2);
+        assertTrue(queue.offer(0));
+        assertTrue(queue.offer(1));
+        assertFalse(queue.offer(2));
+        assertEquals(2, queue.size());
+
+        assertEquals(0, queue.poll());
+        assertTrue(queue.offer(2));
+        assertEquals(1, queue.poll());
+        assertEquals(2, queue.poll());
+    }
+
+    @Test
+    public void entriesWrapAroundAtCapacity() {
+        CodecBufferQueue queue = new CodecBufferQueue(4);
+        for (int round = 0; round < 10; round++) {
+            // odd number of entries per round moves head and tail across the end of the ring
+            for (int index = 0; index < 3; index++) {
+                assertTrue(queue.offer(round * 3 + index, index, index, round, index));
+            }
+            for (int index = 0; index < 3; index++) {
+                assertEquals(round * 3 + index, queue.poll());
+                assertBufferInfo(queue, index, index, round, index);
+            }
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test
+    public void clearDropsAllEntries() {
+        CodecBufferQueue queue = new CodecBufferQueue(4);
+        for (int index = 0; index < 4; index++) {
+            queue.offer(index);
+        }
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(CodecBufferQueue.NO_ENTRY, queue.poll());
+
+        // queue is usable again after clear
+        assertTrue(queue.offer(7));
+        assertEquals(7, queue.poll());
+    }
+
+    @Test
+    public void awaitTimesOutOnEmptyQueue() {
+        CodecBufferQueue queue = new CodecBufferQueue(4);
+        assertFalse(queue.await(0));
+
+        long startNs = System.nanoTime();
+        assertFalse(queue.await(TimeUnit.MILLISECONDS.toMicros(20)));
+        assertTrue(System.nanoTime() - startNs >= TimeUnit.MILLISECONDS.toNanos(20));
+
+        queue.offer(0);
+        assertTrue(queue.await(0));
+        assertTrue(queue.await(TIMEOUT_US));
+    }
+
+    @Test
+    public void awaitReturnsWhenProducerOffers() throws Exception {
+        CodecBufferQueue queue = new CodecBufferQueue(4);
+        CountDownLatch waiting = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            awaitQuietly(waiting);
+            queue.offer(5);
+        });
+        producer.start();
+
+        waiting.countDown();
+        assertTrue(queue.await(-1));
+        assertEquals(5, queue.poll());
+        producer.join();
+    }
+
+    @Test
+    public void wakeUpReleasesWaitingConsumer() throws Exception {
+        CodecBufferQueue queue = new CodecBufferQueue(4);
+        CountDownLatch waiting = new CountDownLatch(1);
+        Thread failure = new Thread(() -> {
+            awaitQuietly(waiting);
+            queue.wakeUp();
+        });
+        failure.start();
+
+        waiting.countDown();
+        assertFalse(queue.await(-1));
+        assertTrue(queue.isEmpty());
+        failure.join();
+    }
+
+    private static void assertBufferInfo(CodecBufferQueue queue, int offset, int size, long presentationTimeUs, int flags) {
+        assertEquals(offset, queue.getOffset());
+        assertEquals(size, queue.getSize());
+        assertEquals(presentationTimeUs, queue.getPresentationTimeUs());
+        assertEquals(flags, queue.getFlags());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}